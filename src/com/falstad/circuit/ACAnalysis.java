@@ -0,0 +1,443 @@
+package com.falstad.circuit;
+
+import com.falstad.circuit.elements.CurrentElm;
+import com.falstad.circuit.elements.SweepElm;
+import com.falstad.circuit.elements.VoltageElm;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Small-signal AC analysis.  Finds the DC operating point, linearizes
+// every element around it and solves
+//
+//   (G + jwC + K/jw) x = b
+//
+// at each frequency, where G holds the conductances (and the nonlinear
+// elements' linearizations), C the capacitances and K the inverse
+// inductances.  b is a 1V (or 1A) input at one source; every other
+// independent source is zero.  The elements stamp G, C and K through the
+// usual stamp methods (see CircuitSimulator.isACAnalysis()), into the
+// rows of the simplified DC matrix, so wires and grounds don't take up
+// room.  Frequencies are solved in parallel.
+//
+//   ACAnalysis ac = new ACAnalysis(sim);
+//   ac.setInput(source);
+//   ac.addOutput(probe);
+//   ac.setFrequencies(10, 1e6, 20);
+//   if (ac.run()) { ... ac.getMagnitudeDB(0, k), ac.getPhase(0, k) ... }
+public class ACAnalysis {
+
+    CircuitSimulator sim;
+    CircuitElm input;
+    CircuitElm outElm[];
+    int outPost[];
+    int outCount;
+    double freqs[];
+    // G, C and K of the input's part of the circuit
+    int size;
+    double g[][], c[][], k[][];
+    double b[];
+    CircuitComponent comp;
+    // results, by output and frequency
+    double re[][], im[][];
+    String stopMessage;
+    long solveTime;
+    static final double GMIN = 1e-12;
+
+    public ACAnalysis(CircuitSimulator sim) {
+        this.sim = sim;
+        outElm = new CircuitElm[4];
+        outPost = new int[4];
+        setFrequencies(1, 1e6, 10);
+    }
+
+    // the source that gets the AC input: a voltage source (1V) or a
+    // current source (1A)
+    public void setInput(CircuitElm ce) {
+        input = ce;
+    }
+
+    public CircuitElm getInput() {
+        return input;
+    }
+
+    // independent sources, which the GUI offers as inputs.  Any element
+    // with a voltage source works with setInput().
+    public static boolean canBeInput(CircuitElm ce) {
+        return ce instanceof VoltageElm || ce instanceof SweepElm
+                || ce instanceof CurrentElm;
+    }
+
+    // measure the voltage across ce (post 0 minus post 1, like
+    // getVoltageDiff()), or from its post to ground if it has only one.
+    // Returns the output number.
+    public int addOutput(CircuitElm ce) {
+        return addOutput(ce, -1);
+    }
+
+    // measure the voltage of post n of ce to ground
+    public int addOutput(CircuitElm ce, int n) {
+        if (outCount == outElm.length) {
+            CircuitElm ne[] = new CircuitElm[outCount * 2];
+            int np[] = new int[outCount * 2];
+            System.arraycopy(outElm, 0, ne, 0, outCount);
+            System.arraycopy(outPost, 0, np, 0, outCount);
+            outElm = ne;
+            outPost = np;
+        }
+        outElm[outCount] = ce;
+        outPost[outCount] = n;
+        return outCount++;
+    }
+
+    public int getOutputCount() {
+        return outCount;
+    }
+
+    public CircuitElm getOutput(int p) {
+        return outElm[p];
+    }
+
+    // logarithmic sweep from f0 to f1 (Hz)
+    public void setFrequencies(double f0, double f1, int perDecade) {
+        int n = (int) Math.ceil(Math.log10(f1 / f0) * perDecade) + 1;
+        if (n < 2) {
+            n = 2;
+        }
+        double f[] = new double[n];
+        int i;
+        for (i = 0; i != n; i++) {
+            f[i] = f0 * Math.pow(f1 / f0, i / (n - 1.));
+        }
+        freqs = f;
+    }
+
+    public void setFrequencies(double f[]) {
+        freqs = f.clone();
+    }
+
+    public double[] getFrequencies() {
+        return freqs;
+    }
+
+    // do the analysis.  Returns false if it couldn't be done;
+    // getStopMessage() says why.  The circuit is left at its DC operating
+    // point and re-analyzed before it's simulated again.
+    public boolean run() {
+        int i;
+        stopMessage = null;
+        re = im = null;
+        if (input == null) {
+            stopMessage = "No input source";
+            return false;
+        }
+        if (sim.locateElm(input) < 0) {
+            stopMessage = "Input isn't in the circuit";
+            return false;
+        }
+        if (!sim.findOperatingPoint()) {
+            stopMessage = (sim.stopMessage != null) ? sim.stopMessage
+                    : "DC operating point not found";
+            return false;
+        }
+        // the DC analysis keeps independent sources out of the constant
+        // rows, so every constant is an AC ground
+        sim.dcAnalysis = true;
+        try {
+            sim.analyzeCircuit();
+            if (sim.stopMessage != null || sim.components == null) {
+                stopMessage = sim.stopMessage;
+                return false;
+            }
+            if (!findInput()) {
+                return false;
+            }
+            size = comp.size;
+            g = new double[size][size];
+            c = new double[size][size];
+            k = new double[size][size];
+            sim.acAnalysis = this;
+            sim.acStampType = CircuitSimulator.AC_CONDUCTANCE;
+            for (i = 0; i != sim.elmListSize(); i++) {
+                sim.getElm(i).stamp();
+            }
+            // the nonlinear elements stamp their linearization
+            for (i = 0; i != sim.elmListSize(); i++) {
+                CircuitElm ce = sim.getElm(i);
+                if (ce.nonLinear()) {
+                    ce.doStep();
+                }
+            }
+            // a small conductance to ground keeps nodes the DC analysis
+            // tied down with a resistor from floating
+            for (i = 1; i != sim.nodeList.size(); i++) {
+                stamp(i, i, GMIN);
+            }
+        } finally {
+            sim.acAnalysis = null;
+            sim.dcAnalysis = false;
+            sim.analyzeFlag = true;
+        }
+        sim.stopMessage = null;
+        long t0 = System.nanoTime();
+        solveAll();
+        solveTime = System.nanoTime() - t0;
+        return true;
+    }
+
+    // find the part of the circuit the input is in, and stamp the input
+    boolean findInput() {
+        int n = sim.nodeList.size();
+        if (input instanceof CurrentElm) {
+            int n0 = input.getNode(0), n1 = input.getNode(1);
+            comp = null;
+            stampInput(n0, -1);
+            stampInput(n1, 1);
+        } else if (input.getVoltageSourceCount() > 0) {
+            // row of the source's equation, whose right side is the voltage
+            RowInfo ri = sim.circuitRowInfo[n + input.getVoltageSource() - 1];
+            comp = null;
+            if (ri.mapRow >= 0) {
+                comp = ri.comp;
+                b = new double[comp.size];
+                b[ri.mapRow] = 1;
+            }
+        } else {
+            stopMessage = "Input must be a voltage or current source";
+            return false;
+        }
+        if (comp == null) {
+            stopMessage = "Input isn't connected";
+            return false;
+        }
+        return true;
+    }
+
+    void stampInput(int node, double x) {
+        if (node == 0) {
+            return;
+        }
+        RowInfo ri = sim.circuitRowInfo[node - 1];
+        if (ri.mapRow < 0) {
+            return;
+        }
+        if (comp == null) {
+            comp = ri.comp;
+            b = new double[comp.size];
+        }
+        b[ri.mapRow] += x;
+    }
+
+    // called by CircuitSimulator.stampMatrix() during run()
+    void stamp(int i, int j, double x) {
+        RowInfo rri = sim.circuitRowInfo[i - 1];
+        RowInfo ri = sim.circuitRowInfo[j - 1];
+        if (rri.mapRow < 0 || rri.comp != comp
+                || ri.type == RowInfo.ROW_CONST) {
+            return;
+        }
+        double m[][] = (sim.acStampType == CircuitSimulator.AC_CAPACITANCE) ? c
+                : (sim.acStampType == CircuitSimulator.AC_INVERSE_INDUCTANCE) ? k
+                : g;
+        m[rri.mapRow][ri.mapCol] += x;
+    }
+
+    void solveAll() {
+        int nf = freqs.length;
+        re = new double[outCount][nf];
+        im = new double[outCount][nf];
+        // map the outputs to columns of the solution; -1 is AC ground
+        final int col1[] = new int[outCount];
+        final int col2[] = new int[outCount];
+        int p;
+        for (p = 0; p != outCount; p++) {
+            CircuitElm ce = outElm[p];
+            if (outPost[p] >= 0) {
+                col1[p] = -1;
+                col2[p] = nodeColumn(ce.getNode(outPost[p]));
+            } else if (ce.getPostCount() == 1) {
+                col1[p] = -1;
+                col2[p] = nodeColumn(ce.getNode(0));
+            } else {
+                col1[p] = nodeColumn(ce.getNode(1));
+                col2[p] = nodeColumn(ce.getNode(0));
+            }
+        }
+        // each task takes every chunk-th frequency, so the slow low and
+        // fast high ends are shared out evenly
+        int chunks = Math.min(nf, CircuitSimulator.PARALLEL_THREADS);
+        if (chunks < 2 || size < 8) {
+            solveFrequencies(0, 1, col1, col2);
+            return;
+        }
+        Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+        int t;
+        for (t = 0; t != chunks; t++) {
+            final int first = t, stride = chunks;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    solveFrequencies(first, stride, col1, col2);
+                    return null;
+                }
+            });
+        }
+        try {
+            Vector<Future<Void>> results = new Vector<Future<Void>>(
+                    CircuitSimulator.getComponentPool().invokeAll(tasks));
+            for (t = 0; t != results.size(); t++) {
+                results.get(t).get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // column of the solution with the voltage of node n, or -1 if it's
+    // an AC ground (ground, a DC source, or another part of the circuit)
+    int nodeColumn(int n) {
+        if (n <= 0) {
+            return -1;
+        }
+        RowInfo ri = sim.circuitRowInfo[n - 1];
+        if (ri.type == RowInfo.ROW_CONST || ri.comp != comp) {
+            return -1;
+        }
+        return ri.mapCol;
+    }
+
+    void solveFrequencies(int first, int stride, int col1[], int col2[]) {
+        double ar[][] = new double[size][size];
+        double ai[][] = new double[size][size];
+        double xr[] = new double[size];
+        double xi[] = new double[size];
+        int f, i, j, p;
+        for (f = first; f < freqs.length; f += stride) {
+            double w = 2 * Math.PI * freqs[f];
+            for (i = 0; i != size; i++) {
+                for (j = 0; j != size; j++) {
+                    ar[i][j] = g[i][j];
+                    ai[i][j] = w * c[i][j] - k[i][j] / w;
+                }
+                xr[i] = b[i];
+                xi[i] = 0;
+            }
+            boolean ok = solveComplex(ar, ai, xr, xi);
+            for (p = 0; p != outCount; p++) {
+                if (!ok) {
+                    re[p][f] = im[p][f] = Double.NaN;
+                    continue;
+                }
+                re[p][f] = ((col2[p] < 0) ? 0 : xr[col2[p]])
+                        - ((col1[p] < 0) ? 0 : xr[col1[p]]);
+                im[p][f] = ((col2[p] < 0) ? 0 : xi[col2[p]])
+                        - ((col1[p] < 0) ? 0 : xi[col1[p]]);
+            }
+        }
+    }
+
+    // solve (ar + j ai) x = (xr + j xi) in place by Gaussian elimination
+    // with partial pivoting.  Returns false if the matrix is singular.
+    static boolean solveComplex(double ar[][], double ai[][], double xr[],
+            double xi[]) {
+        int n = xr.length;
+        int i, j, col;
+        for (col = 0; col != n; col++) {
+            int piv = col;
+            double largest = 0;
+            for (i = col; i != n; i++) {
+                double m = Math.abs(ar[i][col]) + Math.abs(ai[i][col]);
+                if (m > largest) {
+                    largest = m;
+                    piv = i;
+                }
+            }
+            if (largest == 0) {
+                return false;
+            }
+            if (piv != col) {
+                double t[] = ar[piv];
+                ar[piv] = ar[col];
+                ar[col] = t;
+                t = ai[piv];
+                ai[piv] = ai[col];
+                ai[col] = t;
+                double q = xr[piv];
+                xr[piv] = xr[col];
+                xr[col] = q;
+                q = xi[piv];
+                xi[piv] = xi[col];
+                xi[col] = q;
+            }
+            double pr = ar[col][col], pi = ai[col][col];
+            double d = pr * pr + pi * pi;
+            // 1/pivot
+            double ir = pr / d, ii = -pi / d;
+            double rowr[] = ar[col], rowi[] = ai[col];
+            for (i = col + 1; i != n; i++) {
+                double fr0 = ar[i][col], fi0 = ai[i][col];
+                if (fr0 == 0 && fi0 == 0) {
+                    continue;
+                }
+                double fr = fr0 * ir - fi0 * ii;
+                double fi = fr0 * ii + fi0 * ir;
+                double r[] = ar[i], m[] = ai[i];
+                for (j = col + 1; j != n; j++) {
+                    r[j] -= fr * rowr[j] - fi * rowi[j];
+                    m[j] -= fr * rowi[j] + fi * rowr[j];
+                }
+                r[col] = m[col] = 0;
+                xr[i] -= fr * xr[col] - fi * xi[col];
+                xi[i] -= fr * xi[col] + fi * xr[col];
+            }
+        }
+        // back substitution
+        for (i = n - 1; i >= 0; i--) {
+            double sr = xr[i], si = xi[i];
+            for (j = i + 1; j != n; j++) {
+                sr -= ar[i][j] * xr[j] - ai[i][j] * xi[j];
+                si -= ar[i][j] * xi[j] + ai[i][j] * xr[j];
+            }
+            double pr = ar[i][i], pi = ai[i][i];
+            double d = pr * pr + pi * pi;
+            xr[i] = (sr * pr + si * pi) / d;
+            xi[i] = (si * pr - sr * pi) / d;
+        }
+        return true;
+    }
+
+    public String getStopMessage() {
+        return stopMessage;
+    }
+
+    // time the last run() spent solving, in nanoseconds
+    public long getSolveTime() {
+        return solveTime;
+    }
+
+    public double getReal(int p, int f) {
+        return re[p][f];
+    }
+
+    public double getImaginary(int p, int f) {
+        return im[p][f];
+    }
+
+    public double getMagnitude(int p, int f) {
+        return Math.hypot(re[p][f], im[p][f]);
+    }
+
+    public double getMagnitudeDB(int p, int f) {
+        return 20 * Math.log10(getMagnitude(p, f));
+    }
+
+    // phase in degrees, -180 to 180
+    public double getPhase(int p, int f) {
+        return Math.atan2(im[p][f], re[p][f]) * 180 / Math.PI;
+    }
+}
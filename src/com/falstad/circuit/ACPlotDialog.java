@@ -0,0 +1,180 @@
+package com.falstad.circuit;
+
+import java.awt.*;
+import java.awt.event.*;
+
+// Bode plot of an ACAnalysis: magnitude (dB) on top, phase below, against
+// a log frequency axis.  The start and stop frequencies can be changed
+// and the analysis run again.
+@SuppressWarnings("serial")
+class ACPlotDialog extends Dialog implements ActionListener {
+
+    CircuitSimulator cframe;
+    ACAnalysis ac;
+    TextField startField, stopField;
+    Button runButton, closeButton;
+    Label status;
+    PlotCanvas plot;
+    static final Color colors[] = {Color.green, Color.yellow, Color.cyan,
+        Color.magenta, Color.orange, Color.pink};
+
+    ACPlotDialog(ACAnalysis ac, CircuitSimulator f) {
+        super((Frame) null, "AC Analysis", false);
+        cframe = f;
+        this.ac = ac;
+        setLayout(new BorderLayout());
+        plot = new PlotCanvas();
+        plot.setPreferredSize(new Dimension(600, 400));
+        add(plot, BorderLayout.CENTER);
+        Panel p = new Panel(new FlowLayout());
+        double fr[] = ac.getFrequencies();
+        p.add(new Label("From (Hz)"));
+        p.add(startField = new TextField(CircuitElm.noCommaFormat.format(fr[0]), 8));
+        p.add(new Label("To (Hz)"));
+        p.add(stopField = new TextField(
+                CircuitElm.noCommaFormat.format(fr[fr.length - 1]), 8));
+        p.add(runButton = new Button("Run"));
+        p.add(closeButton = new Button("Close"));
+        runButton.addActionListener(this);
+        closeButton.addActionListener(this);
+        startField.addActionListener(this);
+        stopField.addActionListener(this);
+        add(p, BorderLayout.SOUTH);
+        add(status = new Label(""), BorderLayout.NORTH);
+        pack();
+        Point x = cframe.main.getLocationOnScreen();
+        Dimension d = getSize();
+        setLocation(x.x + (cframe.winSize.width - d.width) / 2,
+                x.y + (cframe.winSize.height - d.height) / 2);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent we) {
+                closeDialog();
+            }
+        });
+        runAnalysis();
+    }
+
+    void runAnalysis() {
+        try {
+            double f0 = Double.parseDouble(startField.getText());
+            double f1 = Double.parseDouble(stopField.getText());
+            if (f0 > 0 && f1 > f0) {
+                ac.setFrequencies(f0, f1, 20);
+            }
+        } catch (NumberFormatException e) {
+        }
+        if (ac.run()) {
+            status.setText("solved " + ac.getFrequencies().length
+                    + " frequencies in " + ac.getSolveTime() / 1000 + " us");
+        } else {
+            status.setText(ac.getStopMessage());
+        }
+        cframe.needAnalyze();
+        plot.repaint();
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        if (e.getSource() == closeButton) {
+            closeDialog();
+            return;
+        }
+        runAnalysis();
+    }
+
+    protected void closeDialog() {
+        cframe.main.requestFocus();
+        setVisible(false);
+        dispose();
+    }
+
+    class PlotCanvas extends Canvas {
+
+        public void paint(Graphics g) {
+            Dimension d = getSize();
+            g.setColor(Color.black);
+            g.fillRect(0, 0, d.width, d.height);
+            if (ac.re == null || ac.getOutputCount() == 0) {
+                g.setColor(Color.white);
+                g.drawString((ac.getOutputCount() == 0)
+                        ? "Add a scope to choose the outputs" : "No results",
+                        10, 20);
+                return;
+            }
+            int h = d.height / 2;
+            drawGraph(g, 0, h, d.width, true);
+            drawGraph(g, h, d.height - h, d.width, false);
+        }
+
+        // draw magnitude or phase of every output in the band from y to
+        // y+h
+        void drawGraph(Graphics g, int y, int h, int w, boolean mag) {
+            double fr[] = ac.getFrequencies();
+            int nf = fr.length;
+            int p, k;
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+            if (mag) {
+                for (p = 0; p != ac.getOutputCount(); p++) {
+                    for (k = 0; k != nf; k++) {
+                        double v = ac.getMagnitudeDB(p, k);
+                        if (!Double.isNaN(v) && !Double.isInfinite(v)) {
+                            lo = Math.min(lo, v);
+                            hi = Math.max(hi, v);
+                        }
+                    }
+                }
+                if (lo > hi) {
+                    lo = -20;
+                    hi = 0;
+                }
+                // round out to 10 dB
+                lo = Math.floor(lo / 10 - .01) * 10;
+                hi = Math.ceil(hi / 10 + .01) * 10;
+            } else {
+                lo = -180;
+                hi = 180;
+            }
+            int left = 50, top = y + 10, gw = w - left - 10, gh = h - 30;
+            double l0 = Math.log10(fr[0]), l1 = Math.log10(fr[nf - 1]);
+            // grid: decades across, steps of 10 dB or 45 degrees down
+            g.setColor(Color.darkGray);
+            int dec;
+            for (dec = (int) Math.ceil(l0); dec <= l1; dec++) {
+                int x = left + (int) (gw * (dec - l0) / (l1 - l0));
+                g.drawLine(x, top, x, top + gh);
+                g.setColor(Color.lightGray);
+                g.drawString(CircuitElm.getShortUnitText(Math.pow(10, dec),
+                        "Hz"), x - 10, top + gh + 14);
+                g.setColor(Color.darkGray);
+            }
+            double step = mag ? ((hi - lo > 100) ? 20 : 10) : 45;
+            double v;
+            for (v = lo; v <= hi; v += step) {
+                int yy = top + gh - (int) (gh * (v - lo) / (hi - lo));
+                g.setColor(Color.darkGray);
+                g.drawLine(left, yy, left + gw, yy);
+                g.setColor(Color.lightGray);
+                g.drawString((int) v + (mag ? "dB" : "deg"), 2, yy + 4);
+            }
+            for (p = 0; p != ac.getOutputCount(); p++) {
+                g.setColor(colors[p % colors.length]);
+                int lx = -1, ly = -1;
+                for (k = 0; k != nf; k++) {
+                    double q = mag ? ac.getMagnitudeDB(p, k) : ac.getPhase(p, k);
+                    if (Double.isNaN(q) || Double.isInfinite(q)) {
+                        lx = -1;
+                        continue;
+                    }
+                    int x = left + (int) (gw * (Math.log10(fr[k]) - l0)
+                            / (l1 - l0));
+                    int yy = top + gh - (int) (gh * (q - lo) / (hi - lo));
+                    // don't join the jump where the phase wraps around
+                    if (lx >= 0 && (mag || Math.abs(yy - ly) < gh / 2)) {
+                        g.drawLine(lx, ly, x, yy);
+                    }
+                    lx = x;
+                    ly = yy;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.falstad.circuit;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// dense solver for the bigger dense parts (coupled transformer banks,
+// long transmission line models), where DenseMatrixSolver's Crout loops
+// spend their time walking down columns of a double[][].  The matrix is
+// one row-major array, and the LU is right-looking and blocked: a panel
+// of BLOCK columns is factored, the rows of U to its right are solved
+// for, and then the rest of the matrix is updated with
+//
+//   A22 -= L21 U12
+//
+// as row-by-row axpys over contiguous memory, BLOCK rows of U12 at a
+// time, a column tile at a time, so U12 stays in cache.  Those inner
+// loops are plain unit-stride loops the JIT can vectorize.
+//
+// Pivoting is the same as lu_factor()'s (largest element in the column,
+// whole rows swapped), so the factors are the same up to rounding.
+//
+// With more than one thread, the columns right of each panel are split
+// between tasks on the shared pool (CircuitSimulator.getComponentPool());
+// each task solves for its columns of U12 and updates them all the way
+// down, so the tasks never touch the same memory.  Only the panel is
+// factored on one thread.
+public class BlockedMatrixSolver extends MatrixSolver {
+
+    // columns per panel
+    static final int BLOCK = 32;
+    // columns per tile of the trailing update
+    static final int TILE = 256;
+    // matrices this big are factored on all PARALLEL_THREADS threads
+    static final int PARALLEL_MIN_SIZE = 256;
+    // fewest columns worth a task of their own
+    static final int TASK_MIN_COLUMNS = 64;
+
+    double matrix[], origMatrix[];
+    int permute[];
+    int threads;
+    // a U12 tile for each task
+    double pack[][];
+    // nanoseconds taken by the last factor and solve, and totals
+    long factorTime, solveTime, totalFactorTime, totalSolveTime;
+    int factorCount, solveCount;
+
+    public BlockedMatrixSolver(int n) {
+        this(n, (n >= PARALLEL_MIN_SIZE) ? CircuitSimulator.PARALLEL_THREADS
+                : 1);
+    }
+
+    public BlockedMatrixSolver(int n, int threads) {
+        size = n;
+        this.threads = Math.max(1, threads);
+        matrix = new double[n * n];
+        origMatrix = new double[n * n];
+        permute = new int[n];
+        pack = new double[this.threads][BLOCK * Math.min(TILE, n)];
+    }
+
+    public void add(int i, int j, double x) {
+        matrix[i * size + j] += x;
+    }
+
+    public double get(int i, int j) {
+        return matrix[i * size + j];
+    }
+
+    public int getSlot(int i, int j) {
+        return i * size + j;
+    }
+
+    public void addSlot(int slot, double x) {
+        matrix[slot] += x;
+    }
+
+    public void saveOriginal() {
+        System.arraycopy(matrix, 0, origMatrix, 0, matrix.length);
+    }
+
+    public void restoreOriginal() {
+        System.arraycopy(origMatrix, 0, matrix, 0, matrix.length);
+    }
+
+    public boolean isFinite() {
+        int i;
+        for (i = 0; i != matrix.length; i++) {
+            double x = matrix[i];
+            if (Double.isNaN(x) || Double.isInfinite(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void addOriginal(int i, int j, double x) {
+        origMatrix[i * size + j] += x;
+    }
+
+    protected boolean factorMatrix() {
+        long t0 = System.nanoTime();
+        boolean ok = factorBlocked();
+        factorTime = System.nanoTime() - t0;
+        totalFactorTime += factorTime;
+        factorCount++;
+        return ok;
+    }
+
+    boolean factorBlocked() {
+        double a[] = matrix;
+        int n = size;
+        int i, j, kb;
+
+        // if a row is all zeros, it's a singular matrix
+        for (i = 0; i != n; i++) {
+            int ri = i * n;
+            for (j = 0; j != n; j++) {
+                if (a[ri + j] != 0) {
+                    break;
+                }
+            }
+            if (j == n) {
+                return false;
+            }
+        }
+
+        for (kb = 0; kb < n; kb += BLOCK) {
+            int kend = Math.min(kb + BLOCK, n);
+            factorPanel(kb, kend);
+            if (kend == n) {
+                break;
+            }
+            if (!updateTrailing(kb, kend)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // factor columns kb to kend-1, rows kb and below, pivoting as we go
+    void factorPanel(int kb, int kend) {
+        double a[] = matrix;
+        int n = size;
+        int i, j, k;
+        for (j = kb; j != kend; j++) {
+            double largest = 0;
+            int largestRow = -1;
+            for (i = j; i != n; i++) {
+                double x = Math.abs(a[i * n + j]);
+                if (x >= largest) {
+                    largest = x;
+                    largestRow = i;
+                }
+            }
+
+            // pivoting
+            if (j != largestRow) {
+                int r1 = j * n, r2 = largestRow * n;
+                for (k = 0; k != n; k++) {
+                    double x = a[r1 + k];
+                    a[r1 + k] = a[r2 + k];
+                    a[r2 + k] = x;
+                }
+            }
+            permute[j] = largestRow;
+
+            int rj = j * n;
+            // avoid zeros
+            if (a[rj + j] == 0.0) {
+                System.out.println("avoided zero");
+                a[rj + j] = 1e-18;
+            }
+
+            double mult = 1.0 / a[rj + j];
+            for (i = j + 1; i != n; i++) {
+                int ri = i * n;
+                double l = a[ri + j] *= mult;
+                if (l == 0) {
+                    continue;
+                }
+                for (k = j + 1; k != kend; k++) {
+                    a[ri + k] -= l * a[rj + k];
+                }
+            }
+        }
+    }
+
+    // everything right of the panel in columns kb to kend-1: U12 and the
+    // trailing update, split between tasks if there are threads for it.
+    // Returns false if the thread was interrupted, leaving the factors
+    // unfinished.
+    boolean updateTrailing(final int kb, final int kend) {
+        int n = size;
+        int tasks = Math.min(threads, (n - kend) / TASK_MIN_COLUMNS);
+        if (tasks < 2) {
+            updateColumns(kb, kend, kend, n, pack[0]);
+            return true;
+        }
+        int width = (n - kend + tasks - 1) / tasks;
+        Vector<Callable<Void>> list = new Vector<Callable<Void>>();
+        int t;
+        for (t = 0; t != tasks; t++) {
+            final int col0 = kend + t * width;
+            final int col1 = Math.min(col0 + width, n);
+            final double p[] = pack[t];
+            list.add(new Callable<Void>() {
+                public Void call() {
+                    updateColumns(kb, kend, col0, col1, p);
+                    return null;
+                }
+            });
+        }
+        try {
+            Vector<Future<Void>> results = new Vector<Future<Void>>(
+                    CircuitSimulator.getComponentPool().invokeAll(list));
+            for (t = 0; t != results.size(); t++) {
+                results.get(t).get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    // columns col0 to col1-1 right of the panel in columns kb to kend-1:
+    // solve L11 U12 = A12 for their part of U12, then A22 -= L21 U12.
+    // Each tile of U12 is copied to pack[] first: the copy is
+    // contiguous, and with the rows of U in a different array than the
+    // ones being updated the JIT knows the loads and stores don't
+    // overlap, so it can vectorize.
+    void updateColumns(int kb, int kend, int col0, int col1,
+            double pack[]) {
+        double a[] = matrix;
+        int n = size;
+        int nk = kend - kb;
+        int i, j, k, c0;
+        for (c0 = col0; c0 < col1; c0 += TILE) {
+            int w = Math.min(TILE, col1 - c0);
+            for (i = kb + 1; i != kend; i++) {
+                int ri = i * n + c0;
+                for (k = kb; k != i; k++) {
+                    double l = a[i * n + k];
+                    if (l == 0) {
+                        continue;
+                    }
+                    int rk = k * n + c0;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l * a[rk + j];
+                    }
+                }
+            }
+            for (k = 0; k != nk; k++) {
+                System.arraycopy(a, (kb + k) * n + c0, pack, k * w, w);
+            }
+            for (i = kend; i != n; i++) {
+                int ri = i * n + c0;
+                int li = i * n + kb;
+                // four rows of U at a time, so each element of the row
+                // is loaded and stored once per four
+                for (k = 0; k + 4 <= nk; k += 4) {
+                    double l0 = a[li + k], l1 = a[li + k + 1];
+                    double l2 = a[li + k + 2], l3 = a[li + k + 3];
+                    if (l0 == 0 && l1 == 0 && l2 == 0 && l3 == 0) {
+                        continue;
+                    }
+                    int p0 = k * w;
+                    int p1 = p0 + w, p2 = p1 + w, p3 = p2 + w;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l0 * pack[p0 + j] + l1 * pack[p1 + j]
+                                + l2 * pack[p2 + j] + l3 * pack[p3 + j];
+                    }
+                }
+                for (; k != nk; k++) {
+                    double l = a[li + k];
+                    if (l == 0) {
+                        continue;
+                    }
+                    int p = k * w;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l * pack[p + j];
+                    }
+                }
+            }
+        }
+    }
+
+    protected void solveFactored(double b[]) {
+        long t0 = System.nanoTime();
+        substitute(b);
+        solveTime = System.nanoTime() - t0;
+        totalSolveTime += solveTime;
+        solveCount++;
+    }
+
+    void substitute(double b[]) {
+        double a[] = matrix;
+        int n = size;
+        int i, j;
+
+        for (i = 0; i != n; i++) {
+            int row = permute[i];
+            double swap = b[row];
+            b[row] = b[i];
+            b[i] = swap;
+        }
+
+        // forward substitution using the lower triangular matrix,
+        // starting at the first nonzero element
+        int bi;
+        for (bi = 0; bi != n && b[bi] == 0; bi++) {
+        }
+        for (i = bi + 1; i < n; i++) {
+            int ri = i * n;
+            double tot = b[i];
+            for (j = bi; j != i; j++) {
+                tot -= a[ri + j] * b[j];
+            }
+            b[i] = tot;
+        }
+
+        // back-substitution using the upper triangular matrix
+        for (i = n - 1; i >= 0; i--) {
+            int ri = i * n;
+            double tot = b[i];
+            for (j = i + 1; j != n; j++) {
+                tot -= a[ri + j] * b[j];
+            }
+            b[i] = tot / a[ri + i];
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // nanoseconds the last factorization took
+    public long getFactorTime() {
+        return factorTime;
+    }
+
+    // nanoseconds the last solve took
+    public long getSolveTime() {
+        return solveTime;
+    }
+
+    public long getTotalFactorTime() {
+        return totalFactorTime;
+    }
+
+    public long getTotalSolveTime() {
+        return totalSolveTime;
+    }
+
+    public int getFactorCount() {
+        return factorCount;
+    }
+
+    public int getSolveCount() {
+        return solveCount;
+    }
+}
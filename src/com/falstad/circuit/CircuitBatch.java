@@ -0,0 +1,327 @@
+package com.falstad.circuit;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// command line front end for CircuitEngine: runs a circuit file with no
+// window and writes the probe traces to stdout as CSV.
+//
+//   java -cp circuit.jar com.falstad.circuit.CircuitBatch -t .01 \
+//       -probe 3 -probe 5:i lrc.txt
+public class CircuitBatch {
+
+    static void usage() {
+        System.err.println("usage: CircuitBatch [options] circuit.txt\n"
+                + "  -t <seconds>        simulate until this time\n"
+                + "  -n <steps>          simulate this many steps\n"
+                + "  -probe <n>[:v|i|p]  record voltage, current or power of\n"
+                + "                      element n (default: what the\n"
+                + "                      circuit's scopes show)\n"
+                + "  -every <k>          record every k-th step\n"
+                + "  -timestep <s>       override the circuit's time step\n"
+                + "  -adaptive           use an adaptive time step\n"
+                + "  -exact              step a linear circuit exactly (by\n"
+                + "                      its matrix exponential)\n"
+                + "  -dc                 start from the DC operating point\n"
+                + "  -pss                start from the periodic steady state\n"
+                + "  -ac <n>[:f0:f1]     AC analysis from source element n\n"
+                + "                      (default 1Hz to 1MHz); writes dB\n"
+                + "                      and degrees of the probed voltages\n"
+                + "  -solver <s>         auto, dense, sparse, schur,\n"
+                + "                      iterative or mixed (dense with\n"
+                + "                      float factors)\n"
+                + "  -method <m>         integrate with trap, euler or gear\n"
+                + "                      (default: each element's own)\n"
+                + "  -stats              print how each part's solver did,\n"
+                + "                      and the steps skipped at rest");
+        System.exit(2);
+    }
+
+    public static void main(String args[]) {
+        System.setProperty("java.awt.headless", "true");
+        double tmax = -1;
+        int steps = -1;
+        int every = 1;
+        double timeStep = 0;
+        boolean adaptive = false;
+        boolean exact = false;
+        boolean dc = false;
+        boolean pss = false;
+        boolean stats = false;
+        String acSpec = null;
+        int solver = MatrixSolver.SOLVER_AUTO;
+        int method = CircuitSimulator.INTEGRATE_ELEMENT;
+        String probes[] = new String[args.length];
+        int probeCount = 0;
+        String file = null;
+        int i;
+        try {
+            for (i = 0; i != args.length; i++) {
+                String a = args[i];
+                if (a.equals("-t")) {
+                    tmax = Double.parseDouble(args[++i]);
+                } else if (a.equals("-n")) {
+                    steps = Integer.parseInt(args[++i]);
+                } else if (a.equals("-every")) {
+                    every = Integer.parseInt(args[++i]);
+                } else if (a.equals("-probe")) {
+                    probes[probeCount++] = args[++i];
+                } else if (a.equals("-timestep")) {
+                    timeStep = Double.parseDouble(args[++i]);
+                } else if (a.equals("-adaptive")) {
+                    adaptive = true;
+                } else if (a.equals("-exact")) {
+                    exact = true;
+                } else if (a.equals("-dc")) {
+                    dc = true;
+                } else if (a.equals("-pss")) {
+                    pss = true;
+                } else if (a.equals("-stats")) {
+                    stats = true;
+                } else if (a.equals("-ac")) {
+                    acSpec = args[++i];
+                } else if (a.equals("-method")) {
+                    String s = args[++i];
+                    method = s.equals("trap") ? CircuitSimulator.INTEGRATE_TRAPEZOIDAL
+                            : s.equals("euler") ? CircuitSimulator.INTEGRATE_BACK_EULER
+                            : s.equals("gear") ? CircuitSimulator.INTEGRATE_GEAR
+                            : CircuitSimulator.INTEGRATE_ELEMENT;
+                } else if (a.equals("-solver")) {
+                    String s = args[++i];
+                    solver = s.equals("dense") ? MatrixSolver.SOLVER_DENSE
+                            : s.equals("sparse") ? MatrixSolver.SOLVER_SPARSE
+                            : s.equals("schur") ? MatrixSolver.SOLVER_SCHUR
+                            : s.equals("iterative") ? MatrixSolver.SOLVER_ITERATIVE
+                            : s.equals("mixed") ? MatrixSolver.SOLVER_MIXED
+                            : MatrixSolver.SOLVER_AUTO;
+                } else if (a.startsWith("-") || file != null) {
+                    usage();
+                } else {
+                    file = a;
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (file == null || (tmax < 0 && steps < 0 && acSpec == null)) {
+            usage();
+        }
+
+        String text;
+        try {
+            text = new String(Files.readAllBytes(Paths.get(file)));
+        } catch (Exception e) {
+            System.err.println("can't read " + file + ": " + e);
+            System.exit(1);
+            return;
+        }
+
+        // the simulator prints progress messages on stdout
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        CircuitEngine engine = new CircuitEngine();
+        CircuitSimulator sim = engine.getSimulator();
+        boolean ok = engine.load(text);
+        // these make the next step analyze the circuit again
+        if (timeStep > 0) {
+            sim.setTimeStep(timeStep);
+            sim.needAnalyze();
+        }
+        if (adaptive) {
+            sim.setAdaptiveTimeStep(true);
+        }
+        if (method != CircuitSimulator.INTEGRATE_ELEMENT) {
+            sim.setIntegrationMethod(method);
+        }
+        if (exact) {
+            sim.setExactStepping(true);
+        }
+        if (solver != MatrixSolver.SOLVER_AUTO) {
+            sim.setSolverType(solver);
+        }
+        if (ok) {
+            for (i = 0; i != probeCount; i++) {
+                String spec = probes[i];
+                int type = CircuitEngine.PROBE_VOLTAGE;
+                int c = spec.indexOf(':');
+                if (c >= 0) {
+                    char k = Character.toLowerCase(spec.charAt(c + 1));
+                    type = (k == 'i') ? CircuitEngine.PROBE_CURRENT
+                            : (k == 'p') ? CircuitEngine.PROBE_POWER
+                            : CircuitEngine.PROBE_VOLTAGE;
+                    spec = spec.substring(0, c);
+                }
+                if (engine.addProbe(Integer.parseInt(spec), type) < 0) {
+                    System.err.println("no element " + spec);
+                    System.exit(2);
+                }
+            }
+            if (probeCount == 0) {
+                engine.addScopeProbes();
+            }
+            if (acSpec != null) {
+                System.exit(runAC(engine, acSpec, out) ? 0 : 1);
+            }
+            engine.setSampleInterval(every);
+            if (dc) {
+                engine.operatingPoint();
+                System.err.println((sim.getDCMessage() != null)
+                        ? sim.getDCMessage() : "DC operating point not found");
+            }
+            if (pss) {
+                PeriodicSteadyState ss = new PeriodicSteadyState(sim);
+                if (ss.run()) {
+                    System.err.println("periodic steady state: period "
+                            + ss.getPeriod() + "s, " + ss.getStateCount()
+                            + " state variables, " + ss.getIterations()
+                            + " iterations, " + ss.getPeriods()
+                            + " periods simulated in "
+                            + ss.getSolveTime() / 1000000 + " ms");
+                } else {
+                    System.err.println("periodic steady state not found: "
+                            + ss.getStopMessage());
+                }
+            }
+            if (steps >= 0) {
+                ok = engine.run(steps);
+            }
+            if (ok && tmax >= 0) {
+                ok = engine.runUntil(tmax);
+            }
+        }
+        System.setOut(out);
+
+        int np = engine.getProbeCount();
+        StringBuilder sb = new StringBuilder("t");
+        int p;
+        for (p = 0; p != np; p++) {
+            sb.append(',').append(engine.getProbeName(p));
+        }
+        out.println(sb);
+        double times[] = engine.getTimes();
+        double traces[][] = new double[np][];
+        for (p = 0; p != np; p++) {
+            traces[p] = engine.getTrace(p);
+        }
+        for (i = 0; i != times.length; i++) {
+            sb.setLength(0);
+            sb.append(times[i]);
+            for (p = 0; p != np; p++) {
+                sb.append(',').append(traces[p][i]);
+            }
+            out.println(sb);
+        }
+        out.flush();
+        if (stats || solver == MatrixSolver.SOLVER_ITERATIVE
+                || solver == MatrixSolver.SOLVER_MIXED) {
+            printSolverStats(sim);
+        }
+        if (stats && sim.getRestSteps() > 0) {
+            System.err.println("resting: " + sim.getRestSteps()
+                    + " steps skipped");
+        }
+        if (exact) {
+            ExactStepper es = sim.getExactStepper();
+            if (es != null) {
+                System.err.println("exact stepping: " + es.getStateCount()
+                        + " state variables (" + es.getDynamicCount()
+                        + " dynamic), built in " + es.getBuildTime() / 1000000
+                        + " ms, " + es.getStepCount() + " steps");
+            } else if (sim.getExactStepMessage() != null) {
+                System.err.println("not stepped exactly: "
+                        + sim.getExactStepMessage());
+            }
+        }
+        if (!ok) {
+            System.err.println("stopped at t=" + engine.getTime() + ": "
+                    + engine.getStopMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // how the iterative, blocked dense and mixed precision solvers did
+    // in each part of the circuit
+    static void printSolverStats(CircuitSimulator sim) {
+        int i;
+        for (i = 0; sim.components != null && i != sim.components.length; i++) {
+            CircuitComponent comp = sim.components[i];
+            if (comp.solver instanceof MixedMatrixSolver) {
+                MixedMatrixSolver s = (MixedMatrixSolver) comp.solver;
+                System.err.println("part " + i + ": " + comp.size
+                        + " rows, float factors, " + s.getFactorCount()
+                        + " factors, " + s.getSolveCount() + " solves, "
+                        + s.getRefineCount() + " refinement steps, "
+                        + s.getFallbackCount() + " double fallbacks");
+                continue;
+            }
+            if (comp.solver instanceof BlockedMatrixSolver) {
+                BlockedMatrixSolver s = (BlockedMatrixSolver) comp.solver;
+                int nf = Math.max(1, s.getFactorCount());
+                int ns = Math.max(1, s.getSolveCount());
+                System.err.println("part " + i + ": " + comp.size
+                        + " rows, blocked dense LU on " + s.getThreads()
+                        + " threads, " + s.getFactorCount() + " factors, "
+                        + s.getTotalFactorTime() / nf / 1000 + " us each, "
+                        + s.getSolveCount() + " solves, "
+                        + s.getTotalSolveTime() / ns / 1000 + " us each");
+                continue;
+            }
+            if (!(comp.solver instanceof IterativeMatrixSolver)) {
+                continue;
+            }
+            IterativeMatrixSolver s = (IterativeMatrixSolver) comp.solver;
+            System.err.println("part " + i + ": " + comp.size + " rows, "
+                    + (s.isILU() ? "ILU(0)" : "Jacobi") + ", "
+                    + s.getSolveCount() + " solves, "
+                    + s.getIterationCount() + " iterations, last "
+                    + s.getLastIterations() + " to residual "
+                    + s.getLastResidual() + ", worst residual "
+                    + s.getMaxResidual() + ", " + s.getFallbackCount()
+                    + " direct fallbacks");
+        }
+    }
+
+    // write the frequency response from the source in spec to the probes
+    static boolean runAC(CircuitEngine engine, String spec, PrintStream out) {
+        String f[] = spec.split(":");
+        ACAnalysis ac = new ACAnalysis(engine.getSimulator());
+        CircuitElm in = engine.getElement(Integer.parseInt(f[0]));
+        if (in == null) {
+            System.err.println("no element " + f[0]);
+            return false;
+        }
+        ac.setInput(in);
+        if (f.length == 3) {
+            ac.setFrequencies(Double.parseDouble(f[1]),
+                    Double.parseDouble(f[2]), 20);
+        } else {
+            ac.setFrequencies(1, 1e6, 20);
+        }
+        int p, k;
+        StringBuilder sb = new StringBuilder("f");
+        for (p = 0; p != engine.getProbeCount(); p++) {
+            ac.addOutput(engine.probeElm[p]);
+            String name = engine.getProbeName(p);
+            sb.append(',').append(name).append(" dB,").append(name).append(" deg");
+        }
+        if (!ac.run()) {
+            System.err.println("AC analysis failed: " + ac.getStopMessage());
+            return false;
+        }
+        out.println(sb);
+        double fr[] = ac.getFrequencies();
+        for (k = 0; k != fr.length; k++) {
+            sb.setLength(0);
+            sb.append(fr[k]);
+            for (p = 0; p != ac.getOutputCount(); p++) {
+                sb.append(',').append(ac.getMagnitudeDB(p, k));
+                sb.append(',').append(ac.getPhase(p, k));
+            }
+            out.println(sb);
+        }
+        out.flush();
+        return true;
+    }
+}
@@ -0,0 +1,303 @@
+package com.falstad.circuit;
+
+// One electrically separate part of the simplified circuit matrix: rows
+// that share no matrix entries (and no element) with the rest of the
+// circuit, such as two circuits that only have ground in common.
+// analyzeCircuit() gives each part its own solver and right side, and
+// stepCircuit() runs the convergence loop of each part on its own,
+// possibly on different threads.  So a linear part is solved once per
+// step however many iterations a diode elsewhere takes.
+public class CircuitComponent {
+
+    CircuitSimulator sim;
+    int index;
+    int size;
+    MatrixSolver solver;
+    double rightSide[], origRightSide[];
+    boolean nonLinear;
+    // elements whose doStep() stamps into this part, grouped by class
+    // (only those that override doStep())
+    CircuitElm elms[];
+    int elmCount;
+    // elements whose calculateCurrent() does something, also grouped by
+    // class.  The nonlinear ones need their currents after every
+    // iteration (an SCR's doStep() looks at its own), and so do those
+    // with voltage sources, whose setCurrent() has to come after it (a
+    // logic input's switch would zero the source's current); the rest
+    // only once the step is done.
+    CircuitElm iterCurrentElms[], stepCurrentElms[];
+    int iterCurrentCount, stepCurrentCount;
+    // elements that read sim.nodeVoltages[] themselves while iterating
+    // (see CircuitElm.readsNodeVoltages()); they get volts[] at the end
+    CircuitElm directElms[];
+    int directCount;
+    // results to hand out after each solve: full matrix row outRow[k]
+    // goes to post outNum[k] of outElm[k], or to the current of the
+    // element's voltage source if outNum[k] is -1
+    int outRow[], outNum[];
+    CircuitElm outElm[];
+    int outCount;
+    // the node rows come first, outputs 0 to outNodeCount-1
+    int outNodeCount;
+    // set by the elements through sim.setConverged()
+    boolean converged;
+    int subIterations;
+    // diagonal entries of the node rows, where a DC analysis puts its
+    // gmin conductances
+    int gminRows[], gminCols[];
+    int gminCount;
+
+    CircuitComponent(CircuitSimulator sim, int index) {
+        this.sim = sim;
+        this.index = index;
+        elms = new CircuitElm[4];
+        iterCurrentElms = new CircuitElm[4];
+        stepCurrentElms = new CircuitElm[4];
+        directElms = new CircuitElm[4];
+        outRow = new int[4];
+        outNum = new int[4];
+        outElm = new CircuitElm[4];
+    }
+
+    // add ce to this part; steps is false if its doStep() does nothing,
+    // currents if its calculateCurrent() does nothing.  An element that
+    // reads the node voltages itself only has volts[] once the step is
+    // done, so its current waits until then too.
+    void addElm(CircuitElm ce, boolean steps, boolean currents) {
+        boolean nl = ce.nonLinear();
+        boolean direct = ce.readsNodeVoltages();
+        if (nl) {
+            nonLinear = true;
+        }
+        if (steps) {
+            elms = append(elms, elmCount++, ce);
+        }
+        if (direct) {
+            directElms = append(directElms, directCount++, ce);
+        }
+        if (currents && !direct
+                && (nl || ce.getVoltageSourceCount() > 0)) {
+            iterCurrentElms = append(iterCurrentElms, iterCurrentCount++, ce);
+        } else if (currents) {
+            stepCurrentElms = append(stepCurrentElms, stepCurrentCount++, ce);
+        }
+    }
+
+    // list with ce put at index n, grown if it's full
+    static CircuitElm[] append(CircuitElm list[], int n, CircuitElm ce) {
+        if (n == list.length) {
+            CircuitElm nl[] = new CircuitElm[n * 2];
+            System.arraycopy(list, 0, nl, 0, n);
+            list = nl;
+        }
+        list[n] = ce;
+        return list;
+    }
+
+    void addGminEntry(int row, int col) {
+        if (gminRows == null || gminCount == gminRows.length) {
+            int n = (gminRows == null) ? 16 : gminCount * 2;
+            int nr[] = new int[n];
+            int nc[] = new int[n];
+            if (gminRows != null) {
+                System.arraycopy(gminRows, 0, nr, 0, gminCount);
+                System.arraycopy(gminCols, 0, nc, 0, gminCount);
+            }
+            gminRows = nr;
+            gminCols = nc;
+        }
+        gminRows[gminCount] = row;
+        gminCols[gminCount++] = col;
+    }
+
+    // ce is null for a node row that only needs its voltage noted in
+    // sim.nodeVoltages[]
+    void addOutput(int row, CircuitElm ce, int num) {
+        if (outCount == outRow.length) {
+            int nr[] = new int[outCount * 2];
+            int nn[] = new int[outCount * 2];
+            CircuitElm ne[] = new CircuitElm[outCount * 2];
+            System.arraycopy(outRow, 0, nr, 0, outCount);
+            System.arraycopy(outNum, 0, nn, 0, outCount);
+            System.arraycopy(outElm, 0, ne, 0, outCount);
+            outRow = nr;
+            outNum = nn;
+            outElm = ne;
+        }
+        outRow[outCount] = row;
+        outNum[outCount] = num;
+        outElm[outCount++] = ce;
+        if (num >= 0) {
+            outNodeCount = outCount;
+        }
+    }
+
+    // run one time step of this part: iterate until the nonlinear
+    // elements converge.  Returns the number of iterations, or -1 if the
+    // simulation stopped.
+    int step(boolean debugprint) {
+        final int subiterCount = 5000;
+        int subiter = iterate(subiterCount, debugprint);
+        if (subiter == subiterCount && solver instanceof SchurMatrixSolver
+                && ((SchurMatrixSolver) solver).useWhole()) {
+            // the Schur complement may not be accurate enough; carry on
+            // from where Newton got to with the whole matrix
+            subiter = iterate(subiterCount, debugprint);
+        }
+        if (subiter == subiterCount) {
+            // point at the element that was furthest from converging
+            CircuitElm worst = null;
+            int i;
+            for (i = 0; i != elmCount; i++) {
+                if (elms[i].convergenceError
+                        > ((worst == null) ? 0 : worst.convergenceError)) {
+                    worst = elms[i];
+                }
+            }
+            // with an adaptive time step this stop may be undone, and the
+            // step taken again with a smaller one
+            sim.stepNotConverged = true;
+            sim.stop("Convergence failed!", worst);
+            return -1;
+        }
+        return subiter;
+    }
+
+    // do up to subiterCount iterations; returns the number it took to
+    // converge, subiterCount if it didn't, or -1 if the simulation
+    // stopped
+    int iterate(int subiterCount, boolean debugprint) {
+        int i, j, subiter;
+        double gmin = sim.dcGmin;
+        CircuitComponent last = sim.stepComponent.get();
+        sim.stepComponent.set(this);
+        try {
+            for (subiter = 0; subiter != subiterCount; subiter++) {
+                converged = true;
+                subIterations = subiter;
+                for (i = 0; i != size; i++) {
+                    rightSide[i] = origRightSide[i];
+                }
+                if (nonLinear) {
+                    solver.restoreOriginal();
+                }
+                for (i = 0; i != elmCount; i++) {
+                    elms[i].doStep();
+                }
+                if (nonLinear && gmin > 0) {
+                    for (i = 0; i != gminCount; i++) {
+                        solver.add(gminRows[i], gminCols[i], gmin);
+                    }
+                }
+                if (sim.stopMessage != null) {
+                    return -1;
+                }
+                boolean printit = debugprint;
+                debugprint = false;
+                if (!solver.isFinite()) {
+                    sim.stop("nan/infinite matrix!", null);
+                    return -1;
+                }
+                if (printit) {
+                    for (j = 0; j != size; j++) {
+                        for (i = 0; i != size; i++) {
+                            System.out.print(solver.get(j, i) + ",");
+                        }
+                        System.out.print("  " + rightSide[j] + "\n");
+                    }
+                    System.out.print("\n");
+                }
+                if (nonLinear) {
+                    if (converged && subiter > 0) {
+                        break;
+                    }
+                    if (!solver.refactor()) {
+                        sim.stop("Singular matrix!", null);
+                        return -1;
+                    }
+                }
+                solver.solve(rightSide);
+
+                if (setOutputs(0, outNodeCount)) {
+                    for (i = 0; i != iterCurrentCount; i++) {
+                        iterCurrentElms[i].calculateCurrent();
+                    }
+                    setOutputs(outNodeCount, outCount);
+                }
+                if (!nonLinear) {
+                    break;
+                }
+            }
+            // the voltages are final now
+            for (i = 0; i != directCount; i++) {
+                directElms[i].copyNodeVoltages();
+            }
+            for (i = 0; i != stepCurrentCount; i++) {
+                stepCurrentElms[i].calculateCurrent();
+            }
+        } finally {
+            sim.stepComponent.set(last);
+        }
+        return subiter;
+    }
+
+    // hand out the results of outputs from to to-1, and note each node's
+    // voltage in sim.nodeVoltages[].  Returns false (and clears converged)
+    // if one is NaN.
+    boolean setOutputs(int from, int to) {
+        int j, k;
+        int lastRow = -1;
+        double res = 0;
+        double nodeVoltages[] = sim.nodeVoltages;
+        int nodeRows = nodeVoltages.length - 1;
+        for (k = from; k != to; k++) {
+            j = outRow[k];
+            if (j != lastRow) {
+                RowInfo ri = sim.circuitRowInfo[j];
+                if (ri.type == RowInfo.ROW_CONST) {
+                    res = ri.value;
+                } else {
+                    res = rightSide[ri.mapCol];
+                }
+                lastRow = j;
+                if (Double.isNaN(res)) {
+                    converged = false;
+                    return false;
+                }
+                if (j < nodeRows) {
+                    nodeVoltages[j + 1] = res;
+                }
+            }
+            if (outElm[k] == null) {
+                continue;
+            }
+            if (outNum[k] >= 0) {
+                outElm[k].setNodeVoltage(outNum[k], res);
+            } else {
+                outElm[k].setCurrent(j - nodeRows, res);
+            }
+        }
+        return true;
+    }
+
+    // refactor after the linear part of the matrix changed
+    boolean refactor() {
+        if (nonLinear) {
+            return true;
+        }
+        solver.restoreOriginal();
+        return solver.factor();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public MatrixSolver getSolver() {
+        return solver;
+    }
+
+    public boolean isNonLinear() {
+        return nonLinear;
+    }
+}
@@ -51,6 +51,8 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
     static final int MODE_SELECT = 6;
     JLabel titleLabel;
     JButton resetButton;
+    JButton dcButton;
+    JButton pssButton;
     JButton dumpMatrixButton;
     JMenuItem exportItem, exportLinkItem, importItem, undoItem, redoItem,
             cutItem, copyItem, pasteItem, selectAllItem, optionsItem;
@@ -74,6 +76,7 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
     JMenuItem elmCutMenuItem;
     JMenuItem elmCopyMenuItem;
     JMenuItem elmDeleteMenuItem;
+    JMenuItem elmACMenuItem;
     JPopupMenu mainMenu;
     CircuitSimulator sim;
 
@@ -162,10 +165,57 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
             sim.scopes[i].resetGraph();
         }
         sim.analyzeFlag = true;
+        sim.infoMessage = null;
         sim.t = 0;
         sim.cv.repaintCanvas();
     }
 
+    // plot the frequency response from source ce to what the scopes
+    // show
+    static void doACAnalysis(CircuitSimulator sim, CircuitElm ce) {
+        ACAnalysis ac = new ACAnalysis(sim);
+        ac.setInput(ce);
+        int i;
+        for (i = 0; i != sim.scopeCount; i++) {
+            if (sim.scopes[i].getElm() != null) {
+                ac.addOutput(sim.scopes[i].getElm());
+            }
+        }
+        new ACPlotDialog(ac, sim).setVisible(true);
+    }
+
+    // restart from the DC operating point
+    public static void operatingPoint(CircuitSimulator sim) {
+        int i;
+        for (i = 0; i != sim.scopeCount; i++) {
+            sim.scopes[i].resetGraph();
+        }
+        sim.t = 0;
+        sim.stopMessage = null;
+        sim.findOperatingPoint();
+        sim.infoMessage = sim.getDCMessage();
+        sim.cv.repaintCanvas();
+    }
+
+    // jump to the periodic steady state, from wherever the circuit is
+    public static void steadyState(CircuitSimulator sim) {
+        int i;
+        for (i = 0; i != sim.scopeCount; i++) {
+            sim.scopes[i].resetGraph();
+        }
+        sim.stopMessage = null;
+        PeriodicSteadyState pss = new PeriodicSteadyState(sim);
+        if (pss.run()) {
+            sim.infoMessage = "found periodic steady state after "
+                    + pss.getIterations() + " iterations ("
+                    + pss.getPeriods() + " periods)";
+        } else {
+            sim.infoMessage = "periodic steady state not found: "
+                    + pss.getStopMessage();
+        }
+        sim.cv.repaintCanvas();
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
         String ac = e.getActionCommand();
@@ -173,6 +223,12 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
             reset(sim);
             stoppedCheck.setSelected(false);
         }
+        if (e.getSource() == dcButton) {
+            operatingPoint(sim);
+        }
+        if (e.getSource() == pssButton) {
+            steadyState(sim);
+        }
         if (e.getSource() == dumpMatrixButton) {
             sim.dumpMatrix = true;
         }
@@ -227,6 +283,9 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
             }
             sim.doDelete();
         }
+        if (e.getSource() == elmACMenuItem && sim.menuElm != null) {
+            doACAnalysis(sim, sim.menuElm);
+        }
         if (e.getSource() == Scope.elmScopeMenuItem && sim.menuElm != null) {
             int i;
             for (i = 0; i != sim.scopeCount; i++) {
@@ -530,6 +589,7 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
         } else if (sim.mouseElm != null) {
             elmEditMenuItem.setEnabled(sim.mouseElm.getEditInfo(0) != null);
             Scope.elmScopeMenuItem.setEnabled(sim.mouseElm.canViewInScope());
+            elmACMenuItem.setEnabled(ACAnalysis.canBeInput(sim.mouseElm));
             elmMenu.show(e.getComponent(), e.getX(), e.getY());
         } else {
 //            doMainMenuChecks(mainMenu); //TODO
@@ -869,6 +929,10 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
 
         c.add(resetButton = new JButton("Reset"));
         resetButton.addActionListener(this);
+        c.add(dcButton = new JButton("DC Operating Point"));
+        dcButton.addActionListener(this);
+        c.add(pssButton = new JButton("Periodic Steady State"));
+        pssButton.addActionListener(this);
         dumpMatrixButton = new JButton("Dump Matrix");
         //c.add(dumpMatrixButton);
         dumpMatrixButton.addActionListener(this);
@@ -917,6 +981,7 @@ public class CircuitController implements ComponentListener, ActionListener, Adj
         elmMenu.add(elmCutMenuItem = getMenuItem("Cut"));
         elmMenu.add(elmCopyMenuItem = getMenuItem("Copy"));
         elmMenu.add(elmDeleteMenuItem = getMenuItem("Delete"));
+        elmMenu.add(elmACMenuItem = getMenuItem("AC Analysis"));
         c.add(elmMenu);
 
         Scope.scopeMenu = Scope.buildScopeMenu(false, sim);
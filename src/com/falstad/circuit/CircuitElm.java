@@ -12,7 +12,6 @@ public abstract class CircuitElm implements Editable {
 
     private static final int colorScaleCount = 32;
     private static final Color colorScale[] = new Color[colorScaleCount];
-    public static Color whiteColor, selectColor, lightGrayColor;
     protected static final Font unitsFont;
 
     protected Point ps1 = new Point();
@@ -62,6 +61,10 @@ public abstract class CircuitElm implements Editable {
     protected Point point1, point2, lead1, lead2;
     protected double volts[];
     protected double current, curcount;
+    // for nonlinear elements, how far the last doStep() was from
+    // converging: the biggest change in a controlling voltage since the
+    // iteration before
+    protected double convergenceError;
     protected Rectangle boundingBox;
     protected boolean noDiagonal;
     public boolean selected;
@@ -143,19 +146,133 @@ public abstract class CircuitElm implements Editable {
     public void doStep() {
     }
 
+    // called at the end of analyzeCircuit(); elements whose doStep()
+    // stamps the matrix get handles for those entries here (see
+    // CircuitSimulator.getStampHandle()), so stamping them is cheap
+    public void resolveStamps() {
+    }
+
+    // handles for the entries between every pair of the first n nodes;
+    // (a, b) is at a * n + b
+    protected int[] getNodeHandles(int n) {
+        int h[] = new int[n * n];
+        int a, b;
+        for (a = 0; a != n; a++) {
+            for (b = 0; b != n; b++) {
+                h[a * n + b] = sim.getStampHandle(nodes[a], nodes[b]);
+            }
+        }
+        return h;
+    }
+
+    // right side handles for the first n nodes
+    protected int[] getRightSideHandles(int n) {
+        int h[] = new int[n];
+        int a;
+        for (a = 0; a != n; a++) {
+            h[a] = sim.getRightSideHandle(nodes[a]);
+        }
+        return h;
+    }
+
     public void delete() {
     }
 
     public void startIteration() {
     }
 
+    public double getConvergenceError() {
+        return convergenceError;
+    }
+
+    // with an adaptive time step, this is called after each step; return
+    // the largest step that keeps this element's truncation error within
+    // sim.getTimeStepTolerance(), Double.MAX_VALUE if it doesn't matter,
+    // or 0 if the step must not change at all.
+    public double estimateTimeStep() {
+        return Double.MAX_VALUE;
+    }
+
+    // true if estimateTimeStep() comes from the error of the step just
+    // taken, so a step it finds far too big is taken again; false if it
+    // only limits the next step (a source's resolution, or a timer
+    // looking ahead to where it trips)
+    public boolean estimatesError() {
+        return false;
+    }
+
+    // the time step has changed; elements whose stamps depend on it
+    // change them here with sim.updateConductance() and
+    // sim.updateVCCurrentSource().
+    public void timeStepChanged() {
+    }
+
+    // the period of an independent source that changes with time, for
+    // the periodic steady-state analysis: 0 if it doesn't change, or -1
+    // if it changes but not periodically
+    public double getSourcePeriod() {
+        return 0;
+    }
+
+    // false if the element can change while its node voltages and state
+    // stay put: a source that changes with time, or something with a
+    // delay or timer inside.  A circuit of time-invariant elements that
+    // has settled stops being solved (see CircuitSimulator.checkRest()).
+    public boolean isTimeInvariant() {
+        return getSourcePeriod() == 0;
+    }
+
+    // true if what doStep() and startIteration() stamp (if they're
+    // overridden) depends only on the element's state and the time, so a
+    // linear circuit can be stepped with an ExactStepper
+    public boolean hasLinearStep() {
+        return false;
+    }
+
+    // the values this element carries from one time step to the next
+    // (capacitor voltages, inductor currents and whatever else its
+    // integration method keeps), so the periodic steady-state analysis
+    // can read and set them
+    public int getStateCount() {
+        return 0;
+    }
+
+    public void getState(double x[], int n) {
+    }
+
+    public void setState(double x[], int n) {
+    }
+
     public double getPostVoltage(int x) {
         return volts[x];
     }
 
+    // the simulator calls calculateCurrent() itself once the posts are
+    // all set (see CircuitComponent.iterate())
     public void setNodeVoltage(int n, double c) {
         volts[n] = c;
-        calculateCurrent();
+    }
+
+    // true if doStep() reads its node voltages with nodeVoltage() rather
+    // than from volts[].  The solver then doesn't hand this element its
+    // voltages after every iteration, only once the step is done (with
+    // copyNodeVoltages(), before calculateCurrent()).
+    public boolean readsNodeVoltages() {
+        return false;
+    }
+
+    // the voltage of node n from the last solve
+    protected final double nodeVoltage(int n) {
+        return sim.nodeVoltages[nodes[n]];
+    }
+
+    // fill in volts[] from the last solve
+    void copyNodeVoltages() {
+        int i;
+        double v[] = sim.nodeVoltages;
+        for (i = 0; i != nodes.length; i++) {
+            volts[i] = v[nodes[i]];
+        }
     }
 
     public void calculateCurrent() {
@@ -422,7 +539,7 @@ public abstract class CircuitElm implements Editable {
     }
 
     public void drawPost(Graphics g, int x0, int y0) {
-        g.setColor(whiteColor);
+        g.setColor(sim.getWhiteColor());
         g.fillOval(x0 - 3, y0 - 3, 7, 7);
     }
 
@@ -493,7 +610,7 @@ public abstract class CircuitElm implements Editable {
         g.setFont(unitsFont);
         FontMetrics fm = g.getFontMetrics();
         int w = fm.stringWidth(s);
-        g.setColor(whiteColor);
+        g.setColor(sim.getWhiteColor());
         int ya = fm.getAscent() / 2;
         int xc, yc;
         if (this instanceof RailElm || this instanceof SweepElm) {
@@ -694,13 +811,13 @@ public abstract class CircuitElm implements Editable {
 
     public void setVoltageColor(Graphics g, double volts) {
         if (needsHighlight()) {
-            g.setColor(selectColor);
+            g.setColor(sim.getSelectColor());
             return;
         }
         if (!sim.isShowingVoltage()) {
             if (!sim.isShowingPowerDissipation()) // && !conductanceCheckItem.getState())
             {
-                g.setColor(whiteColor);
+                g.setColor(sim.getWhiteColor());
             }
             return;
         }
@@ -0,0 +1,268 @@
+package com.falstad.circuit;
+
+// Runs a circuit without any user interface: load a dump (the same text
+// the File menu exports), then step it as fast as possible, recording
+// probe values along the way.  Nothing here touches Graphics, Swing or
+// the wall clock.
+//
+//   CircuitEngine e = new CircuitEngine();
+//   e.load(text);
+//   int p = e.addProbe(3, CircuitEngine.PROBE_VOLTAGE);
+//   e.runUntil(.01);
+//   double v[] = e.getTrace(p);
+public class CircuitEngine {
+
+    public static final int PROBE_VOLTAGE = 0;
+    public static final int PROBE_CURRENT = 1;
+    public static final int PROBE_POWER = 2;
+
+    // element classes known to the loader: the ones the Draw menu in
+    // CircuitController registers, less those that are missing or not
+    // public (which can't be loaded there either)
+    static final String elementClasses[] = {
+        "WireElm", "ResistorElm", "CapacitorElm", "InductorElm",
+        "SwitchElm", "PushSwitchElm", "Switch2Elm", "PotElm",
+        "TransformerElm", "TappedTransformerElm", "TransLineElm",
+        "RelayElm", "MemristorElm", "SparkGapElm", "GroundElm",
+        "DCVoltageElm", "ACVoltageElm", "RailElm", "ACRailElm",
+        "SquareRailElm", "OutputElm", "LogicInputElm", "LogicOutputElm",
+        "ClockElm", "SweepElm", "VarRailElm", "AntennaElm", "AMElm",
+        "FMElm", "CurrentElm", "LEDElm", "LampElm", "LEDMatrixElm",
+        "DiodeElm", "ZenerElm", "NTransistorElm", "PTransistorElm",
+        "OpAmpElm", "OpAmpSwapElm", "NMosfetElm", "PMosfetElm",
+        "NJfetElm", "PJfetElm", "AnalogSwitchElm", "AnalogSwitch2Elm",
+        "TriStateElm", "SchmittElm", "InvertingSchmittElm", "SCRElm",
+        "TunnelDiodeElm", "TriodeElm", "CC2Elm", "CC2NegElm",
+        "InverterElm", "NandGateElm", "NorGateElm", "AndGateElm",
+        "OrGateElm", "XorGateElm", "DFlipFlopElm", "JKFlipFlopElm",
+        "TFlipFlopElm", "SevenSegElm", "SevenSegDecoderElm",
+        "MultiplexerElm", "DeMultiplexerElm", "SipoShiftElm",
+        "PisoShiftElm", "PhaseCompElm", "CounterElm", "DecadeElm",
+        "TimerElm", "DACElm", "ADCElm", "LatchElm", "SRAMElm",
+        "SeqGenElm", "VCOElm", "FullAdderElm", "HalfAdderElm", "TextElm",
+        "BoxElm", "ProbeElm"
+    };
+
+    CircuitSimulator sim;
+
+    int probeCount;
+    CircuitElm probeElm[];
+    int probeType[];
+
+    // recorded samples; sample k was taken at times[k]
+    int sampleCount;
+    int sampleInterval = 1;
+    int stepsSinceSample;
+    double times[];
+    double traces[][];
+
+    public CircuitEngine() {
+        sim = new CircuitSimulator(false);
+        sim.initHeadless(elementClasses);
+        probeElm = new CircuitElm[4];
+        probeType = new int[4];
+        traces = new double[4][];
+        times = new double[256];
+    }
+
+    public CircuitSimulator getSimulator() {
+        return sim;
+    }
+
+    // load a circuit in the dump format and analyze it.  Returns false
+    // if the circuit can't be simulated; getStopMessage() says why.
+    public boolean load(String text) {
+        sim.readSetup(text);
+        sim.t = 0;
+        clearProbes();
+        return analyze();
+    }
+
+    boolean analyze() {
+        sim.stopMessage = null;
+        sim.analyzeCircuit();
+        sim.analyzeFlag = false;
+        return sim.stopMessage == null && sim.components != null;
+    }
+
+    // start from the DC operating point instead of everything at zero.
+    // Returns false if it couldn't be found; the circuit is then reset.
+    public boolean operatingPoint() {
+        if (sim.analyzeFlag && !analyze()) {
+            return false;
+        }
+        return sim.findOperatingPoint();
+    }
+
+    public String getStopMessage() {
+        return sim.stopMessage;
+    }
+
+    public double getTime() {
+        return sim.t;
+    }
+
+    public int getElementCount() {
+        return sim.elmListSize();
+    }
+
+    public CircuitElm getElement(int n) {
+        return sim.getElm(n);
+    }
+
+    // record every n-th step only
+    public void setSampleInterval(int n) {
+        sampleInterval = (n < 1) ? 1 : n;
+    }
+
+    // add a probe on element n; returns the probe number, or -1 if
+    // there's no such element
+    public int addProbe(int n, int type) {
+        CircuitElm ce = sim.getElm(n);
+        if (ce == null) {
+            return -1;
+        }
+        if (probeCount == probeElm.length) {
+            CircuitElm ne[] = new CircuitElm[probeCount * 2];
+            int nt[] = new int[probeCount * 2];
+            double ntr[][] = new double[probeCount * 2][];
+            System.arraycopy(probeElm, 0, ne, 0, probeCount);
+            System.arraycopy(probeType, 0, nt, 0, probeCount);
+            System.arraycopy(traces, 0, ntr, 0, probeCount);
+            probeElm = ne;
+            probeType = nt;
+            traces = ntr;
+        }
+        probeElm[probeCount] = ce;
+        probeType[probeCount] = type;
+        // a probe added late reads 0 for the earlier samples
+        traces[probeCount] = new double[times.length];
+        return probeCount++;
+    }
+
+    // add probes for whatever the circuit's scopes were showing
+    public void addScopeProbes() {
+        int i;
+        for (i = 0; i != sim.scopeCount; i++) {
+            Scope s = sim.scopes[i];
+            int n = sim.locateElm(s.elm);
+            if (n < 0) {
+                continue;
+            }
+            if (s.showV) {
+                addProbe(n, PROBE_VOLTAGE);
+            }
+            if (s.showI) {
+                addProbe(n, PROBE_CURRENT);
+            }
+        }
+    }
+
+    public void clearProbes() {
+        probeCount = 0;
+        sampleCount = 0;
+        stepsSinceSample = 0;
+    }
+
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    public String getProbeName(int p) {
+        String s = sim.locateElm(probeElm[p]) + ":"
+                + probeElm[p].getClass().getSimpleName();
+        switch (probeType[p]) {
+            case PROBE_CURRENT:
+                return s + ":I";
+            case PROBE_POWER:
+                return s + ":P";
+        }
+        return s + ":V";
+    }
+
+    double probeValue(int p) {
+        CircuitElm ce = probeElm[p];
+        switch (probeType[p]) {
+            case PROBE_CURRENT:
+                return ce.getCurrent();
+            case PROBE_POWER:
+                return ce.getPower();
+        }
+        return ce.getVoltageDiff();
+    }
+
+    void sample() {
+        int p;
+        if (sampleCount == times.length) {
+            int n = sampleCount * 2;
+            double nt[] = new double[n];
+            System.arraycopy(times, 0, nt, 0, sampleCount);
+            times = nt;
+            for (p = 0; p != probeCount; p++) {
+                double tr[] = new double[n];
+                System.arraycopy(traces[p], 0, tr, 0, sampleCount);
+                traces[p] = tr;
+            }
+        }
+        times[sampleCount] = sim.t;
+        for (p = 0; p != probeCount; p++) {
+            traces[p][sampleCount] = probeValue(p);
+        }
+        sampleCount++;
+    }
+
+    // run one time step.  Returns false if the simulation stopped.
+    public boolean step() {
+        if (sim.analyzeFlag && !analyze()) {
+            return false;
+        }
+        if (sim.components == null || sim.stopMessage != null) {
+            return false;
+        }
+        if (!sim.stepCircuit()) {
+            return false;
+        }
+        if (++stepsSinceSample >= sampleInterval) {
+            stepsSinceSample = 0;
+            sample();
+        }
+        return true;
+    }
+
+    // run n time steps; returns false if the simulation stopped early
+    public boolean run(int n) {
+        int i;
+        for (i = 0; i != n; i++) {
+            if (!step()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // run until the simulated time reaches t
+    public boolean runUntil(double t) {
+        while (sim.t < t) {
+            if (!step()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public double[] getTimes() {
+        double r[] = new double[sampleCount];
+        System.arraycopy(times, 0, r, 0, sampleCount);
+        return r;
+    }
+
+    public double[] getTrace(int p) {
+        double r[] = new double[sampleCount];
+        System.arraycopy(traces[p], 0, r, 0, sampleCount);
+        return r;
+    }
+}
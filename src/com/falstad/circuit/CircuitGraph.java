@@ -0,0 +1,417 @@
+package com.falstad.circuit;
+
+import com.falstad.circuit.elements.CapacitorElm;
+import com.falstad.circuit.elements.CurrentElm;
+import com.falstad.circuit.elements.InductorElm;
+import com.falstad.circuit.elements.VoltageElm;
+
+// how the circuit's nodes are connected through its elements, built once
+// per analysis.  analyzeCircuit asks it which nodes are connected to
+// ground, and whether there's a path between an element's two nodes that
+// doesn't go through that element (using only some kinds of elements):
+// a wire or voltage source loop, a shorted capacitor, an inductor with
+// no current path and so on.
+//
+// Paths that only depend on which elements are present are answered with
+// union-find, so a full set of checks takes near-linear time.  The
+// inductor check also looks at the current in other inductors, which
+// makes the graph directed, so that one is an iterative breadth-first
+// search.
+public class CircuitGraph {
+
+    // kinds of path; each only goes through some elements
+    static final int ANY = 0;      // any element
+    static final int INDUCT = 1;   // anything but current sources
+    static final int VOLTAGE = 2;  // wires and voltage sources
+    static final int SHORT = 3;    // wires
+    static final int CAP_V = 4;    // wires, capacitors, voltage sources
+
+    CircuitElm elms[];
+    int nodeCount;
+
+    // the posts at node n are post postNum[i] of elms[postElm[i]], for
+    // postStart[n] <= i < postStart[n+1]
+    int postStart[], postElm[], postNum[];
+
+    // posts with a ground connection
+    int groundElm[], groundNum[];
+    int groundCount;
+
+    // breadth-first search state; a node has been seen in the current
+    // search if mark[n] == markGen
+    int mark[], queue[];
+    int markGen;
+
+    Loops loops[] = new Loops[5];
+
+    public CircuitGraph(CircuitSimulator sim) {
+        int i, j;
+        elms = new CircuitElm[sim.elmListSize()];
+        for (i = 0; i != elms.length; i++) {
+            elms[i] = sim.getElm(i);
+        }
+        nodeCount = sim.nodeListSize();
+
+        // count posts at each node, then fill them in
+        postStart = new int[nodeCount + 1];
+        int total = 0;
+        for (i = 0; i != elms.length; i++) {
+            CircuitElm ce = elms[i];
+            for (j = 0; j != ce.getPostCount(); j++) {
+                postStart[ce.getNode(j) + 1]++;
+                total++;
+                if (ce.hasGroundConnection(j)) {
+                    groundCount++;
+                }
+            }
+        }
+        for (i = 0; i != nodeCount; i++) {
+            postStart[i + 1] += postStart[i];
+        }
+        postElm = new int[total];
+        postNum = new int[total];
+        groundElm = new int[groundCount];
+        groundNum = new int[groundCount];
+        int fill[] = new int[nodeCount];
+        System.arraycopy(postStart, 0, fill, 0, nodeCount);
+        int g = 0;
+        for (i = 0; i != elms.length; i++) {
+            CircuitElm ce = elms[i];
+            for (j = 0; j != ce.getPostCount(); j++) {
+                int p = fill[ce.getNode(j)]++;
+                postElm[p] = i;
+                postNum[p] = j;
+                if (ce.hasGroundConnection(j)) {
+                    groundElm[g] = i;
+                    groundNum[g++] = j;
+                }
+            }
+        }
+        mark = new int[nodeCount];
+        queue = new int[nodeCount];
+    }
+
+    static boolean uses(int type, CircuitElm ce) {
+        switch (type) {
+            case INDUCT:
+                return !(ce instanceof CurrentElm);
+            case VOLTAGE:
+                return ce.isWire() || ce instanceof VoltageElm;
+            case SHORT:
+                return ce.isWire();
+            case CAP_V:
+                return ce.isWire() || ce instanceof CapacitorElm
+                        || ce instanceof VoltageElm;
+        }
+        return true;
+    }
+
+    // mark every node connected to node n, directly or through any
+    // elements, in closure[]
+    public void connect(boolean closure[], int n) {
+        closure[n] = true;
+        int qh = 0, qt = 0;
+        queue[qt++] = n;
+        while (qh != qt) {
+            int n1 = queue[qh++];
+            int i, k;
+            if (n1 == 0) {
+                for (i = 0; i != groundCount; i++) {
+                    int m = elms[groundElm[i]].getNode(groundNum[i]);
+                    if (!closure[m]) {
+                        closure[m] = true;
+                        queue[qt++] = m;
+                    }
+                }
+            }
+            for (i = postStart[n1]; i != postStart[n1 + 1]; i++) {
+                CircuitElm ce = elms[postElm[i]];
+                int j = postNum[i];
+                if (ce.hasGroundConnection(j) && !closure[0]) {
+                    closure[0] = true;
+                    queue[qt++] = 0;
+                }
+                for (k = 0; k != ce.getPostCount(); k++) {
+                    int m = ce.getNode(k);
+                    if (k != j && !closure[m] && ce.getConnection(j, k)) {
+                        closure[m] = true;
+                        queue[qt++] = m;
+                    }
+                }
+            }
+        }
+    }
+
+    // is there a path from node n1 to node dest through elements of the
+    // given type, other than element e?
+    public boolean findPath(int type, int e, int n1, int dest) {
+        if (type == INDUCT) {
+            return search(type, e, n1, dest);
+        }
+        if (loops[type] == null) {
+            loops[type] = new Loops(type);
+        }
+        return loops[type].findPath(e, n1, dest);
+    }
+
+    // breadth-first search for findPath().  Through an inductor, a path
+    // for INDUCT can only go in the direction that matches the current
+    // in element e.
+    boolean search(int type, int e, int n1, int dest) {
+        if (n1 == dest) {
+            return true;
+        }
+        CircuitElm first = elms[e];
+        if (++markGen == 0) {
+            java.util.Arrays.fill(mark, 0);
+            markGen = 1;
+        }
+        int qh = 0, qt = 0;
+        mark[n1] = markGen;
+        queue[qt++] = n1;
+        while (qh != qt) {
+            int n = queue[qh++];
+            int i, k;
+            if (n == 0) {
+                // our path can go through ground
+                for (i = 0; i != groundCount; i++) {
+                    CircuitElm ce = elms[groundElm[i]];
+                    if (ce == first || !uses(type, ce)) {
+                        continue;
+                    }
+                    int m = ce.getNode(groundNum[i]);
+                    if (m == dest) {
+                        return true;
+                    }
+                    if (mark[m] != markGen) {
+                        mark[m] = markGen;
+                        queue[qt++] = m;
+                    }
+                }
+            }
+            for (i = postStart[n]; i != postStart[n + 1]; i++) {
+                CircuitElm ce = elms[postElm[i]];
+                if (ce == first || !uses(type, ce)) {
+                    continue;
+                }
+                int j = postNum[i];
+                if (ce.hasGroundConnection(j)) {
+                    if (dest == 0) {
+                        return true;
+                    }
+                    if (mark[0] != markGen) {
+                        mark[0] = markGen;
+                        queue[qt++] = 0;
+                    }
+                }
+                if (type == INDUCT && ce instanceof InductorElm) {
+                    double c = ce.getCurrent();
+                    if (j == 0) {
+                        c = -c;
+                    }
+                    if (Math.abs(c - first.getCurrent()) > 1e-10) {
+                        continue;
+                    }
+                }
+                for (k = 0; k != ce.getPostCount(); k++) {
+                    if (k == j || !ce.getConnection(j, k)) {
+                        continue;
+                    }
+                    int m = ce.getNode(k);
+                    if (m == dest) {
+                        return true;
+                    }
+                    if (mark[m] != markGen) {
+                        mark[m] = markGen;
+                        queue[qt++] = m;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // the elements of one type as an undirected graph, with a spanning
+    // forest found by union-find, and which forest edges lie on a cycle.
+    // An element whose only edge lies on a cycle has another path
+    // between its nodes.
+    class Loops {
+
+        int type;
+        // edge i joins nodes edgeA[i] and edgeB[i], through element
+        // edgeElm[i]
+        int edgeA[], edgeB[], edgeElm[];
+        int edgeCount;
+        // edges of element e: elmEdge[e] .. elmEdge[e]+elmEdgeCount[e]-1
+        int elmEdge[], elmEdgeCount[];
+        // connected components
+        int comp[];
+        // rooted spanning forest: parent node, edge to parent, depth
+        int parent[], parentEdge[], depth[];
+        // edge is a forest edge / lies on a cycle
+        boolean tree[], cycle[];
+
+        Loops(int t) {
+            type = t;
+            int i, j, k;
+            elmEdge = new int[elms.length];
+            elmEdgeCount = new int[elms.length];
+            edgeA = new int[16];
+            edgeB = new int[16];
+            edgeElm = new int[16];
+            for (i = 0; i != elms.length; i++) {
+                CircuitElm ce = elms[i];
+                elmEdge[i] = edgeCount;
+                if (!uses(type, ce)) {
+                    continue;
+                }
+                int pc = ce.getPostCount();
+                for (j = 0; j != pc; j++) {
+                    if (ce.hasGroundConnection(j)) {
+                        addEdge(ce.getNode(j), 0, i);
+                    }
+                    for (k = j + 1; k != pc; k++) {
+                        if (ce.getConnection(j, k) || ce.getConnection(k, j)) {
+                            addEdge(ce.getNode(j), ce.getNode(k), i);
+                        }
+                    }
+                }
+                elmEdgeCount[i] = edgeCount - elmEdge[i];
+            }
+
+            // spanning forest
+            comp = new int[nodeCount];
+            for (i = 0; i != nodeCount; i++) {
+                comp[i] = i;
+            }
+            tree = new boolean[edgeCount];
+            cycle = new boolean[edgeCount];
+            int treeStart[] = new int[nodeCount + 1];
+            for (i = 0; i != edgeCount; i++) {
+                int a = find(comp, edgeA[i]);
+                int b = find(comp, edgeB[i]);
+                if (a != b) {
+                    comp[a] = b;
+                    tree[i] = true;
+                    treeStart[edgeA[i] + 1]++;
+                    treeStart[edgeB[i] + 1]++;
+                }
+            }
+
+            // root it
+            for (i = 0; i != nodeCount; i++) {
+                treeStart[i + 1] += treeStart[i];
+            }
+            int treeEdge[] = new int[treeStart[nodeCount]];
+            int fill[] = new int[nodeCount];
+            System.arraycopy(treeStart, 0, fill, 0, nodeCount);
+            for (i = 0; i != edgeCount; i++) {
+                if (tree[i]) {
+                    treeEdge[fill[edgeA[i]]++] = i;
+                    treeEdge[fill[edgeB[i]]++] = i;
+                }
+            }
+            parent = new int[nodeCount];
+            parentEdge = new int[nodeCount];
+            depth = new int[nodeCount];
+            boolean seen[] = new boolean[nodeCount];
+            for (i = 0; i != nodeCount; i++) {
+                if (seen[i]) {
+                    continue;
+                }
+                seen[i] = true;
+                parent[i] = -1;
+                parentEdge[i] = -1;
+                int qh = 0, qt = 0;
+                queue[qt++] = i;
+                while (qh != qt) {
+                    int n = queue[qh++];
+                    for (j = treeStart[n]; j != treeStart[n + 1]; j++) {
+                        int ed = treeEdge[j];
+                        int m = (edgeA[ed] == n) ? edgeB[ed] : edgeA[ed];
+                        if (!seen[m]) {
+                            seen[m] = true;
+                            parent[m] = n;
+                            parentEdge[m] = ed;
+                            depth[m] = depth[n] + 1;
+                            queue[qt++] = m;
+                        }
+                    }
+                }
+            }
+
+            // each other edge closes a cycle with the forest path between
+            // its nodes; mark the forest edges on that path.  top[]
+            // skips over edges that are already marked, so each is
+            // visited once.
+            int top[] = new int[nodeCount];
+            for (i = 0; i != nodeCount; i++) {
+                top[i] = i;
+            }
+            for (i = 0; i != edgeCount; i++) {
+                if (tree[i]) {
+                    continue;
+                }
+                cycle[i] = true;
+                int a = find(top, edgeA[i]);
+                int b = find(top, edgeB[i]);
+                while (a != b) {
+                    if (depth[a] < depth[b]) {
+                        int x = a;
+                        a = b;
+                        b = x;
+                    }
+                    cycle[parentEdge[a]] = true;
+                    top[a] = parent[a];
+                    a = find(top, a);
+                }
+            }
+        }
+
+        void addEdge(int a, int b, int e) {
+            if (edgeCount == edgeA.length) {
+                int n = edgeCount * 2;
+                int na[] = new int[n];
+                int nb[] = new int[n];
+                int ne[] = new int[n];
+                System.arraycopy(edgeA, 0, na, 0, edgeCount);
+                System.arraycopy(edgeB, 0, nb, 0, edgeCount);
+                System.arraycopy(edgeElm, 0, ne, 0, edgeCount);
+                edgeA = na;
+                edgeB = nb;
+                edgeElm = ne;
+            }
+            edgeA[edgeCount] = a;
+            edgeB[edgeCount] = b;
+            edgeElm[edgeCount++] = e;
+        }
+
+        boolean findPath(int e, int n1, int dest) {
+            if (n1 == dest) {
+                return true;
+            }
+            int ec = elmEdgeCount[e];
+            if (ec == 0) {
+                // e isn't part of this graph
+                return find(comp, n1) == find(comp, dest);
+            }
+            int ed = elmEdge[e];
+            if (ec == 1 && ((edgeA[ed] == n1 && edgeB[ed] == dest)
+                    || (edgeA[ed] == dest && edgeB[ed] == n1))) {
+                return cycle[ed];
+            }
+            // e connects its nodes some other way; not needed by the
+            // checks in analyzeCircuit
+            return search(type, e, n1, dest);
+        }
+    }
+
+    // union-find root, halving the path as we go
+    static int find(int up[], int n) {
+        while (up[n] != n) {
+            up[n] = up[up[n]];
+            n = up[n];
+        }
+        return n;
+    }
+}
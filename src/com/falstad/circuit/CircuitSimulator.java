@@ -22,9 +22,17 @@ import java.io.FilterInputStream;
 import java.lang.reflect.Constructor;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import javax.swing.JMenu;
 import javax.swing.JPanel;
 
@@ -42,8 +50,8 @@ public class CircuitSimulator extends JPanel {
     static final int HINT_TWINT = 4;
     static final int HINT_3DB_L = 5;
 
-    public static String muString = "u";
-    public static String ohmString = "ohm";
+    public static final String muString = "\u03bc";
+    public static final String ohmString = "\u03a9";
 
     /* AWT - remove */
  /* Vars */
@@ -74,6 +82,73 @@ public class CircuitSimulator extends JPanel {
     int hintType = -1, hintItem1, hintItem2;
     String stopMessage;
     double timeStep;
+    // with an adaptive time step, adaptiveStep is the step currently in
+    // use; timeStep is the one the user set, which we start from
+    boolean adaptiveTimeStep;
+    double adaptiveStep, minTimeStep, maxTimeStep;
+    // set by discontinuity() when an element's output jumps, and by
+    // CircuitComponent.step() when a step doesn't converge; either one
+    // makes adaptiveIntegrateStep() take the step again, from the state
+    // and node voltages it started with
+    boolean discontinuity, stepNotConverged;
+    double stepState[], stepVoltages[];
+    // the elements' estimate of the step they can take after the step
+    // adaptiveIntegrateStep() kept (see estimateTimeStep())
+    double stepEstimate;
+    double timeStepTolerance = 1e-3;
+    // integration method of capacitors and inductors.  INTEGRATE_ELEMENT
+    // lets each element choose trapezoidal or backward euler with its
+    // own flag; the others override that for the whole circuit.
+    int integrationMethod;
+    public static final int INTEGRATE_ELEMENT = 0;
+    public static final int INTEGRATE_TRAPEZOIDAL = 1;
+    public static final int INTEGRATE_BACK_EULER = 2;
+    public static final int INTEGRATE_GEAR = 3;
+    // step linear circuits exactly with an ExactStepper (built on the
+    // first step after each analysis), which needs everything integrated
+    // by backward euler while it's in use.  exactStepMessage says why
+    // the circuit couldn't be, if it couldn't.
+    boolean exactStepping, exactBackEuler;
+    ExactStepper exactStepper;
+    String exactStepMessage;
+    // a circuit made of time-invariant elements (see
+    // CircuitElm.isTimeInvariant()) that has gone REST_STEPS steps
+    // without a bit of its node voltages or element states changing
+    // rests: stepCircuit() only advances t until the circuit is analyzed
+    // again or wake() is called.  restSteps counts the steps skipped.
+    boolean restEnabled = true, canRest, resting;
+    int quietSteps;
+    long restSteps;
+    double lastNodeVoltages[], restState[], lastRestState[];
+    static final int REST_STEPS = 10;
+    // the elements with state variables (see CircuitElm.getState()), and
+    // where each one's variables start in a state vector
+    CircuitElm stateElms[];
+    int stateIndex[];
+    // nonlinear elements whose controlling voltages moved less than this
+    // since they last linearized reuse that linearization (device bypass)
+    double bypassTolerance = 1e-6;
+    // set while findOperatingPoint() works: reactive elements stamp their
+    // DC equivalents, independent sources are scaled by sourceScale, and
+    // nonlinear parts get dcGmin from every node to ground
+    boolean dcAnalysis;
+    double sourceScale = 1;
+    // how the last findOperatingPoint() went
+    String dcMessage;
+    // the outcome of the last analysis the user asked for, shown under
+    // the time until the circuit changes
+    String infoMessage;
+    double dcGmin;
+    static final int DC_MAX_ITERATIONS = 100;
+    // set while an ACAnalysis collects the stamps; stampMatrix() hands
+    // them to it, as conductance, capacitance or inverse inductance
+    // depending on acStampType
+    ACAnalysis acAnalysis;
+    int acStampType;
+    public static final int AC_CONDUCTANCE = 0;
+    public static final int AC_CAPACITANCE = 1;
+    public static final int AC_INVERSE_INDUCTANCE = 2;
+    boolean restamping;
     private Vector<CircuitElm> elmList;
 //    Vector setupList;
     CircuitElm dragElm, menuElm, mouseElm, stopElm;
@@ -82,13 +157,53 @@ public class CircuitSimulator extends JPanel {
     CircuitElm plotXElm, plotYElm;
     int draggingPost;
     SwitchElm heldSwitchElm;
-    double circuitMatrix[][], circuitRightSide[], origRightSide[], origMatrix[][];
+    // the full matrix and right side, only while analyzeCircuit()
+    // simplifies it
+    SparseMatrix circuitMatrix;
+    double circuitRightSide[];
     RowInfo circuitRowInfo[];
-    int circuitPermute[];
+    // separate parts of the simplified matrix, each with its own solver
+    // (see CircuitComponent)
+    CircuitComponent components[];
+    // the part stepCircuit() is iterating on this thread
+    final ThreadLocal<CircuitComponent> stepComponent
+            = new ThreadLocal<CircuitComponent>();
+    // parts of the circuit with fewer rows than this are always stepped
+    // on the calling thread
+    static final int PARALLEL_MIN_SIZE = 64;
+    static final int PARALLEL_THREADS
+            = Runtime.getRuntime().availableProcessors();
+    // shared by all simulators in the process
+    static ForkJoinPool componentPool;
+    int solverType = MatrixSolver.SOLVER_AUTO;
     boolean circuitNonLinear;
     int voltageSourceCount;
     int circuitMatrixSize, circuitMatrixFullSize;
     boolean circuitNeedsMap;
+    // the elements that override startIteration() and estimateTimeStep(),
+    // grouped by class (see groupByClass()), so the stepping loops don't
+    // call empty methods on every wire and label.  Each part has its own
+    // list for doStep().
+    CircuitElm iterationElms[], timeStepElms[];
+    // which of those methods (and doStep()) each element class
+    // overrides; see getOverrides()
+    static final int OVERRIDES_START_ITERATION = 1;
+    static final int OVERRIDES_DO_STEP = 2;
+    static final int OVERRIDES_ESTIMATE_TIME_STEP = 4;
+    static final int OVERRIDES_CALCULATE_CURRENT = 8;
+    static final HashMap<Class<?>, Integer> elmOverrides
+            = new HashMap<Class<?>, Integer>();
+    // stamp handles (see getStampHandle()).  Handle h adds to slot
+    // handleSlot[h] of handleSolver[h], or if that's null (the column's
+    // voltage is known, handleValue[h]) to the right side,
+    // handleRight[h][handleRow[h]], which is also where right side
+    // handles go.  handleNodeI/J[] are the unmapped row and column.
+    int handleCount;
+    MatrixSolver handleSolver[];
+    int handleSlot[], handleRow[];
+    double handleRight[][];
+    double handleValue[];
+    int handleNodeI[], handleNodeJ[];
     double voltageRange = 5;
     double currentMult, powerMult;
 //    public boolean useFrame;
@@ -121,11 +236,29 @@ public class CircuitSimulator extends JPanel {
     String baseURL = "http://www.falstad.com/circuit/";
     public CircuitCanvas cv;
     Vector<CircuitNode> nodeList;
+    // the solved voltage of each node (0 is ground), written once per
+    // node by the parts after each solve, however many posts it links
+    double nodeVoltages[];
+    // node at each post location, built by analyzeCircuit
+    NodeMap nodeMap;
+    // how the nodes are connected, also built by analyzeCircuit
+    CircuitGraph circuitGraph;
+    // each element's nodes and post locations as of the last analysis,
+    // and the ground node's element (if any) and location
+    CircuitElm analyzedElms[];
+    int analyzedNodes[][], analyzedPosts[][];
+    CircuitElm analyzedGround;
+    Point analyzedGroundPt;
     CircuitElm voltageSources[];
     CircuitController gui;
     protected final PropertyChangeSupport support;
 
     boolean shown = false;
+    boolean headless;
+    // drawing colors, which depend on the background and on whether
+    // the simulation is stopped
+    Color whiteColor = Color.white, selectColor = Color.cyan,
+            lightGrayColor = Color.lightGray;
     private static boolean pasteEnabled = false;
     private boolean unstable = false;
     private boolean disabled = false;
@@ -231,8 +364,6 @@ public class CircuitSimulator extends JPanel {
         String jv = System.getProperty("java.class.version");
         double jvf = new Double(jv).doubleValue();
         if (jvf >= 48) {
-            muString = "\u03bc";
-            ohmString = "\u03a9";
             useBufferedImage = true;
         }
 
@@ -240,6 +371,13 @@ public class CircuitSimulator extends JPanel {
         cv.addListeners(gui);
         main.add(cv.getCanvas());
 
+        initState();
+        cv.setBackground(Color.black);
+        cv.setForeground(Color.lightGray);
+
+    }
+
+    void initState() {
         setGrid();
         elmList = new Vector<CircuitElm>();
 //	setupList = new Vector();
@@ -251,9 +389,45 @@ public class CircuitSimulator extends JPanel {
         scopeCount = 0;
 
         random = new Random();
-        cv.setBackground(Color.black);
-        cv.setForeground(Color.lightGray);
+    }
+
+    // set up for simulating without a user interface (see CircuitEngine).
+    // There is no container, so elements with sliders keep the value
+    // they were loaded with.  The element classes are registered here
+    // instead of by the menus.
+    void initHeadless(String classNames[]) {
+        headless = true;
+        initState();
+        int i;
+        for (i = 0; i != classNames.length; i++) {
+            try {
+                Class c = Class.forName("com.falstad.circuit.elements."
+                        + classNames[i]);
+                CircuitElm elm = constructElement(c, 0, 0);
+                if (elm != null) {
+                    register(c, elm);
+                    elm.delete();
+                }
+            } catch (Exception ee) {
+                ee.printStackTrace();
+            }
+        }
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    public Color getWhiteColor() {
+        return whiteColor;
+    }
+
+    public Color getSelectColor() {
+        return selectColor;
+    }
 
+    public Color getLightGrayColor() {
+        return lightGrayColor;
     }
 
     public void posInit() {
@@ -307,7 +481,7 @@ public class CircuitSimulator extends JPanel {
     }
 
     public double getTimeStep() {
-        return timeStep;
+        return adaptiveTimeStep ? adaptiveStep : timeStep;
     }
 
     public void triggerShow() {
@@ -387,24 +561,24 @@ public class CircuitSimulator extends JPanel {
         g = (Graphics2D) dbimage.getGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
-        CircuitElm.selectColor = Color.cyan;
+        selectColor = Color.cyan;
         if (whiteBackground) {
             if (stopped) {
-                CircuitElm.whiteColor = Color.white;
-                CircuitElm.lightGrayColor = Color.lightGray;
+                whiteColor = Color.white;
+                lightGrayColor = Color.lightGray;
                 g.setColor(Color.decode("#133a5f"));
             } else {
-                CircuitElm.whiteColor = Color.black;
-                CircuitElm.lightGrayColor = Color.black;
+                whiteColor = Color.black;
+                lightGrayColor = Color.black;
                 g.setColor(Color.white);
             }
         } else if (stopped) {
-            CircuitElm.whiteColor = Color.white;
-            CircuitElm.lightGrayColor = Color.lightGray;
+            whiteColor = Color.white;
+            lightGrayColor = Color.lightGray;
             g.setColor(Color.decode("#133a5f"));
         } else {
-            CircuitElm.whiteColor = Color.white;
-            CircuitElm.lightGrayColor = Color.lightGray;
+            whiteColor = Color.white;
+            lightGrayColor = Color.lightGray;
             g.setColor(Color.black);
         }
         g.fillRect(0, 0, winSize.width, winSize.height);
@@ -506,7 +680,7 @@ public class CircuitSimulator extends JPanel {
             scopes[i].draw(g);
         }
 //        }
-        g.setColor(CircuitElm.whiteColor);
+        g.setColor(whiteColor);
         if (stopMessage != null) {
             g.drawString(stopMessage, 10, circuitArea.height);
         } else {
@@ -532,6 +706,9 @@ public class CircuitSimulator extends JPanel {
                 CircuitElm.showFormat.setMinimumFractionDigits(2);
                 if (!stopped) {
                     info[0] = "t = " + CircuitElm.getUnitText(t, "s");
+                    if (resting) {
+                        info[0] += " (at rest)";
+                    }
                 }
                 CircuitElm.showFormat.setMinimumFractionDigits(0);
             }
@@ -558,6 +735,9 @@ public class CircuitSimulator extends JPanel {
                 info[i++] = badnodes + ((badnodes == 1)
                         ? " bad connection" : " bad connections");
             }
+            if (infoMessage != null && mouseElm == null) {
+                info[i++] = infoMessage;
+            }
 
             // find where to show data; below circuit, not too high unless we need it
             int ybase = winSize.height - 15 * i - 5;
@@ -569,7 +749,7 @@ public class CircuitSimulator extends JPanel {
             }
         }
         if (selectedArea != null) {
-            g.setColor(CircuitElm.selectColor);
+            g.setColor(selectColor);
             g.drawRect(selectedArea.x, selectedArea.y, selectedArea.width, selectedArea.height);
         }
         mouseElm = realMouseElm;
@@ -585,7 +765,7 @@ public class CircuitSimulator extends JPanel {
         if (realg != null) {
             realg.drawImage(dbimage, 0, 0, /*this*/ null);
         }
-        if (!stopped && circuitMatrix != null) {
+        if (!stopped && components != null) {
             // Limit to 50 fps (thanks to Jurgen Klotzer for this)
             long delay = 1000 / 50 - (System.currentTimeMillis() - lastFrameTime);
             //realg.drawString("delay: " + delay,  10, 90);
@@ -760,6 +940,7 @@ public class CircuitSimulator extends JPanel {
     public void needAnalyze() {
 //        unstable = true;
         analyzeFlag = true;
+        infoMessage = null;
         cv.repaintCanvas();
     }
 
@@ -770,6 +951,23 @@ public class CircuitSimulator extends JPanel {
         return nodeList.elementAt(n);
     }
 
+    // voltage of node n from the last solve
+    public double getNodeVoltage(int n) {
+        if (nodeVoltages == null || n >= nodeVoltages.length) {
+            return 0;
+        }
+        return nodeVoltages[n];
+    }
+
+    // number of the node at a post location, or -1 if no post is there.
+    // Valid after the circuit has been analyzed.
+    public int getNodeAt(int x, int y) {
+        if (nodeMap == null) {
+            return -1;
+        }
+        return nodeMap.get(x, y);
+    }
+
     public CircuitElm getElm(int n) {
         if (n >= elmList.size()) {
             return null;
@@ -784,9 +982,15 @@ public class CircuitSimulator extends JPanel {
         }
         stopMessage = null;
         stopElm = null;
+        exactStepper = null;
+        exactStepMessage = null;
+        resting = false;
+        quietSteps = 0;
+        CircuitComponent lastComponents[] = components;
+        components = null;
+        adaptiveStep = timeStep;
         int i, j;
         int vscount = 0;
-        nodeList = new Vector<CircuitNode>();
         boolean gotGround = false;
         boolean gotRail = false;
         CircuitElm volt = null;
@@ -809,72 +1013,25 @@ public class CircuitSimulator extends JPanel {
 
         // if no ground, and no rails, then the voltage elm's first terminal
         // is ground
-        if (!gotGround && volt != null && !gotRail) {
-            CircuitNode cn = new CircuitNode();
-            Point pt = volt.getPost(0);
-            cn.x = pt.x;
-            cn.y = pt.y;
-            nodeList.addElement(cn);
-        } else {
-            // otherwise allocate extra node for ground
-            CircuitNode cn = new CircuitNode();
-            cn.x = cn.y = -1;
-            nodeList.addElement(cn);
-        }
+        CircuitElm groundElm = (!gotGround && volt != null && !gotRail)
+                ? volt : null;
+        Point groundPt = (groundElm != null) ? groundElm.getPost(0)
+                : new Point(-1, -1);
+
+        // allocate nodes.  If ground is where it was last time, only the
+        // elements that changed need new nodes.
+        if (groundElm != analyzedGround || analyzedGroundPt == null
+                || !groundPt.equals(analyzedGroundPt) || !updateNodes()) {
+            allocNodes(groundPt);
+        }
+        analyzedGround = groundElm;
+        analyzedGroundPt = groundPt;
+        saveNodes();
         //System.out.println("ac2");
 
-        // allocate nodes and voltage sources
+        // allocate voltage sources
         for (i = 0; i != elmList.size(); i++) {
-            CircuitElm ce = getElm(i);
-            int inodes = ce.getInternalNodeCount();
-            int ivs = ce.getVoltageSourceCount();
-            int posts = ce.getPostCount();
-
-            // allocate a node for each post and match posts to nodes
-            for (j = 0; j != posts; j++) {
-                Point pt = ce.getPost(j);
-                int k;
-                for (k = 0; k != nodeList.size(); k++) {
-                    CircuitNode cn = getCircuitNode(k);
-                    if (pt.x == cn.x && pt.y == cn.y) {
-                        break;
-                    }
-                }
-                if (k == nodeList.size()) {
-                    CircuitNode cn = new CircuitNode();
-                    cn.x = pt.x;
-                    cn.y = pt.y;
-                    CircuitNodeLink cnl = new CircuitNodeLink();
-                    cnl.num = j;
-                    cnl.elm = ce;
-                    cn.links.addElement(cnl);
-                    ce.setNode(j, nodeList.size());
-                    nodeList.addElement(cn);
-                } else {
-                    CircuitNodeLink cnl = new CircuitNodeLink();
-                    cnl.num = j;
-                    cnl.elm = ce;
-                    getCircuitNode(k).links.addElement(cnl);
-                    ce.setNode(j, k);
-                    // if it's the ground node, make sure the node voltage is 0,
-                    // cause it may not get set later
-                    if (k == 0) {
-                        ce.setNodeVoltage(j, 0);
-                    }
-                }
-            }
-            for (j = 0; j != inodes; j++) {
-                CircuitNode cn = new CircuitNode();
-                cn.x = cn.y = -1;
-                cn.internal = true;
-                CircuitNodeLink cnl = new CircuitNodeLink();
-                cnl.num = j + posts;
-                cnl.elm = ce;
-                cn.links.addElement(cnl);
-                ce.setNode(cnl.num, nodeList.size());
-                nodeList.addElement(cn);
-            }
-            vscount += ivs;
+            vscount += getElm(i).getVoltageSourceCount();
         }
         voltageSources = new CircuitElm[vscount];
         vscount = 0;
@@ -896,13 +1053,23 @@ public class CircuitSimulator extends JPanel {
         voltageSourceCount = vscount;
 
         int matrixSize = nodeList.size() - 1 + vscount;
-        circuitMatrix = new double[matrixSize][matrixSize];
+        circuitMatrix = new SparseMatrix(matrixSize);
         circuitRightSide = new double[matrixSize];
-        origMatrix = new double[matrixSize][matrixSize];
-        origRightSide = new double[matrixSize];
         circuitMatrixSize = circuitMatrixFullSize = matrixSize;
         circuitRowInfo = new RowInfo[matrixSize];
-        circuitPermute = new int[matrixSize];
+        nodeVoltages = new double[nodeList.size()];
+        // elements that read nodeVoltages[] start from their own voltages,
+        // as the others do from volts[]
+        for (i = 1; i != nodeList.size(); i++) {
+            CircuitNode cn = getCircuitNode(i);
+            for (j = 0; j != cn.links.size(); j++) {
+                CircuitNodeLink cnl = cn.links.elementAt(j);
+                if (cnl.elm.readsNodeVoltages()) {
+                    nodeVoltages[i] = cnl.elm.volts[cnl.num];
+                }
+            }
+        }
+        setupStates();
         int vs = 0;
         for (i = 0; i != matrixSize; i++) {
             circuitRowInfo[i] = new RowInfo();
@@ -917,49 +1084,16 @@ public class CircuitSimulator extends JPanel {
         //System.out.println("ac4");
 
         // determine nodes that are unconnected
+        circuitGraph = new CircuitGraph(this);
         boolean closure[] = new boolean[nodeList.size()];
-        boolean tempclosure[] = new boolean[nodeList.size()];
-        boolean changed = true;
-        closure[0] = true;
-        while (changed) {
-            changed = false;
-            for (i = 0; i != elmList.size(); i++) {
-                CircuitElm ce = getElm(i);
-                // loop through all ce's nodes to see if they are connected
-                // to other nodes not in closure
-                for (j = 0; j < ce.getPostCount(); j++) {
-                    if (!closure[ce.getNode(j)]) {
-                        if (ce.hasGroundConnection(j)) {
-                            closure[ce.getNode(j)] = changed = true;
-                        }
-                        continue;
-                    }
-                    int k;
-                    for (k = 0; k != ce.getPostCount(); k++) {
-                        if (j == k) {
-                            continue;
-                        }
-                        int kn = ce.getNode(k);
-                        if (ce.getConnection(j, k) && !closure[kn]) {
-                            closure[kn] = true;
-                            changed = true;
-                        }
-                    }
-                }
-            }
-            if (changed) {
-                continue;
-            }
-
-            // connect unconnected nodes
-            for (i = 0; i != nodeList.size(); i++) {
-                if (!closure[i] && !getCircuitNode(i).internal) {
-                    System.out.println("node " + i + " unconnected");
-                    stampResistor(0, i, 1e8);
-                    closure[i] = true;
-                    changed = true;
-                    break;
-                }
+        circuitGraph.connect(closure, 0);
+
+        // connect unconnected nodes
+        for (i = 0; i != nodeList.size(); i++) {
+            if (!closure[i] && !getCircuitNode(i).internal) {
+                System.out.println("node " + i + " unconnected");
+                stampResistor(0, i, 1e8);
+                circuitGraph.connect(closure, i);
             }
         }
         //System.out.println("ac5");
@@ -968,20 +1102,16 @@ public class CircuitSimulator extends JPanel {
             CircuitElm ce = getElm(i);
             // look for inductors with no current path
             if (ce instanceof InductorElm) {
-                FindPathInfo fpi = new FindPathInfo(FindPathInfo.INDUCT, ce,
-                        ce.getNode(1));
-                // first try findPath with maximum depth of 5, to avoid slowdowns
-                if (!fpi.findPath(ce.getNode(0), 5)
-                        && !fpi.findPath(ce.getNode(0))) {
+                if (!circuitGraph.findPath(CircuitGraph.INDUCT, i,
+                        ce.getNode(0), ce.getNode(1))) {
                     System.out.println(ce + " no path");
                     ce.reset();
                 }
             }
             // look for current sources with no current path
             if (ce instanceof CurrentElm) {
-                FindPathInfo fpi = new FindPathInfo(FindPathInfo.INDUCT, ce,
-                        ce.getNode(1));
-                if (!fpi.findPath(ce.getNode(0))) {
+                if (!circuitGraph.findPath(CircuitGraph.INDUCT, i,
+                        ce.getNode(0), ce.getNode(1))) {
                     stop("No path for current source!", ce);
                     return;
                 }
@@ -989,32 +1119,29 @@ public class CircuitSimulator extends JPanel {
             // look for voltage source loops
             if ((ce instanceof VoltageElm && ce.getPostCount() == 2)
                     || ce instanceof WireElm) {
-                FindPathInfo fpi = new FindPathInfo(FindPathInfo.VOLTAGE, ce,
-                        ce.getNode(1));
-                if (fpi.findPath(ce.getNode(0))) {
+                if (circuitGraph.findPath(CircuitGraph.VOLTAGE, i,
+                        ce.getNode(0), ce.getNode(1))) {
                     stop("Voltage source/wire loop with no resistance!", ce);
                     return;
                 }
             }
             // look for shorted caps, or caps w/ voltage but no R
             if (ce instanceof CapacitorElm) {
-                FindPathInfo fpi = new FindPathInfo(FindPathInfo.SHORT, ce,
-                        ce.getNode(1));
-                if (fpi.findPath(ce.getNode(0))) {
+                if (circuitGraph.findPath(CircuitGraph.SHORT, i,
+                        ce.getNode(0), ce.getNode(1))) {
                     System.out.println(ce + " shorted");
                     ce.reset();
-                } else {
-                    fpi = new FindPathInfo(FindPathInfo.CAP_V, ce, ce.getNode(1));
-                    if (fpi.findPath(ce.getNode(0))) {
-                        stop("Capacitor loop with no resistance!", ce);
-                        return;
-                    }
+                } else if (circuitGraph.findPath(CircuitGraph.CAP_V, i,
+                        ce.getNode(0), ce.getNode(1))) {
+                    stop("Capacitor loop with no resistance!", ce);
+                    return;
                 }
             }
         }
         //System.out.println("ac6");
 
         // simplify the matrix; this speeds things up quite a bit
+        circuitMatrix.sortRows();
         for (i = 0; i != matrixSize; i++) {
             int qm = -1, qp = -1;
             double qv = 0;
@@ -1027,8 +1154,13 @@ public class CircuitSimulator extends JPanel {
             double rsadd = 0;
 
             // look for rows that can be removed
-            for (j = 0; j != matrixSize; j++) {
-                double q = circuitMatrix[i][j];
+            int rowCols[] = circuitMatrix.rowCols[i];
+            int rowSlots[] = circuitMatrix.rowSlots[i];
+            int rowLen = circuitMatrix.rowLen[i];
+            int p;
+            for (p = 0; p != rowLen; p++) {
+                j = rowCols[p];
+                double q = circuitMatrix.values[rowSlots[p]];
                 if (circuitRowInfo[j].type == RowInfo.ROW_CONST) {
                     // keep a running total of const values that have been
                     // removed already
@@ -1058,7 +1190,7 @@ public class CircuitSimulator extends JPanel {
              System.out.println("lschanges");
              continue;
              }*/
-            if (j == matrixSize) {
+            if (p == rowLen) {
                 if (qp == -1) {
                     stop("Matrix error", null);
                     return;
@@ -1172,8 +1304,9 @@ public class CircuitSimulator extends JPanel {
          System.out.print("\n");*/
         // make the new, simplified matrix
         int newsize = nn;
-        double newmatx[][] = new double[newsize][newsize];
+        SparseMatrix newmatx = new SparseMatrix(newsize);
         double newrs[] = new double[newsize];
+        boolean newchanging[] = new boolean[newsize];
         int ii = 0;
         for (i = 0; i != matrixSize; i++) {
             RowInfo rri = circuitRowInfo[i];
@@ -1182,31 +1315,44 @@ public class CircuitSimulator extends JPanel {
                 continue;
             }
             newrs[ii] = circuitRightSide[i];
+            newchanging[ii] = rri.lsChanges;
             rri.mapRow = ii;
             //System.out.println("Row " + i + " maps to " + ii);
-            for (j = 0; j != matrixSize; j++) {
-                RowInfo ri = circuitRowInfo[j];
+            int rowCols[] = circuitMatrix.rowCols[i];
+            int rowSlots[] = circuitMatrix.rowSlots[i];
+            for (j = 0; j != circuitMatrix.rowLen[i]; j++) {
+                RowInfo ri = circuitRowInfo[rowCols[j]];
+                double q = circuitMatrix.values[rowSlots[j]];
                 if (ri.type == RowInfo.ROW_CONST) {
-                    newrs[ii] -= ri.value * circuitMatrix[i][j];
+                    newrs[ii] -= ri.value * q;
                 } else {
-                    newmatx[ii][ri.mapCol] += circuitMatrix[i][j];
+                    newmatx.add(ii, ri.mapCol, q);
                 }
             }
             ii++;
         }
-
-        circuitMatrix = newmatx;
-        circuitRightSide = newrs;
+        newmatx.sortRows();
+        circuitMatrix = null;
+        circuitRightSide = null;
         matrixSize = circuitMatrixSize = newsize;
-        for (i = 0; i != matrixSize; i++) {
-            origRightSide[i] = circuitRightSide[i];
+        circuitNeedsMap = true;
+
+        // split it into parts that can be solved separately, and load
+        // each into its own solver
+        splitMatrix(newmatx, newrs, newchanging);
+        reserveNonLinearStamps();
+        // before analyze(), in case a handle adds to the pattern
+        handleCount = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            getElm(i).resolveStamps();
         }
-        for (i = 0; i != matrixSize; i++) {
-            for (j = 0; j != matrixSize; j++) {
-                origMatrix[i][j] = circuitMatrix[i][j];
-            }
+        for (i = 0; i != components.length; i++) {
+            CircuitComponent comp = components[i];
+            comp.solver.saveOriginal();
+            comp.solver.analyze((lastComponents != null
+                    && i < lastComponents.length)
+                    ? lastComponents[i].solver : null);
         }
-        circuitNeedsMap = true;
 
         /*
          System.out.println("matrixSize = " + matrixSize + " " + circuitNonLinear);
@@ -1216,15 +1362,577 @@ public class CircuitSimulator extends JPanel {
          System.out.print("  " + circuitRightSide[j] + "\n");
          }
          System.out.print("\n");*/
-        // if a matrix is linear, we can do the lu_factor here instead of
+        // if a part is linear, we can do the lu_factor here instead of
         // needing to do it every frame
-        if (!circuitNonLinear) {
-            if (!lu_factor(circuitMatrix, circuitMatrixSize, circuitPermute)) {
+        for (i = 0; i != components.length; i++) {
+            if (!components[i].refactor()) {
                 stop("Singular matrix!", null);
                 return;
             }
         }
-        support.firePropertyChange(PROPERTY_CIRCUIT_CHANGE, "", dumpCircuit());
+        // dumping a big circuit takes a while, so only do it if someone
+        // is listening
+        if (support.hasListeners(PROPERTY_CIRCUIT_CHANGE)) {
+            support.firePropertyChange(PROPERTY_CIRCUIT_CHANGE, "",
+                    dumpCircuit());
+        }
+    }
+
+    // split the simplified matrix m (with right side rs) into parts that
+    // share no entries, and give each a CircuitComponent.  Simplifying
+    // drops different rows and columns, so row i and column i aren't the
+    // same node; a part is a connected set of rows and columns, with
+    // union-find entries 0..size-1 for rows and size..2*size-1 for
+    // columns.  Every element joins the rows and columns of all its nodes
+    // and voltage sources, so whatever it stamps later stays within one
+    // part.  Rows and columns keep their order within a part, so a
+    // circuit that doesn't split is solved exactly as before.
+    void splitMatrix(SparseMatrix m, double rs[], boolean changing[]) {
+        int i, j, k;
+        int size = m.n;
+        int up[] = new int[size * 2];
+        for (i = 0; i != size * 2; i++) {
+            up[i] = i;
+        }
+        for (i = 0; i != size; i++) {
+            for (j = 0; j != m.rowLen[i]; j++) {
+                union(up, i, size + m.rowCols[i][j]);
+            }
+        }
+        int elmRoot[] = new int[elmList.size()];
+        int vs = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            int nodes = ce.getPostCount() + ce.getInternalNodeCount();
+            int ivs = ce.getVoltageSourceCount();
+            int first = -1;
+            for (j = 0; j != nodes + ivs; j++) {
+                int n = (j < nodes) ? ce.getNode(j)
+                        : nodeList.size() + vs + j - nodes;
+                if (n == 0) {
+                    continue;
+                }
+                RowInfo ri = circuitRowInfo[n - 1];
+                for (k = 0; k != 2; k++) {
+                    int r = (k == 0) ? ri.mapRow
+                            : (ri.type == RowInfo.ROW_CONST || ri.mapCol < 0)
+                            ? -1 : size + ri.mapCol;
+                    if (r < 0) {
+                        continue;
+                    }
+                    if (first < 0) {
+                        first = r;
+                    } else {
+                        union(up, first, r);
+                    }
+                }
+            }
+            elmRoot[i] = first;
+            vs += ivs;
+        }
+
+        // number the parts in element order
+        int compOf[] = new int[size * 2];
+        for (i = 0; i != size * 2; i++) {
+            compOf[i] = -1;
+        }
+        int count = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            if (elmRoot[i] >= 0) {
+                int root = CircuitGraph.find(up, elmRoot[i]);
+                if (compOf[root] < 0) {
+                    compOf[root] = count++;
+                }
+            }
+        }
+        for (i = 0; i != size * 2; i++) {
+            int root = CircuitGraph.find(up, i);
+            if (compOf[root] < 0) {
+                compOf[root] = count++;
+            }
+            compOf[i] = compOf[root];
+        }
+        // each part needs as many rows as columns; if not, the matrix is
+        // singular anyway, so leave it in one piece and let the solver
+        // say so
+        int rowCount[] = new int[count];
+        int colCount[] = new int[count];
+        for (i = 0; i != size; i++) {
+            rowCount[compOf[i]]++;
+            colCount[compOf[size + i]]++;
+        }
+        for (i = 0; i != count; i++) {
+            if (rowCount[i] != colCount[i]) {
+                break;
+            }
+        }
+        if (i != count || count == 0) {
+            count = 1;
+            for (i = 0; i != size * 2; i++) {
+                compOf[i] = 0;
+            }
+            for (i = 0; i != elmList.size(); i++) {
+                elmRoot[i] = -1;
+            }
+        }
+        components = new CircuitComponent[count];
+        for (i = 0; i != count; i++) {
+            components[i] = new CircuitComponent(this, i);
+        }
+        // elements with no rows of their own go in the first part; they
+        // still need doStep()
+        IdentityHashMap<CircuitElm, CircuitComponent> elmComp
+                = new IdentityHashMap<CircuitElm, CircuitComponent>();
+        CircuitElm iter[] = new CircuitElm[elmList.size()];
+        CircuitElm est[] = new CircuitElm[elmList.size()];
+        int niter = 0, nest = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            CircuitComponent comp = components[(elmRoot[i] < 0) ? 0
+                    : compOf[elmRoot[i]]];
+            int ov = getOverrides(ce);
+            comp.addElm(ce, (ov & OVERRIDES_DO_STEP) != 0,
+                    (ov & OVERRIDES_CALCULATE_CURRENT) != 0);
+            elmComp.put(ce, comp);
+            if ((ov & OVERRIDES_START_ITERATION) != 0) {
+                iter[niter++] = ce;
+            }
+            if ((ov & OVERRIDES_ESTIMATE_TIME_STEP) != 0) {
+                est[nest++] = ce;
+            }
+        }
+        for (i = 0; i != count; i++) {
+            CircuitComponent comp = components[i];
+            comp.elms = groupByClass(comp.elms, comp.elmCount);
+            comp.iterCurrentElms = groupByClass(comp.iterCurrentElms,
+                    comp.iterCurrentCount);
+            comp.stepCurrentElms = groupByClass(comp.stepCurrentElms,
+                    comp.stepCurrentCount);
+        }
+        iterationElms = groupByClass(iter, niter);
+        timeStepElms = groupByClass(est, nest);
+
+        // renumber rows and columns within each part
+        int localRow[] = new int[size];
+        int localCol[] = new int[size];
+        for (i = 0; i != size; i++) {
+            localRow[i] = components[compOf[i]].size++;
+        }
+        for (i = 0; i != count; i++) {
+            components[i].size = 0;
+        }
+        for (i = 0; i != size; i++) {
+            localCol[i] = components[compOf[size + i]].size++;
+        }
+        for (i = 0; i != circuitMatrixFullSize; i++) {
+            RowInfo ri = circuitRowInfo[i];
+            ri.comp = null;
+            if (ri.mapRow >= 0) {
+                ri.comp = components[compOf[ri.mapRow]];
+                ri.mapRow = localRow[ri.mapRow];
+            }
+            if (ri.mapCol >= 0) {
+                ri.mapCol = localCol[ri.mapCol];
+            }
+        }
+
+        // load each part's entries into its solver
+        int nonzeros[] = new int[count];
+        for (i = 0; i != size; i++) {
+            for (j = 0; j != m.rowLen[i]; j++) {
+                if (m.values[m.rowSlots[i][j]] != 0) {
+                    nonzeros[compOf[i]]++;
+                }
+            }
+        }
+        for (k = 0; k != count; k++) {
+            CircuitComponent comp = components[k];
+            boolean ch[] = new boolean[comp.size];
+            for (i = 0; i != size; i++) {
+                if (compOf[i] == k) {
+                    ch[localRow[i]] = changing[i];
+                }
+            }
+            comp.solver = MatrixSolver.create(solverType, comp.size,
+                    nonzeros[k], ch);
+            comp.rightSide = new double[comp.size];
+            comp.origRightSide = new double[comp.size];
+        }
+        for (i = 0; i != size; i++) {
+            CircuitComponent comp = components[compOf[i]];
+            int r = localRow[i];
+            comp.rightSide[r] = comp.origRightSide[r] = rs[i];
+            for (j = 0; j != m.rowLen[i]; j++) {
+                double q = m.values[m.rowSlots[i][j]];
+                if (q != 0) {
+                    comp.solver.add(r, localCol[m.rowCols[i][j]], q);
+                }
+            }
+        }
+
+        // where each part's results go.  Elements that read the node
+        // voltages themselves get none, but their parts still have to
+        // note the voltage of each of their nodes.
+        for (j = 0; j != circuitMatrixFullSize; j++) {
+            if (j < nodeList.size() - 1) {
+                CircuitNode cn = getCircuitNode(j + 1);
+                for (k = 0; k != cn.links.size(); k++) {
+                    CircuitNodeLink cnl = cn.links.elementAt(k);
+                    if (!cnl.elm.readsNodeVoltages()) {
+                        elmComp.get(cnl.elm).addOutput(j, cnl.elm, cnl.num);
+                    }
+                }
+                for (k = 0; k != cn.links.size(); k++) {
+                    CircuitNodeLink cnl = cn.links.elementAt(k);
+                    CircuitComponent comp = elmComp.get(cnl.elm);
+                    if (cnl.elm.readsNodeVoltages() && (comp.outCount == 0
+                            || comp.outRow[comp.outCount - 1] != j)) {
+                        comp.addOutput(j, null, cnl.num);
+                    }
+                }
+            } else {
+                CircuitElm ce = voltageSources[j - (nodeList.size() - 1)];
+                elmComp.get(ce).addOutput(j, ce, -1);
+            }
+        }
+    }
+
+    // which of the stepping methods ce's class overrides, as
+    // OVERRIDES_* bits
+    static int getOverrides(CircuitElm ce) {
+        Class<?> c = ce.getClass();
+        synchronized (elmOverrides) {
+            Integer ov = elmOverrides.get(c);
+            if (ov == null) {
+                int x = 0;
+                if (overrides(c, "startIteration")) {
+                    x |= OVERRIDES_START_ITERATION;
+                }
+                if (overrides(c, "doStep")) {
+                    x |= OVERRIDES_DO_STEP;
+                }
+                if (overrides(c, "estimateTimeStep")) {
+                    x |= OVERRIDES_ESTIMATE_TIME_STEP;
+                }
+                if (overrides(c, "calculateCurrent")) {
+                    x |= OVERRIDES_CALCULATE_CURRENT;
+                }
+                ov = x;
+                elmOverrides.put(c, ov);
+            }
+            return ov;
+        }
+    }
+
+    static boolean overrides(Class<?> c, String method) {
+        try {
+            return c.getMethod(method).getDeclaringClass() != CircuitElm.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    // the first n elements of list, with those of the same class together
+    // (classes in order of first appearance, elements of a class in list
+    // order).  A loop over them then runs through one implementation of a
+    // method at a time, which keeps the call's target predictable.
+    static CircuitElm[] groupByClass(CircuitElm list[], int n) {
+        CircuitElm out[] = new CircuitElm[n];
+        boolean done[] = new boolean[n];
+        int i, j, k = 0;
+        for (i = 0; i != n; i++) {
+            if (done[i]) {
+                continue;
+            }
+            Class<?> c = list[i].getClass();
+            for (j = i; j != n; j++) {
+                if (!done[j] && list[j].getClass() == c) {
+                    out[k++] = list[j];
+                    done[j] = true;
+                }
+            }
+        }
+        return out;
+    }
+
+    static void union(int up[], int a, int b) {
+        a = CircuitGraph.find(up, a);
+        b = CircuitGraph.find(up, b);
+        if (a != b) {
+            up[a] = b;
+        }
+    }
+
+    // reserve the matrix entries the nonlinear elements may stamp in
+    // doStep(), so the solver's symbolic analysis covers them: every pair
+    // of an element's nodes and voltage source rows.
+    void reserveNonLinearStamps() {
+        int i, j, k;
+        int vs = 0;
+        int rows[] = new int[16];
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            int ivs = ce.getVoltageSourceCount();
+            if (ce.nonLinear()) {
+                int nodes = ce.getPostCount() + ce.getInternalNodeCount();
+                if (rows.length < nodes + ivs) {
+                    rows = new int[nodes + ivs];
+                }
+                int rc = 0;
+                for (j = 0; j != nodes; j++) {
+                    rows[rc++] = ce.getNode(j);
+                }
+                for (j = 0; j != ivs; j++) {
+                    rows[rc++] = nodeList.size() + vs + j;
+                }
+                for (j = 0; j != rc; j++) {
+                    for (k = 0; k != rc; k++) {
+                        reserveMatrix(rows[j], rows[k]);
+                    }
+                }
+            }
+            vs += ivs;
+        }
+    }
+
+    void reserveMatrix(int i, int j) {
+        if (i > 0 && j > 0 && acAnalysis == null) {
+            RowInfo rri = circuitRowInfo[i - 1];
+            RowInfo ri = circuitRowInfo[j - 1];
+            if (rri.mapRow < 0 || ri.type == RowInfo.ROW_CONST) {
+                return;
+            }
+            rri.comp.solver.reserve(rri.mapRow, ri.mapCol);
+        }
+    }
+
+    // give every element's posts and internal nodes a node, from scratch
+    void allocNodes(Point groundPt) {
+        int i;
+        nodeList = new Vector<CircuitNode>();
+        nodeMap = new NodeMap(elmList.size() * 2);
+        CircuitNode cn = new CircuitNode();
+        cn.x = groundPt.x;
+        cn.y = groundPt.y;
+        nodeList.addElement(cn);
+        nodeMap.put(cn.x, cn.y, 0);
+        for (i = 0; i != elmList.size(); i++) {
+            linkNodes(getElm(i));
+        }
+    }
+
+    // match the posts of ce to nodes, making new nodes where needed, and
+    // give it new internal nodes
+    void linkNodes(CircuitElm ce) {
+        int j;
+        int inodes = ce.getInternalNodeCount();
+        int posts = ce.getPostCount();
+
+        // allocate a node for each post and match posts to nodes
+        for (j = 0; j != posts; j++) {
+            Point pt = ce.getPost(j);
+            int k = nodeMap.get(pt.x, pt.y);
+            if (k < 0) {
+                CircuitNode cn = new CircuitNode();
+                cn.x = pt.x;
+                cn.y = pt.y;
+                CircuitNodeLink cnl = new CircuitNodeLink();
+                cnl.num = j;
+                cnl.elm = ce;
+                cn.links.addElement(cnl);
+                ce.setNode(j, nodeList.size());
+                nodeMap.put(pt.x, pt.y, nodeList.size());
+                nodeList.addElement(cn);
+            } else {
+                CircuitNodeLink cnl = new CircuitNodeLink();
+                cnl.num = j;
+                cnl.elm = ce;
+                getCircuitNode(k).links.addElement(cnl);
+                ce.setNode(j, k);
+                // if it's the ground node, make sure the node voltage is 0,
+                // cause it may not get set later
+                if (k == 0) {
+                    ce.setNodeVoltage(j, 0);
+                }
+            }
+        }
+        for (j = 0; j != inodes; j++) {
+            CircuitNode cn = new CircuitNode();
+            cn.x = cn.y = -1;
+            cn.internal = true;
+            CircuitNodeLink cnl = new CircuitNodeLink();
+            cnl.num = j + posts;
+            cnl.elm = ce;
+            cn.links.addElement(cnl);
+            ce.setNode(cnl.num, nodeList.size());
+            nodeList.addElement(cn);
+        }
+    }
+
+    // remember each element's nodes and post locations for updateNodes()
+    void saveNodes() {
+        int i, j;
+        int n = elmList.size();
+        analyzedElms = new CircuitElm[n];
+        analyzedNodes = new int[n][];
+        analyzedPosts = new int[n][];
+        for (i = 0; i != n; i++) {
+            CircuitElm ce = getElm(i);
+            int posts = ce.getPostCount();
+            int nodes[] = new int[posts + ce.getInternalNodeCount()];
+            int pts[] = new int[posts * 2];
+            for (j = 0; j != nodes.length; j++) {
+                nodes[j] = ce.getNode(j);
+            }
+            for (j = 0; j != posts; j++) {
+                Point pt = ce.getPost(j);
+                pts[j * 2] = pt.x;
+                pts[j * 2 + 1] = pt.y;
+            }
+            analyzedElms[i] = ce;
+            analyzedNodes[i] = nodes;
+            analyzedPosts[i] = pts;
+        }
+    }
+
+    // has ce kept the nodes and post locations it had in the last
+    // analysis, where it was element o?
+    boolean sameNodes(CircuitElm ce, int o) {
+        int nodes[] = analyzedNodes[o];
+        int pts[] = analyzedPosts[o];
+        int posts = ce.getPostCount();
+        if (posts * 2 != pts.length
+                || posts + ce.getInternalNodeCount() != nodes.length) {
+            return false;
+        }
+        int j;
+        for (j = 0; j != nodes.length; j++) {
+            // an edit may have reallocated the element's nodes
+            if (ce.getNode(j) != nodes[j]) {
+                return false;
+            }
+        }
+        for (j = 0; j != posts; j++) {
+            Point pt = ce.getPost(j);
+            if (pt.x != pts[j * 2] || pt.y != pts[j * 2 + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // update the nodes from the last analysis for the elements that were
+    // added, removed, moved or changed since, leaving the rest alone.
+    // Returns false if so much changed that allocNodes() should start
+    // over.
+    boolean updateNodes() {
+        if (analyzedElms == null || nodeList == null) {
+            return false;
+        }
+        int i, j;
+        IdentityHashMap<CircuitElm, Integer> old
+                = new IdentityHashMap<CircuitElm, Integer>();
+        for (i = 0; i != analyzedElms.length; i++) {
+            old.put(analyzedElms[i], i);
+        }
+        boolean keep[] = new boolean[analyzedElms.length];
+        boolean relink[] = new boolean[elmList.size()];
+        int changed = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            Integer o = old.get(ce);
+            if (o != null && !keep[o] && sameNodes(ce, o)) {
+                keep[o] = true;
+            } else {
+                relink[i] = true;
+                changed++;
+            }
+        }
+        for (i = 0; i != analyzedElms.length; i++) {
+            if (!keep[i]) {
+                changed++;
+            }
+        }
+        if (changed == 0) {
+            return true;
+        }
+        if (changed * 2 > elmList.size()) {
+            return false;
+        }
+
+        // take the old elements off their nodes; nodes left with nothing
+        // on them are freed
+        int freed[] = new int[16];
+        int freeCount = 0;
+        for (i = 0; i != analyzedElms.length; i++) {
+            if (keep[i]) {
+                continue;
+            }
+            CircuitElm ce = analyzedElms[i];
+            int nodes[] = analyzedNodes[i];
+            int posts = analyzedPosts[i].length / 2;
+            for (j = 0; j != nodes.length; j++) {
+                CircuitNode cn = getCircuitNode(nodes[j]);
+                int k;
+                for (k = 0; k != cn.links.size(); k++) {
+                    CircuitNodeLink cnl = cn.links.elementAt(k);
+                    if (cnl.elm == ce && cnl.num == j) {
+                        cn.links.removeElementAt(k);
+                        break;
+                    }
+                }
+                if (nodes[j] == 0 || !cn.links.isEmpty()) {
+                    continue;
+                }
+                if (j < posts) {
+                    nodeMap.remove(cn.x, cn.y);
+                }
+                if (freeCount == freed.length) {
+                    int nf[] = new int[freeCount * 2];
+                    System.arraycopy(freed, 0, nf, 0, freeCount);
+                    freed = nf;
+                }
+                freed[freeCount++] = nodes[j];
+            }
+        }
+
+        // put the new ones on
+        for (i = 0; i != elmList.size(); i++) {
+            if (relink[i]) {
+                linkNodes(getElm(i));
+            }
+        }
+
+        // fill the holes left by freed nodes with nodes from the end
+        int n = nodeList.size();
+        boolean free[] = new boolean[n];
+        for (i = 0; i != freeCount; i++) {
+            free[freed[i]] = true;
+        }
+        int h = 0;
+        while (true) {
+            while (n > 0 && free[n - 1]) {
+                n--;
+            }
+            while (h < n && !free[h]) {
+                h++;
+            }
+            if (h == n) {
+                break;
+            }
+            CircuitNode cn = nodeList.elementAt(--n);
+            nodeList.setElementAt(cn, h);
+            free[h] = false;
+            for (j = 0; j != cn.links.size(); j++) {
+                CircuitNodeLink cnl = cn.links.elementAt(j);
+                cnl.elm.setNode(cnl.num, h);
+            }
+            if (!cn.internal) {
+                nodeMap.put(cn.x, cn.y, h);
+            }
+        }
+        nodeList.setSize(n);
+        return true;
     }
 
     void calcCircuitBottom() {
@@ -1261,8 +1969,13 @@ public class CircuitSimulator extends JPanel {
         return gridSize;
     }
 
+    // called by an element's doStep() when the circuit hasn't settled;
+    // only the part of the circuit the element is in iterates again
     public void setConverged(boolean converged) {
-        this.converged = converged;
+        CircuitComponent comp = stepComponent.get();
+        if (comp != null) {
+            comp.converged = converged;
+        }
     }
 
     public void setUnstable(boolean unstable) {
@@ -1274,13 +1987,170 @@ public class CircuitSimulator extends JPanel {
     }
 
     public boolean isConverged() {
-        return converged;
+        CircuitComponent comp = stepComponent.get();
+        return comp == null || comp.converged;
     }
 
     void setTimeStep(double timeStep) {
         this.timeStep = timeStep;
     }
 
+    // the time step set by the user, as opposed to the one in use
+    public double getNominalTimeStep() {
+        return timeStep;
+    }
+
+    public boolean isAdaptiveTimeStep() {
+        return adaptiveTimeStep;
+    }
+
+    public void setAdaptiveTimeStep(boolean adaptiveTimeStep) {
+        this.adaptiveTimeStep = adaptiveTimeStep;
+        needAnalyze();
+    }
+
+    // an element's output just jumped (a timer or logic output, or a
+    // switch driven by the circuit); with an adaptive time step the step
+    // it happened in is taken again with timeStep
+    public void discontinuity() {
+        discontinuity = true;
+    }
+
+    public int getIntegrationMethod() {
+        return integrationMethod;
+    }
+
+    public void setIntegrationMethod(int integrationMethod) {
+        this.integrationMethod = integrationMethod;
+        needAnalyze();
+    }
+
+    // the method an element uses, given whether its back euler flag is
+    // set: INTEGRATE_TRAPEZOIDAL, INTEGRATE_BACK_EULER or INTEGRATE_GEAR
+    public int getIntegrationMethod(boolean backEuler) {
+        if (exactBackEuler) {
+            return INTEGRATE_BACK_EULER;
+        }
+        if (integrationMethod != INTEGRATE_ELEMENT) {
+            return integrationMethod;
+        }
+        return backEuler ? INTEGRATE_BACK_EULER : INTEGRATE_TRAPEZOIDAL;
+    }
+
+    public boolean isExactStepping() {
+        return exactStepping;
+    }
+
+    public void setExactStepping(boolean exactStepping) {
+        this.exactStepping = exactStepping;
+        exactBackEuler = false;
+        needAnalyze();
+    }
+
+    // the stepper in use, or null if exact stepping is off or the circuit
+    // can't be stepped exactly
+    public ExactStepper getExactStepper() {
+        return exactStepper;
+    }
+
+    // why the circuit can't be stepped exactly, or null
+    public String getExactStepMessage() {
+        return exactStepMessage;
+    }
+
+    // how the last findOperatingPoint() went: whether it found the
+    // operating point, and with which method, or null if it hasn't run
+    public String getDCMessage() {
+        return dcMessage;
+    }
+
+    // bounds for the adaptive time step; 0 means timeStep/100 and
+    // timeStep*100
+    public double getMinTimeStep() {
+        return (minTimeStep > 0) ? minTimeStep : timeStep / 100;
+    }
+
+    public void setMinTimeStep(double minTimeStep) {
+        this.minTimeStep = minTimeStep;
+    }
+
+    public double getMaxTimeStep() {
+        return (maxTimeStep > 0) ? maxTimeStep : timeStep * 100;
+    }
+
+    public void setMaxTimeStep(double maxTimeStep) {
+        this.maxTimeStep = maxTimeStep;
+    }
+
+    // relative local truncation error allowed per step
+    public double getTimeStepTolerance() {
+        return timeStepTolerance;
+    }
+
+    public void setTimeStepTolerance(double timeStepTolerance) {
+        this.timeStepTolerance = timeStepTolerance;
+    }
+
+    public double getBypassTolerance() {
+        return bypassTolerance;
+    }
+
+    // 0 turns device bypass off
+    public void setBypassTolerance(double bypassTolerance) {
+        this.bypassTolerance = bypassTolerance;
+    }
+
+    // the n elements furthest from converging in the last iteration,
+    // worst first; only elements that were still moving are included.
+    // Useful for finding what keeps a circuit from converging.
+    public CircuitElm[] getWorstConvergedElements(int n) {
+        Vector<CircuitElm> v = new Vector<CircuitElm>();
+        int i;
+        for (i = 0; i != elmList.size(); i++) {
+            if (getElm(i).getConvergenceError() > 0) {
+                v.add(getElm(i));
+            }
+        }
+        CircuitElm arr[] = new CircuitElm[v.size()];
+        v.copyInto(arr);
+        Arrays.sort(arr, new Comparator<CircuitElm>() {
+            public int compare(CircuitElm a, CircuitElm b) {
+                return Double.compare(b.getConvergenceError(),
+                        a.getConvergenceError());
+            }
+        });
+        if (arr.length > n) {
+            CircuitElm worst[] = new CircuitElm[n];
+            System.arraycopy(arr, 0, worst, 0, n);
+            arr = worst;
+        }
+        return arr;
+    }
+
+    public int getSolverType() {
+        return solverType;
+    }
+
+    // choose the matrix solver; one of the MatrixSolver.SOLVER_ constants
+    public void setSolverType(int solverType) {
+        this.solverType = solverType;
+        needAnalyze();
+    }
+
+    // solver of the first part of the circuit (the only one, unless the
+    // circuit has separate parts)
+    public MatrixSolver getMatrixSolver() {
+        return (components == null) ? null : components[0].solver;
+    }
+
+    public int getCircuitComponentCount() {
+        return (components == null) ? 0 : components.length;
+    }
+
+    public CircuitComponent getCircuitComponent(int n) {
+        return components[n];
+    }
+
     public CircuitElm getPlotXElm() {
         return plotXElm;
     }
@@ -1297,8 +2167,11 @@ public class CircuitSimulator extends JPanel {
         return analyzeFlag;
     }
 
+    // iterations so far in this time step, of the part of the circuit
+    // being stepped
     public int getSubIterations() {
-        return subIterations;
+        CircuitComponent comp = stepComponent.get();
+        return (comp == null) ? 0 : comp.subIterations;
     }
 
     public boolean useBufferedImage() {
@@ -1389,123 +2262,6 @@ public class CircuitSimulator extends JPanel {
         return disabled;
     }
 
-    public class FindPathInfo {
-
-        static final int INDUCT = 1;
-        static final int VOLTAGE = 2;
-        static final int SHORT = 3;
-        static final int CAP_V = 4;
-        boolean used[];
-        int dest;
-        CircuitElm firstElm;
-        int type;
-
-        FindPathInfo(int t, CircuitElm e, int d) {
-            dest = d;
-            type = t;
-            firstElm = e;
-            used = new boolean[nodeList.size()];
-        }
-
-        boolean findPath(int n1) {
-            return findPath(n1, -1);
-        }
-
-        boolean findPath(int n1, int depth) {
-            if (n1 == dest) {
-                return true;
-            }
-            if (depth-- == 0) {
-                return false;
-            }
-            if (used[n1]) {
-                //System.out.println("used " + n1);
-                return false;
-            }
-            used[n1] = true;
-            int i;
-            for (i = 0; i != elmList.size(); i++) {
-                CircuitElm ce = getElm(i);
-                if (ce == firstElm) {
-                    continue;
-                }
-                if (type == INDUCT) {
-                    if (ce instanceof CurrentElm) {
-                        continue;
-                    }
-                }
-                if (type == VOLTAGE) {
-                    if (!(ce.isWire() || ce instanceof VoltageElm)) {
-                        continue;
-                    }
-                }
-                if (type == SHORT && !ce.isWire()) {
-                    continue;
-                }
-                if (type == CAP_V) {
-                    if (!(ce.isWire() || ce instanceof CapacitorElm
-                            || ce instanceof VoltageElm)) {
-                        continue;
-                    }
-                }
-                if (n1 == 0) {
-                    // look for posts which have a ground connection;
-                    // our path can go through ground
-                    int j;
-                    for (j = 0; j != ce.getPostCount(); j++) {
-                        if (ce.hasGroundConnection(j)
-                                && findPath(ce.getNode(j), depth)) {
-                            used[n1] = false;
-                            return true;
-                        }
-                    }
-                }
-                int j;
-                for (j = 0; j != ce.getPostCount(); j++) {
-                    //System.out.println(ce + " " + ce.getNode(j));
-                    if (ce.getNode(j) == n1) {
-                        break;
-                    }
-                }
-                if (j == ce.getPostCount()) {
-                    continue;
-                }
-                if (ce.hasGroundConnection(j) && findPath(0, depth)) {
-                    //System.out.println(ce + " has ground");
-                    used[n1] = false;
-                    return true;
-                }
-                if (type == INDUCT && ce instanceof InductorElm) {
-                    double c = ce.getCurrent();
-                    if (j == 0) {
-                        c = -c;
-                    }
-                    //System.out.println("matching " + c + " to " + firstElm.getCurrent());
-                    //System.out.println(ce + " " + firstElm);
-                    if (Math.abs(c - firstElm.getCurrent()) > 1e-10) {
-                        continue;
-                    }
-                }
-                int k;
-                for (k = 0; k != ce.getPostCount(); k++) {
-                    if (j == k) {
-                        continue;
-                    }
-                    //System.out.println(ce + " " + ce.getNode(j) + "-" + ce.getNode(k));
-                    if (ce.getConnection(j, k) && findPath(ce.getNode(k), depth)) {
-                        //System.out.println("got findpath " + n1);
-                        used[n1] = false;
-                        return true;
-                    }
-                    //System.out.println("back on findpath " + n1);
-                }
-            }
-            used[n1] = false;
-            //System.out.println(n1 + " failed");
-            return false;
-        }
-    }
-
     public void stop(String s, CircuitElm ce) {
         stopMessage = s;
 //        circuitMatrix = null;
@@ -1568,6 +2324,104 @@ public class CircuitSimulator extends JPanel {
         stampMatrix(n2, n1, -r0);
     }
 
+    // change the conductance between n1 and n2 by g, for elements that
+    // switch between a few fixed conductances.  Unlike stampConductance()
+    // this is a lasting change to the linear part of the matrix; the
+    // element stamps its initial conductance in stamp() and should also
+    // call stampNonLinear() on both nodes there, so their rows aren't
+    // simplified away.  In a linear circuit the change is applied to the
+    // existing factors as a low-rank update instead of refactoring.
+    public void updateConductance(int n1, int n2, double g) {
+        updateVCCurrentSource(n1, n2, n1, n2, g);
+    }
+
+    // change a voltage controlled current source (see
+    // stampVCCurrentSource()) by g, the same way as updateConductance().
+    // Also used by timeStepChanged() to restamp companion models, in
+    // which case only the saved original matrix is changed and
+    // changeTimeStep() refactors afterwards.
+    public void updateVCCurrentSource(int cn1, int cn2, int vn1, int vn2,
+            double g) {
+        if (g == 0) {
+            return;
+        }
+        if (!circuitNeedsMap || acAnalysis != null) {
+            stampVCCurrentSource(cn1, cn2, vn1, vn2, g);
+            return;
+        }
+        int rows[] = new int[2];
+        double rowValues[] = new double[2];
+        int cols[] = new int[2];
+        double colValues[] = new double[2];
+        int nr = 0, nc = 0;
+        double constValue = 0;
+        CircuitComponent comp = null;
+        int k;
+        for (k = 0; k != 2; k++) {
+            int n = (k == 0) ? cn1 : cn2;
+            if (n == 0) {
+                continue;
+            }
+            RowInfo ri = circuitRowInfo[n - 1];
+            if (ri.mapRow >= 0) {
+                comp = ri.comp;
+                rows[nr] = ri.mapRow;
+                rowValues[nr++] = (k == 0) ? 1 : -1;
+            }
+        }
+        for (k = 0; k != 2; k++) {
+            int n = (k == 0) ? vn1 : vn2;
+            double sign = (k == 0) ? 1 : -1;
+            if (n == 0) {
+                continue;
+            }
+            RowInfo ri = circuitRowInfo[n - 1];
+            if (ri.type == RowInfo.ROW_CONST) {
+                constValue += sign * ri.value;
+            } else if (nc == 1 && cols[0] == ri.mapCol) {
+                // both nodes map to the same column
+                nc = 0;
+            } else {
+                cols[nc] = ri.mapCol;
+                colValues[nc++] = sign;
+            }
+        }
+        // columns with a known voltage end up on the right side
+        for (k = 0; k != nr; k++) {
+            comp.origRightSide[rows[k]] -= g * rowValues[k] * constValue;
+            comp.rightSide[rows[k]] -= g * rowValues[k] * constValue;
+        }
+        if (nr == 0 || nc == 0) {
+            return;
+        }
+        if (nr == 1) {
+            rows = new int[]{rows[0]};
+            rowValues = new double[]{rowValues[0]};
+        }
+        if (nc == 1) {
+            cols = new int[]{cols[0]};
+            colValues = new double[]{colValues[0]};
+        }
+        int i, j;
+        MatrixSolver solver = comp.solver;
+        if (restamping || comp.nonLinear) {
+            // the matrix gets refactored anyway
+            for (i = 0; i != nr; i++) {
+                for (j = 0; j != nc; j++) {
+                    double x = g * rowValues[i] * colValues[j];
+                    if (!restamping) {
+                        solver.add(rows[i], cols[j], x);
+                    }
+                    solver.addOriginal(rows[i], cols[j], x);
+                }
+            }
+            return;
+        }
+        if (!solver.updateRankOne(rows, rowValues, cols, colValues, g)) {
+            stop("Singular matrix!", null);
+        }
+    }
+
     // current from cn1 to cn2 is equal to voltage from vn1 to 2, divided by g
     public void stampVCCurrentSource(int cn1, int cn2, int vn1, int vn2, double g) {
         stampMatrix(cn1, vn1, g);
@@ -1593,38 +2447,172 @@ public class CircuitSimulator extends JPanel {
     // (Unless i or j is a voltage source node.)
     public void stampMatrix(int i, int j, double x) {
         if (i > 0 && j > 0) {
-            if (circuitNeedsMap) {
-                i = circuitRowInfo[i - 1].mapRow;
+            if (acAnalysis != null) {
+                acAnalysis.stamp(i, j, x);
+            } else if (circuitNeedsMap) {
+                RowInfo rri = circuitRowInfo[i - 1];
+                i = rri.mapRow;
                 RowInfo ri = circuitRowInfo[j - 1];
                 if (ri.type == RowInfo.ROW_CONST) {
                     //System.out.println("Stamping constant " + i + " " + j + " " + x);
-                    circuitRightSide[i] -= x * ri.value;
+                    rri.comp.rightSide[i] -= x * ri.value;
                     return;
                 }
                 j = ri.mapCol;
                 //System.out.println("stamping " + i + " " + j + " " + x);
+                rri.comp.solver.add(i, j, x);
             } else {
-                i--;
-                j--;
+                circuitMatrix.add(i - 1, j - 1, x);
             }
-            circuitMatrix[i][j] += x;
         }
     }
 
     // stamp value x on the right side of row i, representing an
     // independent current source flowing into node i
     public void stampRightSide(int i, double x) {
-        if (i > 0) {
+        if (i > 0 && acAnalysis == null) {
             if (circuitNeedsMap) {
-                i = circuitRowInfo[i - 1].mapRow;
-                //System.out.println("stamping " + i + " " + x);
+                RowInfo ri = circuitRowInfo[i - 1];
+                //System.out.println("stamping " + ri.mapRow + " " + x);
+                ri.comp.rightSide[ri.mapRow] += x;
             } else {
-                i--;
+                circuitRightSide[i - 1] += x;
             }
-            circuitRightSide[i] += x;
         }
     }
 
+    // Stamp handles.  stampMatrix() has to map its row and column to a
+    // part of the simplified matrix and look the entry up there each
+    // time; getStampHandle(i, j) does that once, when the circuit is
+    // analyzed, and stampHandle() then adds straight into the solver's
+    // storage.  Elements get their handles in resolveStamps(), which is
+    // called at the end of analyzeCircuit(); they're good until the next
+    // analysis.  -1 is a handle that ignores its stamps (ground).
+    public int getStampHandle(int i, int j) {
+        if (i <= 0 || j <= 0) {
+            return -1;
+        }
+        RowInfo rri = circuitRowInfo[i - 1];
+        RowInfo ri = circuitRowInfo[j - 1];
+        if (rri.mapRow < 0) {
+            return -1;
+        }
+        int h = newHandle(i, j, rri);
+        if (ri.type == RowInfo.ROW_CONST) {
+            handleValue[h] = ri.value;
+        } else {
+            handleSolver[h] = rri.comp.solver;
+            handleSlot[h] = rri.comp.solver.getSlot(rri.mapRow, ri.mapCol);
+        }
+        return h;
+    }
+
+    // a handle for the right side of row i, for stampRightSideHandle()
+    public int getRightSideHandle(int i) {
+        if (i <= 0 || circuitRowInfo[i - 1].mapRow < 0) {
+            return -1;
+        }
+        return newHandle(i, 0, circuitRowInfo[i - 1]);
+    }
+
+    int newHandle(int i, int j, RowInfo rri) {
+        if (handleSolver == null || handleCount == handleSolver.length) {
+            int n = (handleSolver == null) ? 64 : handleCount * 2;
+            MatrixSolver ns[] = new MatrixSolver[n];
+            double nr[][] = new double[n][];
+            if (handleCount > 0) {
+                System.arraycopy(handleSolver, 0, ns, 0, handleCount);
+                System.arraycopy(handleRight, 0, nr, 0, handleCount);
+            }
+            handleSolver = ns;
+            handleRight = nr;
+            handleSlot = growArray(handleSlot, handleCount, n);
+            handleRow = growArray(handleRow, handleCount, n);
+            handleNodeI = growArray(handleNodeI, handleCount, n);
+            handleNodeJ = growArray(handleNodeJ, handleCount, n);
+            double nv[] = new double[n];
+            if (handleCount > 0) {
+                System.arraycopy(handleValue, 0, nv, 0, handleCount);
+            }
+            handleValue = nv;
+        }
+        int h = handleCount++;
+        handleSolver[h] = null;
+        handleSlot[h] = -1;
+        handleRight[h] = rri.comp.rightSide;
+        handleRow[h] = rri.mapRow;
+        handleValue[h] = 0;
+        handleNodeI[h] = i;
+        handleNodeJ[h] = j;
+        return h;
+    }
+
+    static int[] growArray(int a[], int count, int n) {
+        int na[] = new int[n];
+        if (count > 0) {
+            System.arraycopy(a, 0, na, 0, count);
+        }
+        return na;
+    }
+
+    // stampMatrix(i, j, x) for the i and j of handle h
+    public void stampHandle(int h, double x) {
+        if (h < 0) {
+            return;
+        }
+        if (acAnalysis != null) {
+            stampMatrix(handleNodeI[h], handleNodeJ[h], x);
+            return;
+        }
+        MatrixSolver s = handleSolver[h];
+        if (s != null) {
+            s.addSlot(handleSlot[h], x);
+        } else {
+            handleRight[h][handleRow[h]] -= x * handleValue[h];
+        }
+    }
+
+    // stampRightSide(i, x) for the i of handle h
+    public void stampRightSideHandle(int h, double x) {
+        if (h >= 0 && acAnalysis == null) {
+            handleRight[h][handleRow[h]] += x;
+        }
+    }
+
+    // handles for the four entries stampConductance(n1, n2, g) stamps
+    public int[] getConductanceHandles(int n1, int n2) {
+        return new int[]{getStampHandle(n1, n1), getStampHandle(n2, n2),
+            getStampHandle(n1, n2), getStampHandle(n2, n1)};
+    }
+
+    public void stampResistor(int h[], double r) {
+        double r0 = 1 / r;
+        if (Double.isNaN(r0) || Double.isInfinite(r0)) {
+            System.out.print("bad resistance " + r + " " + r0 + "\n");
+            int a = 0;
+            a /= a;
+        }
+        stampConductance(h, r0);
+    }
+
+    public void stampConductance(int h[], double g) {
+        stampHandle(h[0], g);
+        stampHandle(h[1], g);
+        stampHandle(h[2], -g);
+        stampHandle(h[3], -g);
+    }
+
+    // handles for the right side rows stampCurrentSource(n1, n2, i)
+    // stamps
+    public int[] getCurrentSourceHandles(int n1, int n2) {
+        return new int[]{getRightSideHandle(n1), getRightSideHandle(n2)};
+    }
+
+    public void stampCurrentSource(int h[], double i) {
+        stampRightSideHandle(h[0], -i);
+        stampRightSideHandle(h[1], i);
+    }
+
     // indicate that the value on the right side of row i changes in doStep()
     public void stampRightSide(int i) {
         //System.out.println("rschanges true " + (i-1));
@@ -1648,18 +2636,13 @@ public class CircuitSimulator extends JPanel {
         return .1 * Math.exp((speedBarValue - 61) / 24.);
     }
 
-    boolean converged;
-    int subIterations;
-
     public void runCircuit() {
-        if (circuitMatrix == null || elmList.isEmpty()) {
-            circuitMatrix = null;
+        if (components == null || elmList.isEmpty()) {
+            components = null;
             return;
         }
         int iter;
         //int maxIter = getIterCount();
-        boolean debugprint = dumpMatrix;
-        dumpMatrix = false;
         long steprate = (long) (160 * getIterCount());
         long tm = System.currentTimeMillis();
         long lit = lastIterTime;
@@ -1667,118 +2650,548 @@ public class CircuitSimulator extends JPanel {
             return;
         }
         for (iter = 1;; iter++) {
-            int i, j, k, subiter;
-            for (i = 0; i != elmList.size(); i++) {
-                CircuitElm ce = getElm(i);
-                ce.startIteration();
-            }
-            steps++;
-            final int subiterCount = 5000;
-            for (subiter = 0; subiter != subiterCount; subiter++) {
-                converged = true;
-                subIterations = subiter;
-                for (i = 0; i != circuitMatrixSize; i++) {
-                    circuitRightSide[i] = origRightSide[i];
-                }
-                if (circuitNonLinear) {
-                    for (i = 0; i != circuitMatrixSize; i++) {
-                        for (j = 0; j != circuitMatrixSize; j++) {
-                            circuitMatrix[i][j] = origMatrix[i][j];
-                        }
-                    }
+            if (!stepCircuit()) {
+                break;
+            }
+            tm = System.currentTimeMillis();
+            lit = tm;
+            if (iter * 1000 >= steprate * (tm - lastIterTime)
+                    || (tm - lastFrameTime > 500)) {
+                break;
+            }
+        }
+        lastIterTime = lit;
+        //System.out.println((System.currentTimeMillis()-lastFrameTime)/(double) iter);
+    }
+
+    // advance the simulation by one time step.  Returns false if the
+    // simulation stopped; stopMessage says why.
+    boolean stepCircuit() {
+        int i;
+        if (resting) {
+            // nothing in the circuit can change until it's woken up
+            t += getTimeStep();
+            restSteps++;
+            if (!headless) {
+                for (i = 0; i != scopeCount; i++) {
+                    scopes[i].timeStep();
                 }
-                for (i = 0; i != elmList.size(); i++) {
-                    CircuitElm ce = getElm(i);
-                    ce.doStep();
+            }
+            return true;
+        }
+        boolean debugprint = dumpMatrix;
+        dumpMatrix = false;
+        if (exactStepping && exactStepper == null
+                && exactStepMessage == null) {
+            ExactStepper es = new ExactStepper(this);
+            if (es.build()) {
+                exactStepper = es;
+            } else {
+                exactStepMessage = es.getStopMessage();
+            }
+        }
+        int subiter = (exactStepper != null) ? exactStepper.step()
+                : (adaptiveTimeStep) ? adaptiveIntegrateStep(debugprint)
+                : integrateStep(debugprint);
+        if (subiter < 0) {
+            return false;
+        }
+        if (subiter > 1) {
+            System.out.print("converged after " + subiter + " iterations\n");
+            unstable = false;
+        }
+        if (!headless) {
+            for (i = 0; i != scopeCount; i++) {
+                scopes[i].timeStep();
+            }
+        }
+        if (adaptiveTimeStep) {
+            adaptTimeStep(subiter);
+            if (stopMessage != null) {
+                return false;
+            }
+        }
+        if (canRest) {
+            checkRest();
+        }
+        return true;
+    }
+
+    // find the elements with state variables, and see whether the
+    // circuit may rest
+    void setupStates() {
+        int i, n = 0, count = 0;
+        canRest = restEnabled;
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            if (!ce.isTimeInvariant()) {
+                canRest = false;
+            }
+            if (ce.getStateCount() > 0) {
+                n++;
+            }
+        }
+        stateElms = new CircuitElm[n];
+        stateIndex = new int[n];
+        n = 0;
+        for (i = 0; i != elmList.size(); i++) {
+            CircuitElm ce = getElm(i);
+            if (ce.getStateCount() > 0) {
+                stateElms[n] = ce;
+                stateIndex[n++] = count;
+                count += ce.getStateCount();
+            }
+        }
+        stepState = new double[count];
+        stepVoltages = new double[nodeVoltages.length];
+        if (!canRest) {
+            return;
+        }
+        restState = new double[count];
+        lastRestState = new double[count];
+        lastNodeVoltages = new double[nodeVoltages.length];
+    }
+
+    // count the steps in a row that changed nothing, and rest after
+    // REST_STEPS of them
+    void checkRest() {
+        int i;
+        boolean changed = false;
+        for (i = 0; i != nodeVoltages.length; i++) {
+            if (nodeVoltages[i] != lastNodeVoltages[i]) {
+                lastNodeVoltages[i] = nodeVoltages[i];
+                changed = true;
+            }
+        }
+        getStates(restState);
+        for (i = 0; i != restState.length; i++) {
+            if (restState[i] != lastRestState[i]) {
+                lastRestState[i] = restState[i];
+                changed = true;
+            }
+        }
+        quietSteps = (changed) ? 0 : quietSteps + 1;
+        if (quietSteps >= REST_STEPS) {
+            resting = true;
+        }
+    }
+
+    // something changed that an analysis wouldn't notice (a slider read
+    // every step, or states set from outside); start solving again
+    public void wake() {
+        resting = false;
+        quietSteps = 0;
+    }
+
+    public boolean isResting() {
+        return resting;
+    }
+
+    // steps skipped while the circuit was resting
+    public long getRestSteps() {
+        return restSteps;
+    }
+
+    public boolean isRestEnabled() {
+        return restEnabled;
+    }
+
+    public void setRestEnabled(boolean restEnabled) {
+        this.restEnabled = restEnabled;
+        needAnalyze();
+    }
+
+    // the step itself, without the scopes or step size control: start
+    // the elements' iteration, converge and advance t.  Returns the most
+    // iterations any part of the circuit took, or -1 if the simulation
+    // stopped.
+    int integrateStep(boolean debugprint) {
+        int i;
+        CircuitElm iter[] = iterationElms;
+        for (i = 0; i != iter.length; i++) {
+            iter[i].startIteration();
+        }
+        steps++;
+        int subiter = stepComponents(debugprint);
+        if (subiter >= 0) {
+            t += getTimeStep();
+        }
+        return subiter;
+    }
+
+    // take a step of adaptiveStep, and take it again from where it
+    // started if it went wrong: with half the step (down to
+    // getMinTimeStep()) if it didn't converge, with timeStep if an
+    // element's output jumped during it, so the edge and what follows
+    // it are followed as closely as with a fixed step, or with the
+    // elements' estimate if its error was well over the tolerance.
+    // Returns what integrateStep() did for the step that was kept.
+    int adaptiveIntegrateStep(boolean debugprint) {
+        double t0 = t;
+        double edgeStep = Math.max(timeStep, getMinTimeStep());
+        boolean wasStopped = stopped;
+        getStates(stepState);
+        System.arraycopy(nodeVoltages, 0, stepVoltages, 0,
+                nodeVoltages.length);
+        while (true) {
+            double h = adaptiveStep;
+            discontinuity = false;
+            stepNotConverged = false;
+            int subiter = integrateStep(debugprint);
+            if (subiter < 0 && stepNotConverged && h > getMinTimeStep()) {
+                // undo the stop() and try a smaller step
+                stopMessage = null;
+                stopElm = null;
+                stopped = wasStopped;
+                changeTimeStep(Math.max(h / 2, getMinTimeStep()));
+            } else if (subiter >= 0 && discontinuity && h > edgeStep) {
+                changeTimeStep(edgeStep);
+            } else {
+                if (subiter < 0) {
+                    return subiter;
                 }
-                if (stopMessage != null) {
-                    return;
+                double err = estimateTimeStep();
+                if (discontinuity || stepEstimate <= 0 || err >= h / 2
+                        || h <= getMinTimeStep()) {
+                    return subiter;
                 }
-                boolean printit = debugprint;
-                debugprint = false;
-                for (j = 0; j != circuitMatrixSize; j++) {
-                    for (i = 0; i != circuitMatrixSize; i++) {
-                        double x = circuitMatrix[i][j];
-                        if (Double.isNaN(x) || Double.isInfinite(x)) {
-                            stop("nan/infinite matrix!", null);
-                            return;
-                        }
-                    }
+                changeTimeStep(Math.max(err * .8, getMinTimeStep()));
+            }
+            if (stopMessage != null) {
+                return -1;
+            }
+            t = t0;
+            setNodeVoltages(stepVoltages);
+            setStates(stepState);
+        }
+    }
+
+    void getStates(double x[]) {
+        int i;
+        for (i = 0; i != stateElms.length; i++) {
+            stateElms[i].getState(x, stateIndex[i]);
+        }
+    }
+
+    void setStates(double x[]) {
+        int i;
+        for (i = 0; i != stateElms.length; i++) {
+            stateElms[i].setState(x, stateIndex[i]);
+        }
+    }
+
+    // put the node voltages v[] back, in nodeVoltages[] and the
+    // elements, as if the circuit had just been solved with them
+    void setNodeVoltages(double v[]) {
+        int i, j;
+        for (i = 1; i != v.length; i++) {
+            nodeVoltages[i] = v[i];
+            CircuitNode cn = getCircuitNode(i);
+            for (j = 0; j != cn.links.size(); j++) {
+                CircuitNodeLink cnl = cn.links.elementAt(j);
+                cnl.elm.setNodeVoltage(cnl.num, v[i]);
+            }
+        }
+    }
+
+    // run each part of the circuit's convergence loop for this step;
+    // returns the most iterations any part took, or -1 if the simulation
+    // stopped.  If there are at least two big parts they go on a thread
+    // pool; small ones aren't worth handing to another thread.
+    int stepComponents(final boolean debugprint) {
+        int i, big = 0, subiter = 0;
+        for (i = 0; i != components.length; i++) {
+            if (components[i].size >= PARALLEL_MIN_SIZE) {
+                big++;
+            }
+        }
+        if (big < 2 || PARALLEL_THREADS < 2) {
+            for (i = 0; i != components.length; i++) {
+                int s = components[i].step(debugprint);
+                if (s < 0) {
+                    return -1;
+                }
+                subiter = Math.max(subiter, s);
+            }
+            return subiter;
+        }
+        Vector<Callable<Integer>> tasks = new Vector<Callable<Integer>>();
+        final Vector<CircuitComponent> small = new Vector<CircuitComponent>();
+        for (i = 0; i != components.length; i++) {
+            final CircuitComponent comp = components[i];
+            if (comp.size < PARALLEL_MIN_SIZE) {
+                small.add(comp);
+                continue;
+            }
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    return comp.step(debugprint);
                 }
-                if (printit) {
-                    for (j = 0; j != circuitMatrixSize; j++) {
-                        for (i = 0; i != circuitMatrixSize; i++) {
-                            System.out.print(circuitMatrix[j][i] + ",");
+            });
+        }
+        if (!small.isEmpty()) {
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    int k, m = 0;
+                    for (k = 0; k != small.size(); k++) {
+                        int s = small.get(k).step(debugprint);
+                        if (s < 0) {
+                            return -1;
                         }
-                        System.out.print("  " + circuitRightSide[j] + "\n");
+                        m = Math.max(m, s);
                     }
-                    System.out.print("\n");
+                    return m;
                 }
-                if (circuitNonLinear) {
-                    if (converged && subiter > 0) {
-                        break;
-                    }
-                    if (!lu_factor(circuitMatrix, circuitMatrixSize,
-                            circuitPermute)) {
-                        stop("Singular matrix!", null);
-                        return;
-                    }
+            });
+        }
+        try {
+            Vector<Future<Integer>> results = new Vector<Future<Integer>>(
+                    getComponentPool().invokeAll(tasks));
+            for (i = 0; i != results.size(); i++) {
+                int s = results.get(i).get();
+                if (s < 0) {
+                    subiter = -1;
+                } else if (subiter >= 0) {
+                    subiter = Math.max(subiter, s);
                 }
-                lu_solve(circuitMatrix, circuitMatrixSize, circuitPermute,
-                        circuitRightSide);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return (stopMessage != null) ? -1 : subiter;
+    }
 
-                for (j = 0; j != circuitMatrixFullSize; j++) {
-                    RowInfo ri = circuitRowInfo[j];
-                    double res = 0;
-                    if (ri.type == RowInfo.ROW_CONST) {
-                        res = ri.value;
-                    } else {
-                        res = circuitRightSide[ri.mapCol];
-                    }
-                    /*System.out.println(j + " " + res + " " +
-                     ri.type + " " + ri.mapCol);*/
-                    if (Double.isNaN(res)) {
-                        converged = false;
-                        //debugprint = true;
-                        break;
-                    }
-                    if (j < nodeList.size() - 1) {
-                        CircuitNode cn = getCircuitNode(j + 1);
-                        for (k = 0; k != cn.links.size(); k++) {
-                            CircuitNodeLink cnl = (CircuitNodeLink) cn.links.elementAt(k);
-                            cnl.elm.setNodeVoltage(cnl.num, res);
-                        }
-                    } else {
-                        int ji = j - (nodeList.size() - 1);
-                        //System.out.println("setting vsrc " + ji + " to " + res);
-                        voltageSources[ji].setCurrent(ji, res);
-                    }
-                }
-                if (!circuitNonLinear) {
-                    break;
+    static synchronized ForkJoinPool getComponentPool() {
+        if (componentPool == null) {
+            componentPool = new ForkJoinPool(PARALLEL_THREADS);
+        }
+        return componentPool;
+    }
+
+    // ask the elements how big a step they can take after the step just
+    // taken.  stepEstimate gets the smallest answer (0 if one can't
+    // handle a changing step); returns the smallest that comes from the
+    // error of the step (see CircuitElm.estimatesError()).
+    double estimateTimeStep() {
+        double est = Double.MAX_VALUE;
+        double err = Double.MAX_VALUE;
+        int i;
+        for (i = 0; i != timeStepElms.length; i++) {
+            double e = timeStepElms[i].estimateTimeStep();
+            if (e < est) {
+                est = e;
+            }
+            if (e < err && timeStepElms[i].estimatesError()) {
+                err = e;
+            }
+        }
+        stepEstimate = est;
+        return err;
+    }
+
+    // pick the next time step from the elements' error estimates.  A step
+    // whose error was well over the tolerance has been taken again by
+    // adaptiveIntegrateStep(); one that was only a little over is kept,
+    // and the next one made smaller.  The step grows by at most a factor
+    // of 2 at a time, and only when all the elements allow it, so it
+    // doesn't keep changing (each change means a new factorization).  In
+    // a nonlinear circuit a step that took many iterations to converge is
+    // also a sign the step is too big.
+    void adaptTimeStep(int iterations) {
+        double est = stepEstimate;
+        if (est <= 0) {
+            // some element can't handle a changing step
+            return;
+        }
+        double h = adaptiveStep;
+        double newh = h;
+        if (est < h) {
+            newh = Math.max(est * .8, h / 8);
+        } else if (est >= 2 * h && iterations <= 4) {
+            newh = 2 * h;
+        }
+        if (iterations > 10) {
+            newh = Math.min(newh, h / 2);
+        }
+        newh = Math.max(getMinTimeStep(), Math.min(getMaxTimeStep(), newh));
+        if (newh != h) {
+            changeTimeStep(newh);
+        }
+    }
+
+    // switch to a new time step, restamping the elements whose companion
+    // models depend on it.  An exact stepper is built again for the new
+    // step.
+    void changeTimeStep(double h) {
+        exactStepper = null;
+        if (adaptiveTimeStep) {
+            adaptiveStep = h;
+        } else {
+            timeStep = h;
+        }
+        restamping = true;
+        int i;
+        for (i = 0; i != elmList.size(); i++) {
+            getElm(i).timeStepChanged();
+        }
+        restamping = false;
+        for (i = 0; i != components.length; i++) {
+            if (!components[i].refactor()) {
+                stop("Singular matrix!", null);
+                return;
+            }
+        }
+    }
+
+    // find the DC operating point (capacitors open, inductors shorted)
+    // and leave the elements there, so the simulation starts out settled
+    // instead of marching from all-zero voltages.  Tries plain Newton
+    // iteration first, then gmin stepping (a conductance from every node
+    // to ground, reduced a decade at a time), then source stepping
+    // (independent sources ramped up from zero).  Returns false if none
+    // of them converged; the elements are then reset.  getDCMessage()
+    // says which one worked.
+    public boolean findOperatingPoint() {
+        dcMessage = "DC operating point not found";
+        if (elmList.isEmpty()) {
+            return false;
+        }
+        boolean wasStopped = stopped;
+        boolean ok = false;
+        int i;
+        dcAnalysis = true;
+        try {
+            analyzeCircuit();
+            if (stopMessage != null || components == null) {
+                return false;
+            }
+            for (i = 0; i != nodeList.size() - 1; i++) {
+                RowInfo ri = circuitRowInfo[i];
+                if (ri.mapRow >= 0 && ri.type != RowInfo.ROW_CONST) {
+                    ri.comp.addGminEntry(ri.mapRow, ri.mapCol);
                 }
             }
-            if (subiter > 1) {
-                System.out.print("converged after " + subiter + " iterations\n");
-                unstable = false;
+            if (dcSolve(wasStopped)) {
+                dcMessage = "found DC operating point";
+                ok = true;
+            } else if (gminStepping(wasStopped)) {
+                dcMessage = "found DC operating point by gmin stepping";
+                ok = true;
+            } else if (sourceStepping(wasStopped)) {
+                dcMessage = "found DC operating point by source stepping";
+                ok = true;
             }
-            if (subiter == subiterCount) {
-                stop("Convergence failed!", null);
-                break;
+        } finally {
+            dcAnalysis = false;
+            sourceScale = 1;
+            dcGmin = 0;
+        }
+        if (!ok) {
+            for (i = 0; i != elmList.size(); i++) {
+                getElm(i).reset();
             }
-            t += timeStep;
-            for (i = 0; i != scopeCount; i++) {
-                scopes[i].timeStep();
+        }
+        analyzeCircuit();
+        analyzeFlag = false;
+        return ok && stopMessage == null;
+    }
+
+    // iterate the DC circuit with the current dcGmin and sourceScale.
+    // A failed try isn't an error, so undo any stop() it caused.
+    boolean dcSolve(boolean wasStopped) {
+        int i;
+        for (i = 0; i != iterationElms.length; i++) {
+            iterationElms[i].startIteration();
+        }
+        for (i = 0; i != components.length; i++) {
+            int s = components[i].iterate(DC_MAX_ITERATIONS, false);
+            if (s < 0 || s == DC_MAX_ITERATIONS) {
+                stopMessage = null;
+                stopElm = null;
+                stopped = wasStopped;
+                return false;
             }
-            tm = System.currentTimeMillis();
-            lit = tm;
-            if (iter * 1000 >= steprate * (tm - lastIterTime)
-                    || (tm - lastFrameTime > 500)) {
-                break;
+        }
+        return true;
+    }
+
+    boolean gminStepping(boolean wasStopped) {
+        for (dcGmin = 1e-2; dcGmin > 1e-12; dcGmin /= 10) {
+            if (!dcSolve(wasStopped)) {
+                return false;
             }
         }
-        lastIterTime = lit;
-        //System.out.println((System.currentTimeMillis()-lastFrameTime)/(double) iter);
+        dcGmin = 0;
+        return dcSolve(wasStopped);
+    }
+
+    boolean sourceStepping(boolean wasStopped) {
+        dcGmin = 0;
+        sourceScale = 0;
+        if (!dcSolve(wasStopped)) {
+            return false;
+        }
+        // take bigger steps while they work, smaller ones when they don't
+        double step = .1;
+        while (sourceScale < 1) {
+            double last = sourceScale;
+            sourceScale = Math.min(1, last + step);
+            if (dcSolve(wasStopped)) {
+                step *= 2;
+            } else {
+                sourceScale = last;
+                step /= 4;
+                if (step < 1e-4) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isDCAnalysis() {
+        return dcAnalysis;
+    }
+
+    // true while an AC analysis collects the stamps.  Capacitors and
+    // inductors stamp themselves with stampCapacitor() and
+    // stampInductor() then, instead of their companion models.
+    public boolean isACAnalysis() {
+        return acAnalysis != null;
+    }
+
+    public void stampCapacitor(int n1, int n2, double c) {
+        acStampType = AC_CAPACITANCE;
+        stampConductance(n1, n2, c);
+        acStampType = AC_CONDUCTANCE;
+    }
+
+    public void stampInductor(int n1, int n2, double l) {
+        acStampType = AC_INVERSE_INDUCTANCE;
+        stampConductance(n1, n2, 1 / l);
+        acStampType = AC_CONDUCTANCE;
+    }
+
+    // for elements with more complicated reactances, such as coupled
+    // inductors: what the stamps that follow are (AC_CAPACITANCE or
+    // AC_INVERSE_INDUCTANCE).  Set it back to AC_CONDUCTANCE afterwards.
+    public void setACStampType(int type) {
+        acStampType = type;
+    }
+
+    // independent sources multiply their value by this; it's 1 except
+    // during source stepping
+    public double getSourceScale() {
+        return sourceScale;
     }
 
     public int min(int a, int b) {
@@ -1889,6 +3302,9 @@ public class CircuitSimulator extends JPanel {
         f |= (showPowerDissipation) ? 8 : 0;
         f |= (showValues) ? 0 : 16;
         // 32 = linear scale in afilter
+        f |= (adaptiveTimeStep) ? 64 : 0;
+        f |= integrationMethod << 7;
+        f |= (exactStepping) ? 512 : 0;
         String dump = "$ " + f + " "
                 + timeStep + " " + getIterCount() + " "
                 + currentBarValue + " " + voltageRange + " "
@@ -2142,7 +3558,7 @@ public class CircuitSimulator extends JPanel {
 
         }
         enableItems();
-        if (!retain) {
+        if (!retain && !headless) {
             handleResize(); // for scopes
         }
         needAnalyze();
@@ -2211,6 +3627,10 @@ public class CircuitSimulator extends JPanel {
         showVoltage = ((flags & 4) == 0);
         showPowerDissipation = ((flags & 8) == 8);
         showValues = ((flags & 16) == 0);
+        adaptiveTimeStep = ((flags & 64) != 0);
+        integrationMethod = (flags >> 7) & 3;
+        exactStepping = ((flags & 512) != 0);
+        exactBackEuler = false;
         timeStep = new Double(st.nextToken()).doubleValue();
         double sp = new Double(st.nextToken()).doubleValue();
         int sp2 = (int) (Math.log(10 * sp) * 24 + 61.5);
@@ -2694,132 +4114,4 @@ public class CircuitSimulator extends JPanel {
         circuitBottom = 0;
     }
 
-    // factors a matrix into upper and lower triangular matrices by
-    // gaussian elimination.  On entry, a[0..n-1][0..n-1] is the
-    // matrix to be factored.  ipvt[] returns an integer vector of pivot
-    // indices, used in the lu_solve() routine.
-    private boolean lu_factor(double a[][], int n, int ipvt[]) {
-        double scaleFactors[];
-        int i, j, k;
-
-        scaleFactors = new double[n];
-
-        // divide each row by its largest element, keeping track of the
-        // scaling factors
-        for (i = 0; i != n; i++) {
-            double largest = 0;
-            for (j = 0; j != n; j++) {
-                double x = Math.abs(a[i][j]);
-                if (x > largest) {
-                    largest = x;
-                }
-            }
-            // if all zeros, it's a singular matrix
-            if (largest == 0) {
-                return false;
-            }
-            scaleFactors[i] = 1.0 / largest;
-        }
-
-        // use Crout's method; loop through the columns
-        for (j = 0; j != n; j++) {
-
-            // calculate upper triangular elements for this column
-            for (i = 0; i != j; i++) {
-                double q = a[i][j];
-                for (k = 0; k != i; k++) {
-                    q -= a[i][k] * a[k][j];
-                }
-                a[i][j] = q;
-            }
-
-            // calculate lower triangular elements for this column
-            double largest = 0;
-            int largestRow = -1;
-            for (i = j; i != n; i++) {
-                double q = a[i][j];
-                for (k = 0; k != j; k++) {
-                    q -= a[i][k] * a[k][j];
-                }
-                a[i][j] = q;
-                double x = Math.abs(q);
-                if (x >= largest) {
-                    largest = x;
-                    largestRow = i;
-                }
-            }
-
-            // pivoting
-            if (j != largestRow) {
-                double x;
-                for (k = 0; k != n; k++) {
-                    x = a[largestRow][k];
-                    a[largestRow][k] = a[j][k];
-                    a[j][k] = x;
-                }
-                scaleFactors[largestRow] = scaleFactors[j];
-            }
-
-            // keep track of row interchanges
-            ipvt[j] = largestRow;
-
-            // avoid zeros
-            if (a[j][j] == 0.0) {
-                System.out.println("avoided zero");
-                a[j][j] = 1e-18;
-            }
-
-            if (j != n - 1) {
-                double mult = 1.0 / a[j][j];
-                for (i = j + 1; i != n; i++) {
-                    a[i][j] *= mult;
-                }
-            }
-        }
-        return true;
-    }
-
-    // Solves the set of n linear equations using a LU factorization
-    // previously performed by lu_factor.  On input, b[0..n-1] is the right
-    // hand side of the equations, and on output, contains the solution.
-    private void lu_solve(double a[][], int n, int ipvt[], double b[]) {
-        int i;
-
-        // find first nonzero b element
-        for (i = 0; i != n; i++) {
-            int row = ipvt[i];
-
-            double swap = b[row];
-            b[row] = b[i];
-            b[i] = swap;
-            if (swap != 0) {
-                break;
-            }
-        }
-
-        int bi = i++;
-        for (; i < n; i++) {
-            int row = ipvt[i];
-            int j;
-            double tot = b[row];
-
-            b[row] = b[i];
-            // forward substitution using the lower triangular matrix
-            for (j = bi; j < i; j++) {
-                tot -= a[i][j] * b[j];
-            }
-            b[i] = tot;
-        }
-        for (i = n - 1; i >= 0; i--) {
-            double tot = b[i];
-
-            // back-substitution using the upper triangular matrix
-            int j;
-            for (j = i + 1; j != n; j++) {
-                tot -= a[i][j] * b[j];
-            }
-            b[i] = tot / a[i][i];
-        }
-    }
-
 }
@@ -0,0 +1,291 @@
+package com.falstad.circuit;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Runs many copies of a circuit in parallel, each with some component
+// values changed, for parameter sweeps and Monte Carlo tolerance
+// analysis.  Every run loads the circuit's dump into its own
+// CircuitEngine, so runs share nothing but the dump text.
+//
+//   CircuitSweep sw = new CircuitSweep(dump);
+//   sw.addTolerance(2, 0, .05);        // element 2, edit field 0, 5%
+//   sw.addProbe(3, CircuitEngine.PROBE_VOLTAGE);
+//   sw.setEndTime(.01);
+//   sw.run(500);
+//   double m = sw.getMean(0);
+public class CircuitSweep {
+
+    // something to change in a run before it starts
+    public interface Variation {
+
+        void apply(CircuitEngine engine, int run, Random random);
+    }
+
+    // result of one run: the final, minimum and maximum value of each
+    // probe, or the reason it stopped
+    public static class Run {
+
+        public int number;
+        public String stopMessage;
+        public double last[], min[], max[];
+
+        public boolean ok() {
+            return stopMessage == null;
+        }
+    }
+
+    String dump;
+    Vector<Variation> variations;
+    int probeCount;
+    int probeElm[], probeType[];
+    double endTime = -1;
+    int steps = -1;
+    int sampleInterval = 1;
+    long seed = 1;
+    int threads;
+    Run runs[];
+
+    public CircuitSweep(String dump) {
+        this.dump = dump;
+        variations = new Vector<Variation>();
+        probeElm = new int[0];
+        probeType = new int[0];
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    // sweep a circuit that is loaded in the simulator
+    public CircuitSweep(CircuitSimulator sim) {
+        this(sim.dumpCircuit());
+    }
+
+    public void addVariation(Variation v) {
+        variations.add(v);
+    }
+
+    // set edit field n of element e (see CircuitElm.getEditInfo()) to
+    // from + (to-from)*run/(count-1), across the runs
+    public void addSweep(final int e, final int n, final double from,
+            final double to) {
+        addVariation(new Variation() {
+            public void apply(CircuitEngine engine, int run, Random random) {
+                int count = runs.length;
+                double f = (count > 1) ? run / (count - 1.) : 0;
+                setEditValue(engine, e, n, from + (to - from) * f);
+            }
+        });
+    }
+
+    // scale edit field n of element e by a random factor, uniform
+    // within 1 +- tol
+    public void addTolerance(final int e, final int n, final double tol) {
+        addVariation(new Variation() {
+            public void apply(CircuitEngine engine, int run, Random random) {
+                CircuitElm ce = engine.getElement(e);
+                if (ce == null) {
+                    return;
+                }
+                double v = ce.getEditInfo(n).value;
+                setEditValue(engine, e, n,
+                        v * (1 + tol * (2 * random.nextDouble() - 1)));
+            }
+        });
+    }
+
+    // change a value the way the edit dialog would
+    public static void setEditValue(CircuitEngine engine, int e, int n,
+            double v) {
+        CircuitElm ce = engine.getElement(e);
+        if (ce == null) {
+            return;
+        }
+        EditInfo ei = ce.getEditInfo(n);
+        if (ei == null) {
+            return;
+        }
+        ei.value = v;
+        ce.setEditValue(n, ei);
+        engine.getSimulator().needAnalyze();
+    }
+
+    public int addProbe(int e, int type) {
+        int ne[] = new int[probeCount + 1];
+        int nt[] = new int[probeCount + 1];
+        System.arraycopy(probeElm, 0, ne, 0, probeCount);
+        System.arraycopy(probeType, 0, nt, 0, probeCount);
+        ne[probeCount] = e;
+        nt[probeCount] = type;
+        probeElm = ne;
+        probeType = nt;
+        return probeCount++;
+    }
+
+    public void setEndTime(double t) {
+        endTime = t;
+    }
+
+    public void setSteps(int n) {
+        steps = n;
+    }
+
+    // only every n-th step counts for the minimum and maximum
+    public void setSampleInterval(int n) {
+        sampleInterval = n;
+    }
+
+    // run k gets random numbers seeded from seed + k, so results don't
+    // depend on the number of threads
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setThreads(int n) {
+        threads = (n < 1) ? 1 : n;
+    }
+
+    // do count runs on a pool of threads; returns the results in run
+    // order
+    public Run[] run(int count) {
+        runs = new Run[count];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Vector<Callable<Run>> tasks = new Vector<Callable<Run>>();
+        int i;
+        for (i = 0; i != count; i++) {
+            final int k = i;
+            tasks.add(new Callable<Run>() {
+                public Run call() {
+                    return runOne(k);
+                }
+            });
+        }
+        try {
+            Vector<Future<Run>> results = new Vector<Future<Run>>(pool.invokeAll(tasks));
+            for (i = 0; i != count; i++) {
+                runs[i] = results.get(i).get();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        return runs;
+    }
+
+    Run runOne(int k) {
+        Run r = new Run();
+        r.number = k;
+        CircuitEngine engine;
+        // CircuitSimulator is a JPanel, and Swing doesn't promise that
+        // creating components is thread safe
+        synchronized (CircuitSweep.class) {
+            engine = new CircuitEngine();
+        }
+        Random random = new Random(seed + k);
+        int i, p;
+        boolean ok = engine.load(dump);
+        if (ok) {
+            for (i = 0; i != variations.size(); i++) {
+                variations.get(i).apply(engine, k, random);
+            }
+            for (p = 0; p != probeCount; p++) {
+                engine.addProbe(probeElm[p], probeType[p]);
+            }
+            engine.setSampleInterval(sampleInterval);
+            if (steps >= 0) {
+                ok = engine.run(steps);
+            }
+            if (ok && endTime >= 0) {
+                ok = engine.runUntil(endTime);
+            }
+        }
+        if (!ok) {
+            r.stopMessage = engine.getStopMessage();
+            if (r.stopMessage == null) {
+                r.stopMessage = "stopped";
+            }
+        }
+        int np = engine.getProbeCount();
+        r.last = new double[np];
+        r.min = new double[np];
+        r.max = new double[np];
+        for (p = 0; p != np; p++) {
+            double tr[] = engine.getTrace(p);
+            if (tr.length == 0) {
+                continue;
+            }
+            r.last[p] = r.min[p] = r.max[p] = tr[tr.length - 1];
+            for (i = 0; i != tr.length; i++) {
+                r.min[p] = Math.min(r.min[p], tr[i]);
+                r.max[p] = Math.max(r.max[p], tr[i]);
+            }
+        }
+        return r;
+    }
+
+    public Run[] getRuns() {
+        return runs;
+    }
+
+    public int getFailedCount() {
+        int i, n = 0;
+        for (i = 0; i != runs.length; i++) {
+            if (!runs[i].ok()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // statistics of the final value of probe p over the runs that
+    // finished
+    public double getMean(int p) {
+        double s = 0;
+        int i, n = 0;
+        for (i = 0; i != runs.length; i++) {
+            if (runs[i].ok()) {
+                s += runs[i].last[p];
+                n++;
+            }
+        }
+        return (n == 0) ? 0 : s / n;
+    }
+
+    public double getStdDev(int p) {
+        double m = getMean(p);
+        double s = 0;
+        int i, n = 0;
+        for (i = 0; i != runs.length; i++) {
+            if (runs[i].ok()) {
+                double d = runs[i].last[p] - m;
+                s += d * d;
+                n++;
+            }
+        }
+        return (n < 2) ? 0 : Math.sqrt(s / (n - 1));
+    }
+
+    public double getMin(int p) {
+        double m = Double.MAX_VALUE;
+        int i;
+        for (i = 0; i != runs.length; i++) {
+            if (runs[i].ok()) {
+                m = Math.min(m, runs[i].last[p]);
+            }
+        }
+        return m;
+    }
+
+    public double getMax(int p) {
+        double m = -Double.MAX_VALUE;
+        int i;
+        for (i = 0; i != runs.length; i++) {
+            if (runs[i].ok()) {
+                m = Math.max(m, runs[i].last[p]);
+            }
+        }
+        return m;
+    }
+}
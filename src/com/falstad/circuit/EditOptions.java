@@ -1,6 +1,8 @@
 package com.falstad.circuit;
 
 import com.falstad.circuit.EditDialog.Editable;
+import java.awt.Checkbox;
+import java.awt.Choice;
 
 class EditOptions implements Editable {
 
@@ -12,11 +14,55 @@ class EditOptions implements Editable {
 
     public EditInfo getEditInfo(int n) {
         if (n == 0) {
-            return new EditInfo("Time step size (s)", sim.getTimeStep(), 0, 0);
+            return new EditInfo("Time step size (s)", sim.getNominalTimeStep(), 0, 0);
         }
         if (n == 1) {
             return new EditInfo("Range for voltage color (V)", sim.getVoltageRange(), 0, 0);
         }
+        if (n == 2) {
+            EditInfo ei = new EditInfo("Matrix solver", 0, -1, -1);
+            ei.choice = new Choice();
+            ei.choice.add("Automatic");
+            ei.choice.add("Dense");
+            ei.choice.add("Sparse");
+            ei.choice.add("Schur complement");
+            ei.choice.add("Iterative (BiCGSTAB)");
+            ei.choice.add("Mixed precision");
+            ei.choice.select(sim.getSolverType());
+            return ei;
+        }
+        if (n == 3) {
+            EditInfo ei = new EditInfo("", 0, -1, -1);
+            ei.checkbox = new Checkbox("Adaptive time step",
+                    sim.isAdaptiveTimeStep());
+            return ei;
+        }
+        if (n == 4) {
+            return new EditInfo("Minimum time step (s)", sim.getMinTimeStep(), 0, 0);
+        }
+        if (n == 5) {
+            return new EditInfo("Maximum time step (s)", sim.getMaxTimeStep(), 0, 0);
+        }
+        if (n == 6) {
+            return new EditInfo("Time step tolerance", sim.getTimeStepTolerance(), 0, 0).
+                    setDimensionless();
+        }
+        if (n == 7) {
+            EditInfo ei = new EditInfo("Integration method", 0, -1, -1);
+            ei.choice = new Choice();
+            ei.choice.add("Set per element");
+            ei.choice.add("Trapezoidal");
+            ei.choice.add("Backward Euler");
+            ei.choice.add("Gear (BDF2)");
+            ei.choice.select(sim.getIntegrationMethod());
+            return ei;
+        }
+        if (n == 8) {
+            EditInfo ei = new EditInfo("", 0, -1, -1);
+            ei.checkbox = new Checkbox("Exact steps (linear circuits)",
+                    sim.isExactStepping());
+            return ei;
+        }
         return null;
     }
 
@@ -27,5 +73,27 @@ class EditOptions implements Editable {
         if (n == 1 && ei.value > 0) {
             sim.setVoltageRange(ei.value);
         }
+        if (n == 2 && ei.choice.getSelectedIndex() != sim.getSolverType()) {
+            sim.setSolverType(ei.choice.getSelectedIndex());
+        }
+        if (n == 3 && ei.checkbox.getState() != sim.isAdaptiveTimeStep()) {
+            sim.setAdaptiveTimeStep(ei.checkbox.getState());
+        }
+        if (n == 4 && ei.value > 0) {
+            sim.setMinTimeStep(ei.value);
+        }
+        if (n == 5 && ei.value > 0) {
+            sim.setMaxTimeStep(ei.value);
+        }
+        if (n == 6 && ei.value > 0) {
+            sim.setTimeStepTolerance(ei.value);
+        }
+        if (n == 7
+                && ei.choice.getSelectedIndex() != sim.getIntegrationMethod()) {
+            sim.setIntegrationMethod(ei.choice.getSelectedIndex());
+        }
+        if (n == 8 && ei.checkbox.getState() != sim.isExactStepping()) {
+            sim.setExactStepping(ei.checkbox.getState());
+        }
     }
 };
@@ -0,0 +1,494 @@
+package com.falstad.circuit;
+
+// Exact time stepping for linear time-invariant circuits.  The state x
+// of such a circuit (capacitor voltages and inductor currents, see
+// CircuitElm.getState()) follows
+//
+//   dx/dt = A x + B u(t)
+//
+// so over one step of length h
+//
+//   x(t+h) = e^(Ah) x(t) + (integral of e^(A(h-s)) B u(t+s) ds from 0 to h)
+//
+// With e^(Ah) worked out once, each step is a matrix-vector product with
+// no discretization error, however big the step; it is only limited by
+// how well the sources are followed.  They are taken to change linearly
+// over the step (first order hold), which is exact for DC and ramps and
+// needs the step to be small compared to a period for anything else.
+//
+// A and B aren't stamped anywhere, so they are measured.  With the
+// circuit integrating by backward euler (forced while this is in use), a
+// step from state x0 at time t gives
+//
+//   x1 = Phi (x0 + g(t)),   Phi = (I - Ah)^-1,   g(t) = h B u(t)
+//
+// so Phi comes from one step from each unit state (less the step from
+// zero state), Ah = I - Phi^-1, and g(t) = Phi^-1 x1 for a step from
+// zero state at t.  Then with the matrix exponential of
+//
+//   [ Ah  I  0 ]     [ e^(Ah)  phi1(Ah)  phi2(Ah) ]
+//   [ 0   0  I ]  -> [ 0       I         I        ]
+//   [ 0   0  0 ]     [ 0       0         I        ]
+//
+// (which works even if A is singular, as it is for a capacitor with no
+// resistance to discharge it) a step is
+//
+//   x(t+h) = e^(Ah) x + phi1(Ah) g(t) + phi2(Ah) (g(t+h) - g(t))
+//
+// Finally the circuit takes a real backward euler step at t+h from the
+// state that lands on x(t+h), so the node voltages and currents are
+// those at t+h.  A state held by a source (a capacitor across a voltage
+// source) has no dynamics; its column of Phi is zero, and the real step
+// sets it.
+//
+//   ExactStepper es = new ExactStepper(sim);
+//   if (es.build()) { ... es.step() ... } else { ... es.getStopMessage() ... }
+public class ExactStepper {
+
+    CircuitSimulator sim;
+    CircuitElm stateElm[];
+    int stateIndex[];
+    int stateElmCount, stateCount;
+    // the states with dynamics, as indexes into the whole state
+    int dynamic[];
+    int dynamicCount;
+    double h;
+    // over the dynamic states: e^(Ah), phi1(Ah), phi2(Ah) and Phi^-1
+    double expAh[][], phi1[][], phi2[][], invPhi[][];
+    double x[], xz[], g0[], g1[], xnew[];
+    String stopMessage;
+    long buildTime;
+    int stepCount;
+    static final int MAX_STATE = 200;
+    // columns of Phi no bigger than this belong to states without
+    // dynamics
+    static final double ALGEBRAIC_TOLERANCE = 1e-10;
+    static final double MAX_CONDITION = 1e10;
+    // Pade approximant degree for the matrix exponential
+    static final int PADE_DEGREE = 6;
+
+    public ExactStepper(CircuitSimulator sim) {
+        this.sim = sim;
+    }
+
+    // measure the circuit and work out the exponential.  Returns false if
+    // the circuit can't be stepped exactly; getStopMessage() says why, and
+    // the circuit is left integrating with its own methods.
+    public boolean build() {
+        stopMessage = null;
+        long t0 = System.nanoTime();
+        if (!checkCircuit()) {
+            return false;
+        }
+        boolean ok = false;
+        try {
+            if (!sim.exactBackEuler) {
+                sim.exactBackEuler = true;
+                sim.analyzeCircuit();
+                if (sim.stopMessage != null || sim.components == null) {
+                    stopMessage = (sim.stopMessage != null) ? sim.stopMessage
+                            : "Nothing to simulate";
+                    return false;
+                }
+            }
+            h = sim.getTimeStep();
+            ok = findState() && measure() && findExponential();
+        } finally {
+            if (!ok && sim.exactBackEuler) {
+                sim.exactBackEuler = false;
+                sim.analyzeCircuit();
+            }
+            buildTime = System.nanoTime() - t0;
+        }
+        return ok;
+    }
+
+    // linear, and every element that stamps something each step does it
+    // from its state and the time alone
+    boolean checkCircuit() {
+        int i;
+        if (sim.components == null) {
+            stopMessage = "Nothing to simulate";
+            return false;
+        }
+        if (sim.circuitNonLinear) {
+            stopMessage = "Circuit is nonlinear";
+            return false;
+        }
+        if (sim.adaptiveTimeStep) {
+            stopMessage = "Not with an adaptive time step";
+            return false;
+        }
+        for (i = 0; i != sim.elmListSize(); i++) {
+            CircuitElm ce = sim.getElm(i);
+            int ov = CircuitSimulator.getOverrides(ce);
+            if ((ov & (CircuitSimulator.OVERRIDES_START_ITERATION
+                    | CircuitSimulator.OVERRIDES_DO_STEP)) != 0
+                    && !ce.hasLinearStep()) {
+                String info[] = new String[10];
+                ce.getInfo(info);
+                stopMessage = "Can't step " + info[0] + " exactly";
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean findState() {
+        int i;
+        stateElm = new CircuitElm[sim.elmListSize()];
+        stateIndex = new int[sim.elmListSize()];
+        stateElmCount = stateCount = 0;
+        for (i = 0; i != sim.elmListSize(); i++) {
+            CircuitElm ce = sim.getElm(i);
+            int n = ce.getStateCount();
+            if (n > 0) {
+                stateElm[stateElmCount] = ce;
+                stateIndex[stateElmCount++] = stateCount;
+                stateCount += n;
+            }
+        }
+        if (stateCount == 0) {
+            stopMessage = "No capacitors or inductors";
+            return false;
+        }
+        if (stateCount > MAX_STATE) {
+            stopMessage = "Too many state variables (" + stateCount + ")";
+            return false;
+        }
+        x = new double[stateCount];
+        xz = new double[stateCount];
+        return true;
+    }
+
+    // find Phi from a step from each unit state, and invert it
+    boolean measure() {
+        int n = stateCount;
+        int i, j;
+        double tstart = sim.t;
+        int steps = sim.steps;
+        double phi[][] = new double[n][n];
+        double e[] = new double[n];
+        double col[] = new double[n];
+        getState(x);
+        try {
+            if (!simulate(e, tstart, xz)) {
+                return false;
+            }
+            for (j = 0; j != n; j++) {
+                e[j] = 1;
+                boolean ok = simulate(e, tstart, col);
+                e[j] = 0;
+                if (!ok) {
+                    return false;
+                }
+                for (i = 0; i != n; i++) {
+                    phi[i][j] = col[i] - xz[i];
+                }
+            }
+        } finally {
+            setState(x);
+            sim.t = tstart;
+            sim.steps = steps;
+        }
+
+        dynamic = new int[n];
+        dynamicCount = 0;
+        for (j = 0; j != n; j++) {
+            for (i = 0; i != n; i++) {
+                if (Math.abs(phi[i][j]) > ALGEBRAIC_TOLERANCE) {
+                    dynamic[dynamicCount++] = j;
+                    break;
+                }
+            }
+        }
+        int m = dynamicCount;
+        if (m == 0) {
+            stopMessage = "Every capacitor and inductor is held by a source";
+            return false;
+        }
+
+        // Phi^-1 a column at a time
+        DenseMatrixSolver solver = new DenseMatrixSolver(m);
+        double phiNorm = 0, invNorm = 0;
+        for (j = 0; j != m; j++) {
+            double sum = 0;
+            for (i = 0; i != m; i++) {
+                solver.add(i, j, phi[dynamic[i]][dynamic[j]]);
+                sum += Math.abs(phi[dynamic[i]][dynamic[j]]);
+            }
+            phiNorm = Math.max(phiNorm, sum);
+        }
+        if (!solver.factor()) {
+            stopMessage = "Capacitor voltages or inductor currents aren't "
+                    + "independent";
+            return false;
+        }
+        invPhi = new double[m][m];
+        for (j = 0; j != m; j++) {
+            double b[] = new double[m];
+            b[j] = 1;
+            solver.solve(b);
+            double sum = 0;
+            for (i = 0; i != m; i++) {
+                invPhi[i][j] = b[i];
+                sum += Math.abs(b[i]);
+            }
+            invNorm = Math.max(invNorm, sum);
+        }
+        if (!(phiNorm * invNorm <= MAX_CONDITION)) {
+            stopMessage = "Capacitor voltages or inductor currents aren't "
+                    + "independent";
+            return false;
+        }
+        g0 = new double[m];
+        g1 = new double[m];
+        xnew = new double[m];
+        return true;
+    }
+
+    // e^(Ah), phi1(Ah) and phi2(Ah) from the exponential of the
+    // augmented matrix
+    boolean findExponential() {
+        int m = dynamicCount;
+        int i, j;
+        double aug[][] = new double[3 * m][3 * m];
+        for (i = 0; i != m; i++) {
+            for (j = 0; j != m; j++) {
+                aug[i][j] = ((i == j) ? 1 : 0) - invPhi[i][j];
+            }
+            aug[i][m + i] = 1;
+            aug[m + i][2 * m + i] = 1;
+        }
+        double ex[][] = expm(aug);
+        if (ex == null) {
+            stopMessage = "Matrix exponential failed";
+            return false;
+        }
+        expAh = new double[m][m];
+        phi1 = new double[m][m];
+        phi2 = new double[m][m];
+        for (i = 0; i != m; i++) {
+            for (j = 0; j != m; j++) {
+                expAh[i][j] = ex[i][j];
+                phi1[i][j] = ex[i][m + j];
+                phi2[i][j] = ex[i][2 * m + j];
+                if (Double.isNaN(expAh[i][j] + phi1[i][j] + phi2[i][j])
+                        || Double.isInfinite(expAh[i][j] + phi1[i][j]
+                        + phi2[i][j])) {
+                    stopMessage = "Matrix exponential failed";
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // matrix exponential by scaling and squaring with a diagonal Pade
+    // approximant; null if the denominator is singular
+    static double[][] expm(double a[][]) {
+        int n = a.length;
+        int i, j, k;
+        double norm = 0;
+        for (i = 0; i != n; i++) {
+            double sum = 0;
+            for (j = 0; j != n; j++) {
+                sum += Math.abs(a[i][j]);
+            }
+            norm = Math.max(norm, sum);
+        }
+        // scale so the norm is at most 1/2
+        int s = 0;
+        while (norm > .5 && s < 1000) {
+            norm /= 2;
+            s++;
+        }
+        double scale = Math.pow(.5, s);
+        double as[][] = new double[n][n];
+        for (i = 0; i != n; i++) {
+            for (j = 0; j != n; j++) {
+                as[i][j] = a[i][j] * scale;
+            }
+        }
+        // numerator and denominator
+        double num[][] = new double[n][n];
+        double den[][] = new double[n][n];
+        double c = .5;
+        for (i = 0; i != n; i++) {
+            for (j = 0; j != n; j++) {
+                double d = ((i == j) ? 1 : 0);
+                num[i][j] = d + c * as[i][j];
+                den[i][j] = d - c * as[i][j];
+            }
+        }
+        double pw[][] = as;
+        int q = PADE_DEGREE;
+        for (k = 2; k <= q; k++) {
+            c *= (double) (q - k + 1) / (k * (2 * q - k + 1));
+            pw = multiply(as, pw);
+            double sign = ((k & 1) == 0) ? c : -c;
+            for (i = 0; i != n; i++) {
+                for (j = 0; j != n; j++) {
+                    num[i][j] += c * pw[i][j];
+                    den[i][j] += sign * pw[i][j];
+                }
+            }
+        }
+        DenseMatrixSolver solver = new DenseMatrixSolver(n);
+        for (i = 0; i != n; i++) {
+            for (j = 0; j != n; j++) {
+                solver.add(i, j, den[i][j]);
+            }
+        }
+        if (!solver.factor()) {
+            return null;
+        }
+        double e[][] = new double[n][n];
+        double b[] = new double[n];
+        for (j = 0; j != n; j++) {
+            for (i = 0; i != n; i++) {
+                b[i] = num[i][j];
+            }
+            solver.solve(b);
+            for (i = 0; i != n; i++) {
+                e[i][j] = b[i];
+            }
+        }
+        for (k = 0; k != s; k++) {
+            e = multiply(e, e);
+        }
+        return e;
+    }
+
+    // a b, skipping zeros of a (the augmented matrix and its powers are
+    // block upper triangular)
+    static double[][] multiply(double a[][], double b[][]) {
+        int n = a.length;
+        int i, j, k;
+        double c[][] = new double[n][n];
+        for (i = 0; i != n; i++) {
+            double ci[] = c[i];
+            for (k = 0; k != n; k++) {
+                double x = a[i][k];
+                if (x == 0) {
+                    continue;
+                }
+                double bk[] = b[k];
+                for (j = 0; j != n; j++) {
+                    ci[j] += x * bk[j];
+                }
+            }
+        }
+        return c;
+    }
+
+    // advance the circuit one step.  Returns the iterations the real step
+    // took, or -1 if the simulation stopped.
+    public int step() {
+        int m = dynamicCount;
+        int i, k;
+        double tstart = sim.t;
+        int steps = sim.steps;
+        getState(x);
+        if (!findInput(tstart, g0) || !findInput(tstart + h, g1)) {
+            return -1;
+        }
+        for (i = 0; i != m; i++) {
+            double q = 0;
+            double e[] = expAh[i], p1[] = phi1[i], p2[] = phi2[i];
+            for (k = 0; k != m; k++) {
+                q += e[k] * x[dynamic[k]] + p1[k] * g0[k]
+                        + p2[k] * (g1[k] - g0[k]);
+            }
+            xnew[i] = q;
+        }
+        // the state a backward euler step at t+h goes from to get there
+        for (i = 0; i != m; i++) {
+            double q = -g1[i];
+            double p[] = invPhi[i];
+            for (k = 0; k != m; k++) {
+                q += p[k] * xnew[k];
+            }
+            x[dynamic[i]] = q;
+        }
+        setState(x);
+        sim.t = tstart + h;
+        int subiter = sim.integrateStep(false);
+        sim.t = tstart + h;
+        sim.steps = steps + 1;
+        if (subiter < 0) {
+            stopMessage = sim.stopMessage;
+            return -1;
+        }
+        stepCount++;
+        return subiter;
+    }
+
+    // g(t) = h B u(t), from a step from zero state
+    boolean findInput(double t, double g[]) {
+        int m = dynamicCount;
+        int i, k;
+        double zero[] = new double[stateCount];
+        if (!simulate(zero, t, xz)) {
+            return false;
+        }
+        for (i = 0; i != m; i++) {
+            double q = 0;
+            double p[] = invPhi[i];
+            for (k = 0; k != m; k++) {
+                q += p[k] * xz[dynamic[k]];
+            }
+            g[i] = q;
+        }
+        return true;
+    }
+
+    // one step from state x0 at time t, leaving the end state in x1
+    boolean simulate(double x0[], double t, double x1[]) {
+        setState(x0);
+        sim.t = t;
+        if (sim.integrateStep(false) < 0) {
+            stopMessage = sim.stopMessage;
+            return false;
+        }
+        getState(x1);
+        return true;
+    }
+
+    void getState(double x[]) {
+        int i;
+        for (i = 0; i != stateElmCount; i++) {
+            stateElm[i].getState(x, stateIndex[i]);
+        }
+    }
+
+    void setState(double x[]) {
+        int i;
+        for (i = 0; i != stateElmCount; i++) {
+            stateElm[i].setState(x, stateIndex[i]);
+        }
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    // states that aren't held by a source
+    public int getDynamicCount() {
+        return dynamicCount;
+    }
+
+    // exact steps taken
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    // nanoseconds build() took
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    public String getStopMessage() {
+        return stopMessage;
+    }
+}
@@ -0,0 +1,478 @@
+package com.falstad.circuit;
+
+// iterative solver for very large, mostly linear circuits (power grids,
+// substrate meshes), where even the sparse LU fills in too much.  The
+// matrix stays in its SparseMatrix; factor() only builds a preconditioner
+// (an incomplete LU with the matrix's own pattern, ILU(0), or just the
+// diagonal if that breaks down on a small pivot) from the matrix with its
+// rows matched up to give a nonzero diagonal, and solve() runs
+// preconditioned BiCGSTAB, starting from the last solution since the
+// circuit changes little from one step to the next.  Memory is a few
+// vectors plus one copy of the nonzeros.
+//
+// Rank one updates go straight into the matrix; the preconditioner is
+// left as it is until MAX_UPDATES of them have piled up.  If BiCGSTAB
+// doesn't converge, the solve falls back to the sparse LU, which is then
+// used until the next factor().
+public class IterativeMatrixSolver extends MatrixSolver {
+
+    // relative residual |b - Ax| / |b| a solve must reach
+    static final double TOLERANCE = 1e-11;
+    static final int MAX_ITERATIONS = 1000;
+    // a pivot this much smaller than the rest of its row is treated as
+    // zero, and the ILU(0) abandoned
+    static final double PIVOT_TOLERANCE = 1e-12;
+
+    SparseMatrix matrix;
+
+    // row matchRow[j] of the matrix is paired with column j, and row i
+    // goes to position rowPos[i] in the preconditioner's matrix
+    int matchRow[], rowPos[];
+    int visited[], pathCol[], pathRow[], scan[];
+    int visitStamp;
+
+    // the matrix by rows in matched order, columns sorted, with the
+    // ILU(0) factors in lu[] (if ilu is set; otherwise the preconditioner
+    // is invDiag[]).  diagPos[j] is the position of (j, j).
+    int rowStart[], colIndex[], diagPos[];
+    double lu[];
+    double invDiag[];
+    boolean ilu;
+    int staleUpdates;
+
+    // solution of the last solve, the next one's starting point
+    double lastX[];
+    boolean haveLastX;
+    double r[], r0[], p[], v[], s[], t[], y[], z[];
+
+    SparseMatrixSolver direct;
+
+    int solveCount, iterationCount, lastIterations, fallbackCount;
+    double lastResidual, maxResidual;
+
+    public IterativeMatrixSolver(int n) {
+        size = n;
+        matrix = new SparseMatrix(n);
+        lastX = new double[n];
+        r = new double[n];
+        r0 = new double[n];
+        p = new double[n];
+        v = new double[n];
+        s = new double[n];
+        t = new double[n];
+        y = new double[n];
+        z = new double[n];
+    }
+
+    public void add(int i, int j, double x) {
+        matrix.add(i, j, x);
+    }
+
+    public double get(int i, int j) {
+        return matrix.get(i, j);
+    }
+
+    public void reserve(int i, int j) {
+        matrix.getSlot(i, j);
+    }
+
+    public int getSlot(int i, int j) {
+        return matrix.getSlot(i, j);
+    }
+
+    public void addSlot(int slot, double x) {
+        matrix.values[slot] += x;
+    }
+
+    public void saveOriginal() {
+        matrix.saveOriginal();
+    }
+
+    public void restoreOriginal() {
+        matrix.restoreOriginal();
+    }
+
+    public boolean isFinite() {
+        return matrix.isFinite();
+    }
+
+    public void addOriginal(int i, int j, double x) {
+        matrix.addOriginal(i, j, x);
+    }
+
+    // the matrix itself is what solve() uses, so just change it (and the
+    // original to match)
+    public boolean updateRankOne(int rows[], double rowValues[],
+            int cols[], double colValues[], double x) {
+        int i, j;
+        for (i = 0; i != rows.length; i++) {
+            for (j = 0; j != cols.length; j++) {
+                double q = x * rowValues[i] * colValues[j];
+                matrix.addOriginal(rows[i], cols[j], q);
+                matrix.add(rows[i], cols[j], q);
+            }
+        }
+        direct = null;
+        if (++staleUpdates > MAX_UPDATES) {
+            return factorMatrix();
+        }
+        return true;
+    }
+
+    protected boolean factorMatrix() {
+        direct = null;
+        staleUpdates = 0;
+        SparseMatrix a = matrix;
+        if (a.hasEmptyRow()) {
+            return false;
+        }
+        a.compress();
+        int n = size;
+        int nnz = a.nnz;
+        int i, j, k, q;
+        if (!matchRows()) {
+            return false;
+        }
+
+        // transpose the compressed columns into rows, in matched order,
+        // which leaves the columns of each row sorted
+        if (lu == null || lu.length != nnz) {
+            rowStart = new int[n + 1];
+            colIndex = new int[nnz];
+            diagPos = new int[n];
+            lu = new double[nnz];
+        }
+        for (j = 0; j <= n; j++) {
+            rowStart[j] = 0;
+        }
+        for (q = 0; q != nnz; q++) {
+            rowStart[rowPos[a.rowIndex[q]] + 1]++;
+        }
+        for (j = 0; j != n; j++) {
+            rowStart[j + 1] += rowStart[j];
+            diagPos[j] = -1;
+        }
+        int next[] = new int[n];
+        System.arraycopy(rowStart, 0, next, 0, n);
+        for (k = 0; k != n; k++) {
+            for (q = a.colStart[k]; q != a.colStart[k + 1]; q++) {
+                j = rowPos[a.rowIndex[q]];
+                int pos = next[j]++;
+                colIndex[pos] = k;
+                lu[pos] = a.values[a.colSlot[q]];
+                if (j == k) {
+                    diagPos[j] = pos;
+                }
+            }
+        }
+        if (invDiag == null) {
+            invDiag = new double[n];
+        }
+        for (j = 0; j != n; j++) {
+            invDiag[j] = 1 / lu[diagPos[j]];
+        }
+        ilu = factorILU(next);
+        return true;
+    }
+
+    // The simplified matrix's rows and columns aren't numbered alike (a
+    // voltage source's row may sit where a node's column is), so its
+    // diagonal can be zero.  Pair each column with a row that has a
+    // nonzero entry there, taking the biggest entry where there's a
+    // choice, and moving earlier pairings along (depth-first augmenting
+    // paths) where there isn't.  Returns false if the matrix is
+    // structurally singular.
+    boolean matchRows() {
+        SparseMatrix a = matrix;
+        int n = size;
+        int i, j, q;
+        if (matchRow == null) {
+            matchRow = new int[n];
+            rowPos = new int[n];
+            visited = new int[n];
+            pathCol = new int[n];
+            pathRow = new int[n];
+            scan = new int[n];
+        }
+        for (i = 0; i != n; i++) {
+            matchRow[i] = rowPos[i] = -1;
+        }
+        for (j = 0; j != n; j++) {
+            int best = -1;
+            double bestValue = 0;
+            for (q = a.colStart[j]; q != a.colStart[j + 1]; q++) {
+                i = a.rowIndex[q];
+                double x = Math.abs(a.values[a.colSlot[q]]);
+                if (rowPos[i] < 0 && x > bestValue) {
+                    best = i;
+                    bestValue = x;
+                }
+            }
+            if (best >= 0) {
+                matchRow[j] = best;
+                rowPos[best] = j;
+            }
+        }
+        for (j = 0; j != n; j++) {
+            if (matchRow[j] < 0 && !augment(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // find a row for column j0, re-pairing other columns along the way
+    boolean augment(int j0) {
+        SparseMatrix a = matrix;
+        int depth = 0;
+        visitStamp++;
+        pathCol[0] = j0;
+        scan[0] = a.colStart[j0];
+        while (depth >= 0) {
+            int j = pathCol[depth];
+            int q;
+            int found = -1;
+            for (q = scan[depth]; q != a.colStart[j + 1]; q++) {
+                int i = a.rowIndex[q];
+                if (visited[i] != visitStamp && a.values[a.colSlot[q]] != 0) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found < 0) {
+                depth--;
+                continue;
+            }
+            scan[depth] = q + 1;
+            visited[found] = visitStamp;
+            pathRow[depth] = found;
+            if (rowPos[found] < 0) {
+                // free row; shift the pairings along the path
+                for (; depth >= 0; depth--) {
+                    matchRow[pathCol[depth]] = pathRow[depth];
+                    rowPos[pathRow[depth]] = pathCol[depth];
+                }
+                return true;
+            }
+            depth++;
+            pathCol[depth] = rowPos[found];
+            scan[depth] = a.colStart[pathCol[depth]];
+        }
+        return false;
+    }
+
+    // incomplete LU in place in lu[], keeping only the entries in the
+    // matrix's pattern.  Returns false on a (nearly) zero pivot.
+    boolean factorILU(int pos[]) {
+        int n = size;
+        int i, k, q, w;
+        for (i = 0; i != n; i++) {
+            pos[i] = -1;
+        }
+        for (i = 0; i != n; i++) {
+            double rowMax = 0;
+            for (q = rowStart[i]; q != rowStart[i + 1]; q++) {
+                pos[colIndex[q]] = q;
+                rowMax = Math.max(rowMax, Math.abs(lu[q]));
+            }
+            for (q = rowStart[i]; q != diagPos[i]; q++) {
+                k = colIndex[q];
+                double m = lu[q] / lu[diagPos[k]];
+                lu[q] = m;
+                for (w = diagPos[k] + 1; w != rowStart[k + 1]; w++) {
+                    int c = pos[colIndex[w]];
+                    if (c >= 0) {
+                        lu[c] -= m * lu[w];
+                    }
+                }
+            }
+            for (q = rowStart[i]; q != rowStart[i + 1]; q++) {
+                pos[colIndex[q]] = -1;
+            }
+            if (!(Math.abs(lu[diagPos[i]]) > rowMax * PIVOT_TOLERANCE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // x = M^-1 b
+    void precondition(double b[], double x[]) {
+        int n = size;
+        int i, q;
+        if (!ilu) {
+            for (i = 0; i != n; i++) {
+                x[i] = b[matchRow[i]] * invDiag[i];
+            }
+            return;
+        }
+        for (i = 0; i != n; i++) {
+            double sum = b[matchRow[i]];
+            for (q = rowStart[i]; q != diagPos[i]; q++) {
+                sum -= lu[q] * x[colIndex[q]];
+            }
+            x[i] = sum;
+        }
+        for (i = n - 1; i >= 0; i--) {
+            double sum = x[i];
+            for (q = diagPos[i] + 1; q != rowStart[i + 1]; q++) {
+                sum -= lu[q] * x[colIndex[q]];
+            }
+            x[i] = sum / lu[diagPos[i]];
+        }
+    }
+
+    // ax = A x, from the matrix as it is now (rank one updates
+    // included)
+    void multiply(double x[], double ax[]) {
+        SparseMatrix a = matrix;
+        int i, k;
+        for (i = 0; i != size; i++) {
+            int cols[] = a.rowCols[i];
+            int slots[] = a.rowSlots[i];
+            double sum = 0;
+            for (k = 0; k != a.rowLen[i]; k++) {
+                sum += a.values[slots[k]] * x[cols[k]];
+            }
+            ax[i] = sum;
+        }
+    }
+
+    static double dot(double a[], double b[], int n) {
+        double sum = 0;
+        int i;
+        for (i = 0; i != n; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    protected void solveFactored(double b[]) {
+        int n = size;
+        int i, iter;
+        solveCount++;
+        if (direct != null) {
+            direct.solve(b);
+            return;
+        }
+        double x[] = lastX;
+        if (!haveLastX) {
+            for (i = 0; i != n; i++) {
+                x[i] = 0;
+            }
+        }
+        double bnorm = Math.sqrt(dot(b, b, n));
+        if (bnorm == 0) {
+            for (i = 0; i != n; i++) {
+                b[i] = x[i] = 0;
+            }
+            lastIterations = 0;
+            lastResidual = 0;
+            haveLastX = true;
+            return;
+        }
+        double tol = TOLERANCE * bnorm;
+        multiply(x, r);
+        for (i = 0; i != n; i++) {
+            r[i] = b[i] - r[i];
+            r0[i] = r[i];
+            p[i] = v[i] = 0;
+        }
+        double rnorm = Math.sqrt(dot(r, r, n));
+        double rho = 1, alpha = 1, omega = 1;
+        for (iter = 0; iter != MAX_ITERATIONS && rnorm > tol; iter++) {
+            double rho1 = dot(r0, r, n);
+            if (rho1 == 0 || omega == 0) {
+                // breakdown; start over from here with r as the shadow
+                // residual (which makes rho1 = |r|^2 > 0)
+                for (i = 0; i != n; i++) {
+                    r0[i] = r[i];
+                    p[i] = v[i] = 0;
+                }
+                rho = alpha = omega = 1;
+                rho1 = dot(r0, r, n);
+            }
+            double beta = (rho1 / rho) * (alpha / omega);
+            for (i = 0; i != n; i++) {
+                p[i] = r[i] + beta * (p[i] - omega * v[i]);
+            }
+            precondition(p, y);
+            multiply(y, v);
+            alpha = rho1 / dot(r0, v, n);
+            for (i = 0; i != n; i++) {
+                s[i] = r[i] - alpha * v[i];
+            }
+            double snorm = Math.sqrt(dot(s, s, n));
+            if (snorm <= tol) {
+                for (i = 0; i != n; i++) {
+                    x[i] += alpha * y[i];
+                    r[i] = s[i];
+                }
+                rnorm = snorm;
+                iter++;
+                break;
+            }
+            precondition(s, z);
+            multiply(z, t);
+            double tt = dot(t, t, n);
+            omega = (tt == 0) ? 0 : dot(t, s, n) / tt;
+            for (i = 0; i != n; i++) {
+                x[i] += alpha * y[i] + omega * z[i];
+                r[i] = s[i] - omega * t[i];
+            }
+            rnorm = Math.sqrt(dot(r, r, n));
+            rho = rho1;
+        }
+        lastIterations = iter;
+        iterationCount += iter;
+        lastResidual = rnorm / bnorm;
+        if (!(rnorm <= tol)) {
+            // didn't converge (or broke down); do this one, and the rest
+            // until the next factor(), directly
+            fallbackCount++;
+            direct = new SparseMatrixSolver(n, matrix);
+            if (direct.factor()) {
+                haveLastX = false;
+                direct.solve(b);
+                return;
+            }
+            direct = null;
+        }
+        maxResidual = Math.max(maxResidual, lastResidual);
+        haveLastX = true;
+        System.arraycopy(x, 0, b, 0, n);
+    }
+
+    // true if the preconditioner is an ILU(0), false if it's Jacobi
+    public boolean isILU() {
+        return ilu;
+    }
+
+    public int getSolveCount() {
+        return solveCount;
+    }
+
+    // BiCGSTAB iterations, over all solves
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
+    // relative residual of the last solve
+    public double getLastResidual() {
+        return lastResidual;
+    }
+
+    // largest relative residual of any solve that converged
+    public double getMaxResidual() {
+        return maxResidual;
+    }
+
+    // solves that didn't converge and went to the sparse LU instead
+    public int getFallbackCount() {
+        return fallbackCount;
+    }
+}
@@ -0,0 +1,285 @@
+package com.falstad.circuit;
+
+// Holds the simplified circuit matrix built by analyzeCircuit() and
+// solves it.  Elements stamp into it through add() (via stampMatrix()),
+// the linear stamps are saved with saveOriginal() so they can be put
+// back before each nonlinear iteration, and factor()/solve() replace
+// the old lu_factor()/lu_solve() calls in runCircuit().
+//
+// Between factorizations, updateRankOne() can change the matrix by a
+// rank one term x p q'; solve() then corrects the solution with the
+// Sherman-Morrison-Woodbury formula
+//
+//   (A + P D Q')^-1 = A^-1 - Z (I + D Q' Z)^-1 D Q' A^-1,  Z = A^-1 P
+//
+// so switching elements don't need a new factorization each time.
+public abstract class MatrixSolver {
+
+    public static final int SOLVER_AUTO = 0;
+    public static final int SOLVER_DENSE = 1;
+    public static final int SOLVER_SPARSE = 2;
+    public static final int SOLVER_SCHUR = 3;
+    public static final int SOLVER_ITERATIVE = 4;
+    public static final int SOLVER_MIXED = 5;
+
+    // below this size the dense solver is as fast as the sparse one,
+    // whatever the fill.
+    static final int SPARSE_MIN_SIZE = 24;
+
+    // dense parts this big get the blocked LU (BlockedMatrixSolver);
+    // smaller ones fit in cache as they are, and Crout is as fast
+    static final int BLOCKED_MIN_SIZE = 32;
+
+    // use the Schur complement solver if no more than this many rows
+    // (and no more than a quarter of them) are nonlinear
+    static final int SCHUR_MAX_ROWS = 64;
+
+    // the iterative solver only takes parts at least this big; smaller
+    // ones are solved exactly, as with SOLVER_AUTO, which is cheaper and
+    // doesn't leave nearly floating nodes (held only by a diode's
+    // leakage, say) to the solver's tolerance
+    static final int ITERATIVE_MIN_SIZE = 500;
+
+    // the mixed precision solver takes parts at least this big; below
+    // it the refinement costs more than the float factorization saves
+    static final int MIXED_MIN_SIZE = 384;
+
+    // number of rank one updates kept before we refactor instead
+    static final int MAX_UPDATES = 16;
+
+    // an update is only applied to the factors if x q' A^-1 p is no
+    // bigger than this, and 1 + x q' A^-1 p doesn't nearly cancel;
+    // otherwise the correction would lose too much precision (as when
+    // a switch connects a node that was only held by a huge off
+    // resistance)
+    static final double MAX_UPDATE_GAIN = 1e3;
+
+    protected int size;
+
+    // pending updates: update k is updateScale[k] * p q', where
+    // updateZ[k] = A^-1 p and q is nonzero in updateCols[k][] with
+    // values updateColValues[k][]
+    int updateCount;
+    double updateZ[][], updateScale[];
+    int updateCols[][];
+    double updateColValues[][];
+    // I + D Q' Z, factored
+    double updateMatrix[][];
+    int updatePivots[];
+    double updateWork[];
+
+    public int getSize() {
+        return size;
+    }
+
+    // add x to entry (i, j)
+    public abstract void add(int i, int j, double x);
+
+    public abstract double get(int i, int j);
+
+    // tell the solver that entry (i, j) will be stamped later (in
+    // doStep()), so it can be part of the symbolic analysis.
+    public void reserve(int i, int j) {
+    }
+
+    // called once the matrix is loaded in analyzeCircuit(); solvers
+    // that need a symbolic analysis of the matrix structure do it here.
+    public void analyze() {
+    }
+
+    // analyze(), but last is the solver from the circuit's previous
+    // analysis; if its matrix has the same structure (as after editing
+    // a value) the solver can reuse what it worked out then.
+    public void analyze(MatrixSolver last) {
+        analyze();
+    }
+
+    // remember the current contents as the linear part of the matrix
+    public abstract void saveOriginal();
+
+    // go back to the contents saved with saveOriginal()
+    public abstract void restoreOriginal();
+
+    // false if the matrix contains a NaN or infinite entry
+    public abstract boolean isFinite();
+
+    // add x to entry (i, j) of the saved original matrix, leaving the
+    // current contents (which may hold the factors) alone
+    public abstract void addOriginal(int i, int j, double x);
+
+    // a handle for entry (i, j), which addSlot() can then add to without
+    // looking the entry up again (see CircuitSimulator.getStampHandle()).
+    // Must be called before analyze(); it puts the entry in the pattern.
+    public abstract int getSlot(int i, int j);
+
+    public abstract void addSlot(int slot, double x);
+
+    // factor the matrix; returns false if it is singular
+    public boolean factor() {
+        updateCount = 0;
+        return factorMatrix();
+    }
+
+    // factor the matrix again after its values (but not its pattern)
+    // have changed, reusing the pivot order of the last factor().
+    public boolean refactor() {
+        updateCount = 0;
+        return refactorMatrix();
+    }
+
+    // solve using the factors from the last factor().  On input b is
+    // the right hand side, on output the solution.
+    public void solve(double b[]) {
+        solveFactored(b);
+        if (updateCount > 0) {
+            applyUpdates(b);
+        }
+    }
+
+    protected abstract boolean factorMatrix();
+
+    // solvers that can't refactor cheaply just call factorMatrix()
+    protected boolean refactorMatrix() {
+        return factorMatrix();
+    }
+
+    protected abstract void solveFactored(double b[]);
+
+    // Change the original matrix by x p q', where p is nonzero in rows[]
+    // (values rowValues[]) and q in cols[] (values colValues[]), and
+    // update the factors to match without refactoring.  After
+    // MAX_UPDATES of these we refactor from the original.  Returns false
+    // if the new matrix is singular.
+    public boolean updateRankOne(int rows[], double rowValues[],
+            int cols[], double colValues[], double x) {
+        int i, j, k;
+        for (i = 0; i != rows.length; i++) {
+            for (j = 0; j != cols.length; j++) {
+                addOriginal(rows[i], cols[j], x * rowValues[i] * colValues[j]);
+            }
+        }
+        if (updateCount == MAX_UPDATES) {
+            restoreOriginal();
+            return factor();
+        }
+        if (updateZ == null) {
+            updateZ = new double[MAX_UPDATES][];
+            updateScale = new double[MAX_UPDATES];
+            updateCols = new int[MAX_UPDATES][];
+            updateColValues = new double[MAX_UPDATES][];
+            updateMatrix = new double[MAX_UPDATES][MAX_UPDATES];
+            updatePivots = new int[MAX_UPDATES];
+            updateWork = new double[MAX_UPDATES];
+        }
+        double z[] = new double[size];
+        for (i = 0; i != rows.length; i++) {
+            z[rows[i]] += rowValues[i];
+        }
+        // z = A^-1 p, using the factors from before any of the updates
+        solveFactored(z);
+        k = updateCount;
+        updateCols[k] = cols;
+        updateColValues[k] = colValues;
+        double s = x * dotCols(k, z);
+        if (Math.abs(s) > MAX_UPDATE_GAIN
+                || Math.abs(1 + s) * MAX_UPDATE_GAIN < Math.abs(s)) {
+            restoreOriginal();
+            return factor();
+        }
+        updateCount++;
+        updateZ[k] = z;
+        updateScale[k] = x;
+
+        // rebuild I + D Q' Z and factor it
+        int n = updateCount;
+        for (i = 0; i != n; i++) {
+            for (j = 0; j != n; j++) {
+                updateMatrix[i][j] = ((i == j) ? 1 : 0)
+                        + updateScale[i] * dotCols(i, updateZ[j]);
+            }
+        }
+        if (!DenseMatrixSolver.lu_factor(updateMatrix, n, updatePivots)) {
+            restoreOriginal();
+            return factor();
+        }
+        return true;
+    }
+
+    // q' v for update k
+    double dotCols(int k, double v[]) {
+        int cols[] = updateCols[k];
+        double vals[] = updateColValues[k];
+        double q = 0;
+        int i;
+        for (i = 0; i != cols.length; i++) {
+            q += vals[i] * v[cols[i]];
+        }
+        return q;
+    }
+
+    // b = A^-1 rhs on input; correct it for the pending updates
+    void applyUpdates(double b[]) {
+        int n = updateCount;
+        int i, k;
+        double t[] = updateWork;
+        for (k = 0; k != n; k++) {
+            t[k] = updateScale[k] * dotCols(k, b);
+        }
+        DenseMatrixSolver.lu_solve(updateMatrix, n, updatePivots, t);
+        for (k = 0; k != n; k++) {
+            double z[] = updateZ[k];
+            double tk = t[k];
+            if (tk == 0) {
+                continue;
+            }
+            for (i = 0; i != size; i++) {
+                b[i] -= z[i] * tk;
+            }
+        }
+    }
+
+    // pick a solver for a simplified matrix of the given size with
+    // nonzeros entries (including those reserved for nonlinear
+    // elements).  changing[i] is true if the left side of row i changes
+    // in doStep().
+    public static MatrixSolver create(int type, int size, int nonzeros,
+            boolean changing[]) {
+        int i;
+        int nchanging = 0;
+        for (i = 0; i != size; i++) {
+            if (changing[i]) {
+                nchanging++;
+            }
+        }
+        if (type == SOLVER_SCHUR) {
+            return new SchurMatrixSolver(size, changing);
+        }
+        if (type == SOLVER_SPARSE) {
+            return new SparseMatrixSolver(size);
+        }
+        if (type == SOLVER_ITERATIVE) {
+            if (size >= ITERATIVE_MIN_SIZE) {
+                return new IterativeMatrixSolver(size);
+            }
+            type = SOLVER_AUTO;
+        }
+        if (type == SOLVER_MIXED) {
+            if (size >= MIXED_MIN_SIZE) {
+                return new MixedMatrixSolver(size);
+            }
+            type = SOLVER_AUTO;
+        }
+        if (type == SOLVER_AUTO && size >= SPARSE_MIN_SIZE
+                && nonzeros < (double) size * size / 4) {
+            if (nchanging > 0 && nchanging <= SCHUR_MAX_ROWS
+                    && nchanging * 4 <= size) {
+                return new SchurMatrixSolver(size, changing);
+            }
+            return new SparseMatrixSolver(size);
+        }
+        if (size >= BLOCKED_MIN_SIZE) {
+            return new BlockedMatrixSolver(size);
+        }
+        return new DenseMatrixSolver(size);
+    }
+}
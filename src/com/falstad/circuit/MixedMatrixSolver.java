@@ -0,0 +1,372 @@
+package com.falstad.circuit;
+
+// dense solver that factors in single precision, for circuits where the
+// factorization is what the time goes on (it's redone every iteration
+// of a nonlinear circuit).  The float factors take half the memory
+// traffic of doubles, and twice as many fit in a vector register.  The
+// double precision answer is then recovered by iterative refinement:
+//
+//   x = LU \ b;  repeat { r = b - A x;  x += LU \ r }
+//
+// with the residual taken against the matrix itself, kept in double,
+// until the correction is down to double precision rounding, or stops
+// shrinking with the residual as small as a double precision solve
+// would leave it.
+// That converges as long as the matrix isn't too badly conditioned for
+// float (condition number well under 1e7).  If it doesn't, or the float
+// factorization breaks down, the matrix is factored again in double
+// with a BlockedMatrixSolver, which is used until the next factor(); the
+// number of times that happens is kept as getFallbackCount().
+public class MixedMatrixSolver extends MatrixSolver {
+
+    // refinement steps before we give up on the float factors
+    static final int MAX_REFINE = 30;
+    // relative size of the last correction at which we stop refining
+    static final double REFINE_TOLERANCE = 1e-15;
+
+    // the matrix, as stamped (not overwritten by the factors)
+    double matrix[], origMatrix[];
+    // float factors, row-major, and their pivots
+    float lu[];
+    int permute[];
+    // a U12 tile of the blocked factorization
+    float pack[];
+    double residual[], rhs[];
+    // largest row sum of the matrix
+    double matrixNorm;
+    // the double precision fallback, if exact is set
+    BlockedMatrixSolver fallback;
+    boolean exact;
+    int factorCount, solveCount, refineCount, fallbackCount;
+
+    public MixedMatrixSolver(int n) {
+        size = n;
+        matrix = new double[n * n];
+        origMatrix = new double[n * n];
+        lu = new float[n * n];
+        permute = new int[n];
+        pack = new float[BlockedMatrixSolver.BLOCK
+                * Math.min(BlockedMatrixSolver.TILE, n)];
+        residual = new double[n];
+        rhs = new double[n];
+    }
+
+    public void add(int i, int j, double x) {
+        matrix[i * size + j] += x;
+    }
+
+    public double get(int i, int j) {
+        return matrix[i * size + j];
+    }
+
+    public int getSlot(int i, int j) {
+        return i * size + j;
+    }
+
+    public void addSlot(int slot, double x) {
+        matrix[slot] += x;
+    }
+
+    public void saveOriginal() {
+        System.arraycopy(matrix, 0, origMatrix, 0, matrix.length);
+    }
+
+    public void restoreOriginal() {
+        System.arraycopy(origMatrix, 0, matrix, 0, matrix.length);
+    }
+
+    public boolean isFinite() {
+        int i;
+        for (i = 0; i != matrix.length; i++) {
+            double x = matrix[i];
+            if (Double.isNaN(x) || Double.isInfinite(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void addOriginal(int i, int j, double x) {
+        origMatrix[i * size + j] += x;
+    }
+
+    protected boolean factorMatrix() {
+        double a[] = matrix;
+        int n = size;
+        int i, j;
+        factorCount++;
+        exact = false;
+
+        // if a row is all zeros, it's a singular matrix
+        matrixNorm = 0;
+        for (i = 0; i != n; i++) {
+            int ri = i * n;
+            double sum = 0;
+            for (j = 0; j != n; j++) {
+                sum += Math.abs(a[ri + j]);
+                lu[ri + j] = (float) a[ri + j];
+            }
+            if (sum == 0) {
+                return false;
+            }
+            matrixNorm = Math.max(matrixNorm, sum);
+        }
+        if (matrixNorm > Float.MAX_VALUE || !factorFloat()) {
+            return factorExact();
+        }
+        return true;
+    }
+
+    // blocked LU of lu[], the same algorithm as BlockedMatrixSolver's
+    // (pivoting as lu_factor() does) in float.  Returns false if a pivot
+    // is zero or not finite.
+    boolean factorFloat() {
+        int n = size;
+        int kb;
+        for (kb = 0; kb < n; kb += BlockedMatrixSolver.BLOCK) {
+            int kend = Math.min(kb + BlockedMatrixSolver.BLOCK, n);
+            if (!factorPanel(kb, kend)) {
+                return false;
+            }
+            updateColumns(kb, kend);
+        }
+        return true;
+    }
+
+    boolean factorPanel(int kb, int kend) {
+        float a[] = lu;
+        int n = size;
+        int i, j, k;
+        for (j = kb; j != kend; j++) {
+            float largest = 0;
+            int largestRow = j;
+            for (i = j; i != n; i++) {
+                float x = Math.abs(a[i * n + j]);
+                if (x >= largest) {
+                    largest = x;
+                    largestRow = i;
+                }
+            }
+            if (largest == 0 || Float.isInfinite(largest)
+                    || Float.isNaN(largest)) {
+                return false;
+            }
+
+            // pivoting
+            if (j != largestRow) {
+                int r1 = j * n, r2 = largestRow * n;
+                for (k = 0; k != n; k++) {
+                    float x = a[r1 + k];
+                    a[r1 + k] = a[r2 + k];
+                    a[r2 + k] = x;
+                }
+            }
+            permute[j] = largestRow;
+
+            int rj = j * n;
+            float mult = 1 / a[rj + j];
+            for (i = j + 1; i != n; i++) {
+                int ri = i * n;
+                float l = a[ri + j] *= mult;
+                if (l == 0) {
+                    continue;
+                }
+                for (k = j + 1; k != kend; k++) {
+                    a[ri + k] -= l * a[rj + k];
+                }
+            }
+        }
+        return true;
+    }
+
+    // U12 and the trailing update for the panel in columns kb to kend-1
+    // (see BlockedMatrixSolver.updateColumns())
+    void updateColumns(int kb, int kend) {
+        float a[] = lu;
+        float pack[] = this.pack;
+        int n = size;
+        int nk = kend - kb;
+        int i, j, k, c0;
+        for (c0 = kend; c0 < n; c0 += BlockedMatrixSolver.TILE) {
+            int w = Math.min(BlockedMatrixSolver.TILE, n - c0);
+            for (i = kb + 1; i != kend; i++) {
+                int ri = i * n + c0;
+                for (k = kb; k != i; k++) {
+                    float l = a[i * n + k];
+                    if (l == 0) {
+                        continue;
+                    }
+                    int rk = k * n + c0;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l * a[rk + j];
+                    }
+                }
+            }
+            for (k = 0; k != nk; k++) {
+                System.arraycopy(a, (kb + k) * n + c0, pack, k * w, w);
+            }
+            for (i = kend; i != n; i++) {
+                int ri = i * n + c0;
+                int li = i * n + kb;
+                for (k = 0; k + 4 <= nk; k += 4) {
+                    float l0 = a[li + k], l1 = a[li + k + 1];
+                    float l2 = a[li + k + 2], l3 = a[li + k + 3];
+                    if (l0 == 0 && l1 == 0 && l2 == 0 && l3 == 0) {
+                        continue;
+                    }
+                    int p0 = k * w;
+                    int p1 = p0 + w, p2 = p1 + w, p3 = p2 + w;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l0 * pack[p0 + j] + l1 * pack[p1 + j]
+                                + l2 * pack[p2 + j] + l3 * pack[p3 + j];
+                    }
+                }
+                for (; k != nk; k++) {
+                    float l = a[li + k];
+                    if (l == 0) {
+                        continue;
+                    }
+                    int p = k * w;
+                    for (j = 0; j != w; j++) {
+                        a[ri + j] -= l * pack[p + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // factor the matrix in double instead
+    boolean factorExact() {
+        fallbackCount++;
+        if (fallback == null) {
+            fallback = new BlockedMatrixSolver(size);
+        }
+        System.arraycopy(matrix, 0, fallback.matrix, 0, matrix.length);
+        exact = true;
+        return fallback.factor();
+    }
+
+    protected void solveFactored(double b[]) {
+        int n = size;
+        int i, step;
+        solveCount++;
+        if (exact) {
+            fallback.solveFactored(b);
+            return;
+        }
+        System.arraycopy(b, 0, rhs, 0, n);
+        substitute(b);
+        // residual a double precision solve would leave, relative to x
+        double tolerance = Math.sqrt(n) * Math.ulp(1.0) * matrixNorm;
+        double lastNorm = Double.POSITIVE_INFINITY;
+        for (step = 0; step != MAX_REFINE; step++) {
+            double rnorm = getResidual(b);
+            if (rnorm == 0) {
+                return;
+            }
+            substitute(residual);
+            double dnorm = 0, xnorm = 0;
+            for (i = 0; i != n; i++) {
+                dnorm = Math.max(dnorm, Math.abs(residual[i]));
+                xnorm = Math.max(xnorm, Math.abs(b[i]));
+            }
+            if (!(dnorm < lastNorm / 2)) {
+                // the corrections have stopped shrinking, so x is as
+                // good as refinement will get it.  Keep it if that's as
+                // good as double precision would have done.
+                if (rnorm <= tolerance * xnorm) {
+                    return;
+                }
+                break;
+            }
+            refineCount++;
+            for (i = 0; i != n; i++) {
+                b[i] += residual[i];
+            }
+            // done once the correction is down to rounding error
+            if (dnorm <= REFINE_TOLERANCE * xnorm) {
+                return;
+            }
+            lastNorm = dnorm;
+        }
+        if (!factorExact()) {
+            // can't happen; the matrix has no zero rows.  Leave the
+            // float answer.
+            exact = false;
+            return;
+        }
+        System.arraycopy(rhs, 0, b, 0, n);
+        fallback.solveFactored(b);
+    }
+
+    // residual[] = rhs - A x; returns its largest element
+    double getResidual(double x[]) {
+        double a[] = matrix;
+        int n = size;
+        int i, j;
+        double norm = 0;
+        for (i = 0; i != n; i++) {
+            int ri = i * n;
+            double q = rhs[i];
+            for (j = 0; j != n; j++) {
+                q -= a[ri + j] * x[j];
+            }
+            residual[i] = q;
+            norm = Math.max(norm, Math.abs(q));
+        }
+        return norm;
+    }
+
+    // b = LU \ b with the float factors, accumulating in double
+    void substitute(double b[]) {
+        float a[] = lu;
+        int n = size;
+        int i, j;
+
+        for (i = 0; i != n; i++) {
+            int row = permute[i];
+            double swap = b[row];
+            b[row] = b[i];
+            b[i] = swap;
+        }
+
+        // forward substitution using the lower triangular matrix
+        for (i = 1; i < n; i++) {
+            int ri = i * n;
+            double tot = b[i];
+            for (j = 0; j != i; j++) {
+                tot -= a[ri + j] * b[j];
+            }
+            b[i] = tot;
+        }
+
+        // back-substitution using the upper triangular matrix
+        for (i = n - 1; i >= 0; i--) {
+            int ri = i * n;
+            double tot = b[i];
+            for (j = i + 1; j != n; j++) {
+                tot -= a[ri + j] * b[j];
+            }
+            b[i] = tot / a[ri + i];
+        }
+    }
+
+    public int getFactorCount() {
+        return factorCount;
+    }
+
+    public int getSolveCount() {
+        return solveCount;
+    }
+
+    // refinement steps taken over all solves
+    public int getRefineCount() {
+        return refineCount;
+    }
+
+    // times the float factors weren't good enough and the matrix was
+    // factored in double
+    public int getFallbackCount() {
+        return fallbackCount;
+    }
+}
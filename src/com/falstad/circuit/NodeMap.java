@@ -0,0 +1,119 @@
+package com.falstad.circuit;
+
+// maps a grid point to a node number.  analyzeCircuit uses this to match
+// element posts to nodes in constant time instead of scanning the node
+// list.  Open addressing with linear probing; the key packs x and y into
+// a long, so nothing is boxed.
+public class NodeMap {
+
+    long keys[];
+    int values[];
+    boolean used[];
+    int size;
+    int mask;
+
+    public NodeMap(int expected) {
+        int cap = 16;
+        while (cap < expected * 2) {
+            cap *= 2;
+        }
+        alloc(cap);
+    }
+
+    void alloc(int cap) {
+        keys = new long[cap];
+        values = new int[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+        size = 0;
+    }
+
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    int slot(long k) {
+        // mix the bits so points along a row or column spread out
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // node at (x, y), or -1 if there isn't one
+    public int get(int x, int y) {
+        long k = key(x, y);
+        int i = slot(k);
+        while (used[i]) {
+            if (keys[i] == k) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // set the node at (x, y)
+    public void put(int x, int y, int node) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        long k = key(x, y);
+        int i = slot(k);
+        while (used[i]) {
+            if (keys[i] == k) {
+                values[i] = node;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = k;
+        values[i] = node;
+        size++;
+    }
+
+    public void remove(int x, int y) {
+        long k = key(x, y);
+        int i = slot(k);
+        while (used[i] && keys[i] != k) {
+            i = (i + 1) & mask;
+        }
+        if (!used[i]) {
+            return;
+        }
+        // move later entries back into the hole if their probe sequence
+        // passes through it, so get() still finds them
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!used[j]) {
+                break;
+            }
+            int h = slot(keys[j]);
+            boolean between = (i <= j) ? (i < h && h <= j) : (i < h || h <= j);
+            if (!between) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        used[i] = false;
+        size--;
+    }
+
+    void grow() {
+        long ok[] = keys;
+        int ov[] = values;
+        boolean ou[] = used;
+        alloc(keys.length * 2);
+        int i;
+        for (i = 0; i != ok.length; i++) {
+            if (ou[i]) {
+                put((int) (ok[i] >> 32), (int) ok[i], ov[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
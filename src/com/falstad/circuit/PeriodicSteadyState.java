@@ -0,0 +1,312 @@
+package com.falstad.circuit;
+
+import com.falstad.circuit.elements.TransLineElm;
+
+// Periodic steady-state analysis by Newton shooting.  A circuit driven by
+// periodic sources settles into a waveform that repeats every period T,
+// but with slow time constants (a rectifier's filter capacitor, say)
+// plain transient simulation may take hundreds of periods to get there.
+// Instead, take the state x the elements carry from step to step
+// (CircuitElm.getState()) at the start of a period, and let phi(x) be the
+// state after simulating one period from it.  The steady state is the
+// solution of
+//
+//   phi(x) - x = 0
+//
+// which Newton's method finds, with the Jacobian of phi built column by
+// column from one perturbed period of simulation per state variable.
+// For a linear circuit phi is affine, so one Newton step lands on the
+// steady state.
+//
+// The period is the least common multiple of the sources' periods
+// (CircuitElm.getSourcePeriod()).  The time step is trimmed so a whole
+// number of steps fits in it, and restored afterwards.  The circuit is
+// left at the end of one period simulated from the steady state, so the
+// normal simulation carries on from there.
+//
+//   PeriodicSteadyState pss = new PeriodicSteadyState(sim);
+//   if (pss.run()) { ... } else { ... pss.getStopMessage() ... }
+public class PeriodicSteadyState {
+
+    CircuitSimulator sim;
+    CircuitElm stateElm[];
+    int stateIndex[];
+    int stateElmCount, stateCount;
+    double period;
+    int stepsPerPeriod;
+    double tstart;
+    int iterations, periods;
+    double error;
+    String stopMessage;
+    long solveTime;
+    static final int MAX_ITERATIONS = 20;
+    static final int MAX_STATE = 200;
+    static final int MAX_HARMONIC = 100;
+    static final int MAX_PERIOD_STEPS = 100000;
+    static final double RELTOL = 1e-5;
+    static final double ABSTOL = 1e-9;
+
+    public PeriodicSteadyState(CircuitSimulator sim) {
+        this.sim = sim;
+    }
+
+    // find the steady state.  Returns false if it couldn't be found;
+    // getStopMessage() says why.
+    public boolean run() {
+        stopMessage = null;
+        iterations = periods = 0;
+        error = 0;
+        long t0 = System.nanoTime();
+        if (sim.analyzeFlag) {
+            sim.stopMessage = null;
+            sim.analyzeCircuit();
+            sim.analyzeFlag = false;
+        }
+        if (sim.stopMessage != null || sim.components == null) {
+            stopMessage = (sim.stopMessage != null) ? sim.stopMessage
+                    : "Nothing to simulate";
+            return false;
+        }
+        if (!findPeriod() || !findState()) {
+            return false;
+        }
+        double oldStep = sim.getTimeStep();
+        if (period / oldStep > MAX_PERIOD_STEPS) {
+            stopMessage = "Period is too long for the time step";
+            return false;
+        }
+        stepsPerPeriod = (int) Math.max(1, Math.round(period / oldStep));
+        double h = period / stepsPerPeriod;
+        boolean ok = false;
+        try {
+            if (Math.abs(h - oldStep) > 1e-9 * h) {
+                sim.changeTimeStep(h);
+            }
+            ok = shoot();
+        } finally {
+            if (sim.getTimeStep() != oldStep) {
+                sim.changeTimeStep(oldStep);
+            }
+            sim.wake();
+            solveTime = System.nanoTime() - t0;
+        }
+        return ok;
+    }
+
+    // the least common multiple of the sources' periods
+    boolean findPeriod() {
+        int i, k;
+        double longest = 0;
+        for (i = 0; i != sim.elmListSize(); i++) {
+            CircuitElm ce = sim.getElm(i);
+            double p = ce.getSourcePeriod();
+            if (p < 0) {
+                stopMessage = "Not every source is periodic";
+                return false;
+            }
+            longest = Math.max(longest, p);
+        }
+        if (longest == 0) {
+            stopMessage = "No periodic source";
+            return false;
+        }
+        for (k = 1; k <= MAX_HARMONIC; k++) {
+            double t = longest * k;
+            for (i = 0; i != sim.elmListSize(); i++) {
+                double p = sim.getElm(i).getSourcePeriod();
+                if (p > 0) {
+                    double r = t / p;
+                    if (Math.abs(r - Math.rint(r)) > 1e-6 * r) {
+                        break;
+                    }
+                }
+            }
+            if (i == sim.elmListSize()) {
+                period = t;
+                return true;
+            }
+        }
+        stopMessage = "Source frequencies have no common period";
+        return false;
+    }
+
+    boolean findState() {
+        int i;
+        stateElm = new CircuitElm[sim.elmListSize()];
+        stateIndex = new int[sim.elmListSize()];
+        stateElmCount = stateCount = 0;
+        for (i = 0; i != sim.elmListSize(); i++) {
+            CircuitElm ce = sim.getElm(i);
+            // its state is the whole line, far too much to shoot for
+            if (ce instanceof TransLineElm) {
+                stopMessage = "Transmission lines aren't supported";
+                return false;
+            }
+            int n = ce.getStateCount();
+            if (n > 0) {
+                stateElm[stateElmCount] = ce;
+                stateIndex[stateElmCount++] = stateCount;
+                stateCount += n;
+            }
+        }
+        if (stateCount > MAX_STATE) {
+            stopMessage = "Too many state variables (" + stateCount + ")";
+            return false;
+        }
+        return true;
+    }
+
+    boolean shoot() {
+        int n = stateCount;
+        int i, j;
+        double x[] = new double[n];
+        double phi[] = new double[n];
+        // one period first, so the elements (and the integration methods'
+        // history) start from a state a real simulation could have
+        tstart = sim.t;
+        if (!simulatePeriod()) {
+            return false;
+        }
+        tstart = sim.t;
+        getState(x);
+        if (!simulate(x, phi)) {
+            return false;
+        }
+        double jac[][] = new double[n][n];
+        double xp[] = new double[n];
+        double dx[] = new double[n];
+        double xn[] = new double[n];
+        double phin[] = new double[n];
+        for (iterations = 0;; iterations++) {
+            error = getError(x, phi);
+            if (error <= 1) {
+                return true;
+            }
+            if (iterations == MAX_ITERATIONS) {
+                stopMessage = "Steady state not found";
+                return false;
+            }
+            // Jacobian of phi by finite differences
+            for (j = 0; j != n; j++) {
+                System.arraycopy(x, 0, xp, 0, n);
+                double d = 1e-5 * Math.max(Math.abs(x[j]), Math.abs(phi[j]))
+                        + 1e-8;
+                xp[j] += d;
+                if (!simulate(xp, phin)) {
+                    return false;
+                }
+                for (i = 0; i != n; i++) {
+                    jac[i][j] = (phin[i] - phi[i]) / d;
+                }
+            }
+            // solve (I - J) dx = phi(x) - x
+            DenseMatrixSolver solver = new DenseMatrixSolver(n);
+            for (i = 0; i != n; i++) {
+                for (j = 0; j != n; j++) {
+                    solver.add(i, j, ((i == j) ? 1 : 0) - jac[i][j]);
+                }
+                dx[i] = phi[i] - x[i];
+            }
+            if (!solver.factor()) {
+                stopMessage = "Singular shooting matrix";
+                return false;
+            }
+            solver.solve(dx);
+            // halve the step while it makes things worse
+            double lambda = 1;
+            for (;;) {
+                for (i = 0; i != n; i++) {
+                    xn[i] = x[i] + lambda * dx[i];
+                }
+                if (!simulate(xn, phin)) {
+                    return false;
+                }
+                if (getError(xn, phin) < error || lambda < 1 / 16.) {
+                    break;
+                }
+                lambda /= 2;
+            }
+            System.arraycopy(xn, 0, x, 0, n);
+            System.arraycopy(phin, 0, phi, 0, n);
+        }
+    }
+
+    // largest difference between the start and end of the period,
+    // relative to the tolerance
+    double getError(double x[], double phi[]) {
+        int i;
+        double e = 0;
+        for (i = 0; i != stateCount; i++) {
+            double tol = RELTOL * Math.max(Math.abs(x[i]), Math.abs(phi[i]))
+                    + ABSTOL;
+            e = Math.max(e, Math.abs(phi[i] - x[i]) / tol);
+        }
+        return e;
+    }
+
+    // simulate one period from state x, leaving the end state in phi
+    boolean simulate(double x[], double phi[]) {
+        int i;
+        for (i = 0; i != stateElmCount; i++) {
+            stateElm[i].setState(x, stateIndex[i]);
+        }
+        if (!simulatePeriod()) {
+            return false;
+        }
+        getState(phi);
+        return true;
+    }
+
+    boolean simulatePeriod() {
+        int i;
+        sim.t = tstart;
+        periods++;
+        for (i = 0; i != stepsPerPeriod; i++) {
+            if (sim.integrateStep(false) < 0) {
+                stopMessage = sim.stopMessage;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void getState(double x[]) {
+        int i;
+        for (i = 0; i != stateElmCount; i++) {
+            stateElm[i].getState(x, stateIndex[i]);
+        }
+    }
+
+    public double getPeriod() {
+        return period;
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    // Newton iterations it took
+    public int getIterations() {
+        return iterations;
+    }
+
+    // periods simulated, including the perturbed ones for the Jacobian
+    public int getPeriods() {
+        return periods;
+    }
+
+    // the remaining difference between the start and end of the period,
+    // in units of the tolerance (at most 1 if run() succeeded)
+    public double getError() {
+        return error;
+    }
+
+    public String getStopMessage() {
+        return stopMessage;
+    }
+
+    // nanoseconds
+    public long getSolveTime() {
+        return solveTime;
+    }
+}
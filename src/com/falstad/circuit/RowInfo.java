@@ -10,5 +10,6 @@ package com.falstad.circuit;
 	boolean rsChanges; // row's right side changes
 	boolean lsChanges; // row's left side changes
 	boolean dropRow;   // row is not needed in matrix
+	CircuitComponent comp; // part of the matrix the row is in
 	RowInfo() { type = ROW_NORMAL; }
     }
@@ -0,0 +1,311 @@
+package com.falstad.circuit;
+
+// solver for large circuits with only a few nonlinear elements.  The
+// rows whose left side never changes (those not marked by
+// stampNonLinear()) are paired with a set of columns to form a block
+// A11, which is factored once in analyze() with the sparse solver.
+// Writing the rest as
+//
+//   [ A11 A12 ] [x1]   [b1]
+//   [ A21 A22 ] [x2] = [b2]
+//
+// A11 and A12 are constant, so Y = A11^-1 A12 is computed once too, and
+// each factor() only has to form and factor the small dense Schur
+// complement S = A22 - A21 Y.  A21 and A22 may change freely.
+//
+// That loses accuracy when S is much smaller than the terms it's made
+// of (say A22 holds just the 1e-12 conductances of some diodes that are
+// off), so if a pivot of S is that small, or the caller finds Newton
+// doesn't converge with it (useWhole()), we go back to the sparse solver
+// on the whole matrix.
+public class SchurMatrixSolver extends MatrixSolver {
+
+    // smallest pivot of S, relative to the largest term of A22 and A21 Y
+    static final double PIVOT_TOLERANCE = 1e-10;
+
+    SparseMatrix matrix;
+    boolean changing[];
+
+    // rows and columns of each block; rowBlock[i] / colBlock[j] is the
+    // position of row i / column j within its block, with the block 2
+    // positions stored as -1-position.
+    int n1, n2;
+    int rows1[], rows2[], cols1[], cols2[];
+    int rowBlock[], colBlock[];
+
+    SparseMatrixSolver a11;
+    // Y, stored by column (y[j] is column j)
+    double y[][];
+    double schur[][];
+    int schurPivots[];
+    double work1[], work2[];
+
+    // false until analyze() has set up the blocks, or if a row
+    // we assumed constant turned out to change
+    boolean partitioned;
+    // if A11 turned out to be singular we just use the sparse solver
+    // on the whole matrix
+    SparseMatrixSolver whole;
+
+    public SchurMatrixSolver(int n, boolean ch[]) {
+        size = n;
+        matrix = new SparseMatrix(n);
+        changing = new boolean[n];
+        System.arraycopy(ch, 0, changing, 0, n);
+    }
+
+    public void add(int i, int j, double x) {
+        matrix.add(i, j, x);
+        if (partitioned && x != 0 && rowBlock[i] >= 0) {
+            // some element stamped a row it didn't mark as nonlinear;
+            // partition again with that row in the Schur block
+            changing[i] = true;
+            partitioned = false;
+        }
+    }
+
+    public double get(int i, int j) {
+        return matrix.get(i, j);
+    }
+
+    public void reserve(int i, int j) {
+        matrix.getSlot(i, j);
+    }
+
+    // addSlot() skips the check in add(), so a row gets a slot only if
+    // it's in the Schur block
+    public int getSlot(int i, int j) {
+        if (!changing[i]) {
+            changing[i] = true;
+            partitioned = false;
+        }
+        return matrix.getSlot(i, j);
+    }
+
+    public void addSlot(int slot, double x) {
+        matrix.values[slot] += x;
+    }
+
+    public void saveOriginal() {
+        matrix.saveOriginal();
+    }
+
+    public void restoreOriginal() {
+        matrix.restoreOriginal();
+    }
+
+    public boolean isFinite() {
+        return matrix.isFinite();
+    }
+
+    public int getSchurSize() {
+        return n2;
+    }
+
+    // split the matrix into blocks, and factor A11.  The rows of block 1
+    // are the ones that don't change; an elimination restricted to those
+    // rows picks a column for each of them, so A11 is nonsingular.  Rows
+    // that get no column go into block 2 along with the changing ones.
+    public void analyze() {
+        int n = size;
+        int i, j, k;
+        whole = null;
+        boolean constant[] = new boolean[n];
+        for (i = 0; i != n; i++) {
+            constant[i] = !changing[i];
+        }
+        SparseMatrixSolver sel = new SparseMatrixSolver(n, matrix);
+        sel.analyze();
+        int pivotCol[] = sel.pivotColumns(constant);
+        rowBlock = new int[n];
+        colBlock = new int[n];
+        rows1 = new int[n];
+        rows2 = new int[n];
+        cols1 = new int[n];
+        n1 = n2 = 0;
+        for (j = 0; j != n; j++) {
+            colBlock[j] = -1;
+        }
+        for (i = 0; i != n; i++) {
+            if (pivotCol[i] >= 0) {
+                rowBlock[i] = n1;
+                colBlock[pivotCol[i]] = n1;
+                cols1[n1] = pivotCol[i];
+                rows1[n1++] = i;
+            } else {
+                rowBlock[i] = -1 - n2;
+                rows2[n2++] = i;
+            }
+        }
+        cols2 = new int[n2];
+        int c2 = 0;
+        for (j = 0; j != n; j++) {
+            if (colBlock[j] == -1) {
+                cols2[c2] = j;
+                colBlock[j] = -1 - c2;
+                c2++;
+            }
+        }
+
+        // load and factor A11
+        a11 = new SparseMatrixSolver(n1);
+        for (k = 0; k != n1; k++) {
+            i = rows1[k];
+            int p;
+            for (p = 0; p != matrix.rowLen[i]; p++) {
+                int cb = colBlock[matrix.rowCols[i][p]];
+                double x = matrix.values[matrix.rowSlots[i][p]];
+                if (cb >= 0 && x != 0) {
+                    a11.add(k, cb, x);
+                }
+            }
+        }
+        a11.analyze();
+        if (!a11.factor()) {
+            useWhole();
+            return;
+        }
+
+        // Y = A11^-1 A12
+        y = new double[n2][n1];
+        for (k = 0; k != n1; k++) {
+            i = rows1[k];
+            int p;
+            for (p = 0; p != matrix.rowLen[i]; p++) {
+                int cb = colBlock[matrix.rowCols[i][p]];
+                if (cb < 0) {
+                    y[-1 - cb][k] = matrix.values[matrix.rowSlots[i][p]];
+                }
+            }
+        }
+        for (j = 0; j != n2; j++) {
+            a11.solve(y[j]);
+        }
+        schur = new double[n2][n2];
+        schurPivots = new int[n2];
+        work1 = new double[n1];
+        work2 = new double[n2];
+        partitioned = true;
+    }
+
+    // use the sparse solver on the whole matrix from now on.  Returns
+    // false if we already were.
+    public boolean useWhole() {
+        if (whole != null) {
+            return false;
+        }
+        partitioned = false;
+        whole = new SparseMatrixSolver(size, matrix);
+        whole.analyze();
+        return true;
+    }
+
+    public void addOriginal(int i, int j, double x) {
+        matrix.addOriginal(i, j, x);
+        // A11 or A12 changed for good (after a switch or a new time
+        // step), so we need a new Y, but the row is still constant
+        // between those changes
+        if (partitioned && rowBlock[i] >= 0) {
+            partitioned = false;
+        }
+    }
+
+    protected boolean factorMatrix() {
+        if (!partitioned && whole == null) {
+            analyze();
+        }
+        if (whole != null) {
+            return whole.factor();
+        }
+        // S = A22 - A21 Y
+        int i, j, k, p;
+        double scale = 0;
+        for (k = 0; k != n2; k++) {
+            double srow[] = schur[k];
+            for (j = 0; j != n2; j++) {
+                srow[j] = 0;
+            }
+            i = rows2[k];
+            for (p = 0; p != matrix.rowLen[i]; p++) {
+                double x = matrix.values[matrix.rowSlots[i][p]];
+                if (x == 0) {
+                    continue;
+                }
+                int cb = colBlock[matrix.rowCols[i][p]];
+                if (cb < 0) {
+                    srow[-1 - cb] += x;
+                    scale = Math.max(scale, Math.abs(x));
+                } else {
+                    for (j = 0; j != n2; j++) {
+                        double t = x * y[j][cb];
+                        srow[j] -= t;
+                        scale = Math.max(scale, Math.abs(t));
+                    }
+                }
+            }
+        }
+        if (!DenseMatrixSolver.lu_factor(schur, n2, schurPivots)) {
+            return false;
+        }
+        for (k = 0; k != n2; k++) {
+            if (!(Math.abs(schur[k][k]) >= PIVOT_TOLERANCE * scale)) {
+                // most of S cancelled out
+                useWhole();
+                return whole.factor();
+            }
+        }
+        return true;
+    }
+
+    protected boolean refactorMatrix() {
+        if (whole != null) {
+            return whole.refactor();
+        }
+        return factorMatrix();
+    }
+
+    protected void solveFactored(double b[]) {
+        if (whole != null) {
+            whole.solve(b);
+            return;
+        }
+        int i, j, k, p;
+        // w = A11^-1 b1
+        double w[] = work1;
+        for (k = 0; k != n1; k++) {
+            w[k] = b[rows1[k]];
+        }
+        a11.solve(w);
+        // S x2 = b2 - A21 w
+        double x2[] = work2;
+        for (k = 0; k != n2; k++) {
+            i = rows2[k];
+            double q = b[i];
+            for (p = 0; p != matrix.rowLen[i]; p++) {
+                int cb = colBlock[matrix.rowCols[i][p]];
+                if (cb >= 0) {
+                    q -= matrix.values[matrix.rowSlots[i][p]] * w[cb];
+                }
+            }
+            x2[k] = q;
+        }
+        DenseMatrixSolver.lu_solve(schur, n2, schurPivots, x2);
+        // x1 = w - Y x2
+        for (j = 0; j != n2; j++) {
+            double yj[] = y[j];
+            double xj = x2[j];
+            if (xj == 0) {
+                continue;
+            }
+            for (k = 0; k != n1; k++) {
+                w[k] -= yj[k] * xj;
+            }
+        }
+        for (k = 0; k != n1; k++) {
+            b[cols1[k]] = w[k];
+        }
+        for (k = 0; k != n2; k++) {
+            b[cols2[k]] = x2[k];
+        }
+    }
+}
@@ -297,7 +297,7 @@ public class Scope {
             dpixels[i] *= .997;
         }
         g.drawImage(image, rect.x, rect.y, null);
-        g.setColor(elm.whiteColor);
+        g.setColor(sim.getWhiteColor());
         g.fillOval(rect.x + draw_ox - 2, rect.y + draw_oy - 2, 5, 5);
         int yt = rect.y + 10;
         int x = rect.x;
@@ -559,7 +559,7 @@ public class Scope {
             // System.out.println(freq + " " + periodstd + " " + periodct);
         }
         g.drawImage(image, rect.x, rect.y, null);
-        g.setColor(elm.whiteColor);
+        g.setColor(sim.getWhiteColor());
         int yt = rect.y + 10;
         x += rect.x;
         if (showMax) {
@@ -0,0 +1,363 @@
+package com.falstad.circuit;
+
+import java.util.Arrays;
+
+// square sparse matrix.  Each entry lives in a fixed slot of values[];
+// stamps find their slot through a short per-row list, and the factoring
+// code reads the matrix in compressed column form (colStart/rowIndex,
+// with colSlot[] giving the slot of each entry).  Entries can be added
+// at any time; that bumps patternVersion so the solver knows it has to
+// redo its symbolic analysis.
+public class SparseMatrix {
+
+    int n;
+    int nnz;
+    double values[], origValues[];
+    int origCount;
+
+    // row i holds rowLen[i] entries, in columns rowCols[i][], stored
+    // in slots rowSlots[i][]
+    int rowCols[][], rowSlots[][], rowLen[];
+
+    // compressed column form, rebuilt by compress() after the pattern
+    // changes
+    int colStart[], rowIndex[], colSlot[];
+    int patternVersion, compressedVersion = -1;
+
+    public SparseMatrix(int size) {
+        n = size;
+        values = new double[n * 4 + 16];
+        origValues = new double[0];
+        rowCols = new int[n][];
+        rowSlots = new int[n][];
+        rowLen = new int[n];
+        int i;
+        for (i = 0; i != n; i++) {
+            rowCols[i] = new int[4];
+            rowSlots[i] = new int[4];
+        }
+    }
+
+    public int getSize() {
+        return n;
+    }
+
+    public int getNonzeroCount() {
+        return nnz;
+    }
+
+    // find the slot for entry (i, j), or -1 if it's not in the pattern
+    public int findSlot(int i, int j) {
+        int cols[] = rowCols[i];
+        int len = rowLen[i];
+        int k;
+        for (k = 0; k != len; k++) {
+            if (cols[k] == j) {
+                return rowSlots[i][k];
+            }
+        }
+        return -1;
+    }
+
+    // find the slot for entry (i, j), adding it to the pattern if needed
+    public int getSlot(int i, int j) {
+        int s = findSlot(i, j);
+        if (s >= 0) {
+            return s;
+        }
+        int len = rowLen[i];
+        if (len == rowCols[i].length) {
+            int ncols[] = new int[len * 2];
+            int nslots[] = new int[len * 2];
+            System.arraycopy(rowCols[i], 0, ncols, 0, len);
+            System.arraycopy(rowSlots[i], 0, nslots, 0, len);
+            rowCols[i] = ncols;
+            rowSlots[i] = nslots;
+        }
+        if (nnz == values.length) {
+            double nv[] = new double[nnz * 2];
+            System.arraycopy(values, 0, nv, 0, nnz);
+            values = nv;
+        }
+        s = nnz++;
+        values[s] = 0;
+        rowCols[i][len] = j;
+        rowSlots[i][len] = s;
+        rowLen[i] = len + 1;
+        patternVersion++;
+        return s;
+    }
+
+    public void add(int i, int j, double x) {
+        int s = findSlot(i, j);
+        if (s < 0) {
+            // don't grow the pattern for explicit zeros
+            if (x == 0) {
+                return;
+            }
+            s = getSlot(i, j);
+        }
+        values[s] += x;
+    }
+
+    public double get(int i, int j) {
+        int s = findSlot(i, j);
+        return (s < 0) ? 0 : values[s];
+    }
+
+    // true if m has the same entries as this matrix, added in the same
+    // order (so minimumDegreeOrder() would give the same result)
+    public boolean samePattern(SparseMatrix m) {
+        if (m.n != n || m.nnz != nnz) {
+            return false;
+        }
+        int i, k;
+        for (i = 0; i != n; i++) {
+            int len = rowLen[i];
+            if (m.rowLen[i] != len) {
+                return false;
+            }
+            for (k = 0; k != len; k++) {
+                if (m.rowCols[i][k] != rowCols[i][k]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // put the entries of each row in column order
+    public void sortRows() {
+        int i, k;
+        long tmp[] = new long[16];
+        for (i = 0; i != n; i++) {
+            int len = rowLen[i];
+            int cols[] = rowCols[i];
+            int slots[] = rowSlots[i];
+            if (tmp.length < len) {
+                tmp = new long[len];
+            }
+            for (k = 0; k != len; k++) {
+                tmp[k] = ((long) cols[k] << 32) | slots[k];
+            }
+            Arrays.sort(tmp, 0, len);
+            for (k = 0; k != len; k++) {
+                cols[k] = (int) (tmp[k] >> 32);
+                slots[k] = (int) tmp[k];
+            }
+        }
+    }
+
+    public void saveOriginal() {
+        if (origValues.length < nnz) {
+            origValues = new double[values.length];
+        }
+        System.arraycopy(values, 0, origValues, 0, nnz);
+        origCount = nnz;
+    }
+
+    public void restoreOriginal() {
+        System.arraycopy(origValues, 0, values, 0, origCount);
+        int i;
+        // entries added since saveOriginal() have no linear part
+        for (i = origCount; i < nnz; i++) {
+            values[i] = 0;
+        }
+    }
+
+    // add x to entry (i, j) of the saved original only
+    public void addOriginal(int i, int j, double x) {
+        int s = getSlot(i, j);
+        if (s >= origValues.length) {
+            double nv[] = new double[values.length];
+            System.arraycopy(origValues, 0, nv, 0, origCount);
+            origValues = nv;
+        }
+        for (; origCount <= s; origCount++) {
+            origValues[origCount] = 0;
+        }
+        origValues[s] += x;
+    }
+
+    public boolean isFinite() {
+        int i;
+        for (i = 0; i != nnz; i++) {
+            double x = values[i];
+            if (Double.isNaN(x) || Double.isInfinite(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean hasEmptyRow() {
+        int i, k;
+        for (i = 0; i != n; i++) {
+            for (k = 0; k != rowLen[i]; k++) {
+                if (values[rowSlots[i][k]] != 0) {
+                    break;
+                }
+            }
+            if (k == rowLen[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // build the compressed column form if the pattern has changed.
+    // Rows within a column come out sorted.
+    public void compress() {
+        if (compressedVersion == patternVersion) {
+            return;
+        }
+        int i, k;
+        colStart = new int[n + 1];
+        rowIndex = new int[nnz];
+        colSlot = new int[nnz];
+        for (i = 0; i != n; i++) {
+            for (k = 0; k != rowLen[i]; k++) {
+                colStart[rowCols[i][k] + 1]++;
+            }
+        }
+        for (i = 0; i != n; i++) {
+            colStart[i + 1] += colStart[i];
+        }
+        int next[] = new int[n];
+        System.arraycopy(colStart, 0, next, 0, n);
+        for (i = 0; i != n; i++) {
+            for (k = 0; k != rowLen[i]; k++) {
+                int p = next[rowCols[i][k]]++;
+                rowIndex[p] = i;
+                colSlot[p] = rowSlots[i][k];
+            }
+        }
+        compressedVersion = patternVersion;
+    }
+
+    // Compute a fill-reducing ordering of the columns by the minimum
+    // degree method, applied to the pattern of A+A' (circuit matrices
+    // are nearly structurally symmetric).  Returns perm[], where perm[k]
+    // is the k-th column to eliminate.
+    public int[] minimumDegreeOrder() {
+        compress();
+        int i, k, p;
+
+        // build adjacency lists of A+A', without the diagonal
+        int adj[][] = new int[n][];
+        int deg[] = new int[n];
+        int mark[] = new int[n];
+        int stamp = 0;
+        for (i = 0; i != n; i++) {
+            adj[i] = new int[rowLen[i] + colStart[i + 1] - colStart[i]];
+        }
+        for (i = 0; i != n; i++) {
+            stamp++;
+            mark[i] = stamp;
+            for (k = 0; k != rowLen[i]; k++) {
+                int j = rowCols[i][k];
+                if (mark[j] != stamp) {
+                    mark[j] = stamp;
+                    adj[i][deg[i]++] = j;
+                }
+            }
+            for (p = colStart[i]; p != colStart[i + 1]; p++) {
+                int j = rowIndex[p];
+                if (mark[j] != stamp) {
+                    mark[j] = stamp;
+                    adj[i][deg[i]++] = j;
+                }
+            }
+        }
+
+        // degree lists, so we can find a node of minimum degree quickly
+        int head[] = new int[n + 1];
+        int next[] = new int[n];
+        int prev[] = new int[n];
+        boolean done[] = new boolean[n];
+        for (i = 0; i <= n; i++) {
+            head[i] = -1;
+        }
+        for (i = n - 1; i >= 0; i--) {
+            listInsert(head, next, prev, deg[i], i);
+        }
+
+        int perm[] = new int[n];
+        int nbrs[] = new int[n];
+        int mindeg = 0;
+        for (k = 0; k != n; k++) {
+            while (head[mindeg] == -1) {
+                mindeg++;
+            }
+            int v = head[mindeg];
+            listRemove(head, next, prev, deg[v], v);
+            done[v] = true;
+            perm[k] = v;
+
+            // the remaining neighbors of v become a clique
+            int nc = 0;
+            for (p = 0; p != deg[v]; p++) {
+                int u = adj[v][p];
+                if (!done[u]) {
+                    nbrs[nc++] = u;
+                }
+            }
+            int q;
+            for (q = 0; q != nc; q++) {
+                int u = nbrs[q];
+                listRemove(head, next, prev, deg[u], u);
+                stamp++;
+                mark[u] = stamp;
+                int au[] = adj[u];
+                int d = 0;
+                for (p = 0; p != deg[u]; p++) {
+                    int w = au[p];
+                    if (!done[w] && mark[w] != stamp) {
+                        mark[w] = stamp;
+                        au[d++] = w;
+                    }
+                }
+                int r;
+                for (r = 0; r != nc; r++) {
+                    int w = nbrs[r];
+                    if (mark[w] != stamp) {
+                        mark[w] = stamp;
+                        if (d == au.length) {
+                            int na[] = new int[au.length * 2 + 4];
+                            System.arraycopy(au, 0, na, 0, d);
+                            au = adj[u] = na;
+                        }
+                        au[d++] = w;
+                    }
+                }
+                deg[u] = d;
+                listInsert(head, next, prev, d, u);
+                if (d < mindeg) {
+                    mindeg = d;
+                }
+            }
+            adj[v] = null;
+        }
+        return perm;
+    }
+
+    private static void listInsert(int head[], int next[], int prev[], int d, int i) {
+        next[i] = head[d];
+        prev[i] = -1;
+        if (head[d] != -1) {
+            prev[head[d]] = i;
+        }
+        head[d] = i;
+    }
+
+    private static void listRemove(int head[], int next[], int prev[], int d, int i) {
+        if (prev[i] != -1) {
+            next[prev[i]] = next[i];
+        } else {
+            head[d] = next[i];
+        }
+        if (next[i] != -1) {
+            prev[next[i]] = prev[i];
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.falstad.circuit;
+
+// sparse LU solver for large circuits.  analyze() computes a
+// fill-reducing column order once per circuit analysis; factor() then
+// does a left-looking (Gilbert-Peierls) LU with partial pivoting,
+// preferring the diagonal so the ordering is kept where possible.  The
+// work is proportional to the number of nonzeros in the factors rather
+// than n^3.  refactor() reuses the pivot order and the pattern of the
+// factors, so Newton iterations only redo the arithmetic.
+public class SparseMatrixSolver extends MatrixSolver {
+
+    // a diagonal pivot is accepted if it is at least this fraction of the
+    // largest candidate in its column
+    static final double PIVOT_TOLERANCE = 1e-3;
+
+    SparseMatrix matrix;
+
+    // column order from analyze()
+    int colPerm[];
+    int analyzedVersion = -1;
+
+    // pattern version the current factors were computed for, or -1
+    int factoredVersion = -1;
+    int fullFactorCount, refactorCount;
+
+    // factors: L is unit lower triangular with the unit diagonal stored
+    // first in each column; U has its diagonal stored last.  Row indices
+    // of both are in pivot order.  rowPerm[i] is the pivot position of
+    // original row i.
+    int lColStart[], lRowIndex[], uColStart[], uRowIndex[];
+    double lValues[], uValues[];
+    int rowPerm[];
+
+    // workspace
+    double x[];
+    int reach[], stack[], scanPos[], mark[];
+    int markStamp;
+
+    public SparseMatrixSolver(int n) {
+        this(n, new SparseMatrix(n));
+    }
+
+    public SparseMatrixSolver(int n, SparseMatrix m) {
+        size = n;
+        matrix = m;
+        x = new double[n];
+        reach = new int[n];
+        stack = new int[n];
+        scanPos = new int[n];
+        mark = new int[n];
+        rowPerm = new int[n];
+        lColStart = new int[n + 1];
+        uColStart = new int[n + 1];
+        lRowIndex = new int[n * 4 + 16];
+        uRowIndex = new int[n * 4 + 16];
+        lValues = new double[lRowIndex.length];
+        uValues = new double[uRowIndex.length];
+    }
+
+    public SparseMatrix getMatrix() {
+        return matrix;
+    }
+
+    public void add(int i, int j, double x) {
+        matrix.add(i, j, x);
+    }
+
+    public double get(int i, int j) {
+        return matrix.get(i, j);
+    }
+
+    public void reserve(int i, int j) {
+        matrix.getSlot(i, j);
+    }
+
+    public int getSlot(int i, int j) {
+        return matrix.getSlot(i, j);
+    }
+
+    public void addSlot(int slot, double x) {
+        matrix.values[slot] += x;
+    }
+
+    public void saveOriginal() {
+        matrix.saveOriginal();
+    }
+
+    public void restoreOriginal() {
+        matrix.restoreOriginal();
+    }
+
+    public boolean isFinite() {
+        return matrix.isFinite();
+    }
+
+    public void analyze() {
+        colPerm = matrix.minimumDegreeOrder();
+        analyzedVersion = matrix.patternVersion;
+    }
+
+    public void analyze(MatrixSolver last) {
+        if (last instanceof SparseMatrixSolver) {
+            SparseMatrixSolver s = (SparseMatrixSolver) last;
+            if (s.colPerm != null && s.analyzedVersion == s.matrix.patternVersion
+                    && matrix.samePattern(s.matrix)) {
+                matrix.compress();
+                colPerm = s.colPerm;
+                analyzedVersion = matrix.patternVersion;
+                return;
+            }
+        }
+        analyze();
+    }
+
+    public int getFactorNonzeroCount() {
+        return lColStart[size] + uColStart[size];
+    }
+
+    // number of full factorizations (including refactor() fallbacks)
+    public int getFullFactorCount() {
+        return fullFactorCount;
+    }
+
+    public int getRefactorCount() {
+        return refactorCount;
+    }
+
+    public void addOriginal(int i, int j, double x) {
+        matrix.addOriginal(i, j, x);
+    }
+
+    protected boolean factorMatrix() {
+        // the pattern may have grown since the last analysis if an
+        // element stamped an entry that wasn't reserved
+        if (analyzedVersion != matrix.patternVersion) {
+            analyze();
+        }
+        factoredVersion = -1;
+        fullFactorCount++;
+        SparseMatrix a = matrix;
+        // if a row is all zeros, it's a singular matrix
+        if (a.hasEmptyRow()) {
+            return false;
+        }
+        int colStart[] = a.colStart;
+        int rowIndex[] = a.rowIndex;
+        int colSlot[] = a.colSlot;
+        double values[] = a.values;
+        int n = size;
+        int i, k, p;
+        int lnz = 0, unz = 0;
+
+        for (i = 0; i != n; i++) {
+            rowPerm[i] = -1;
+            x[i] = 0;
+        }
+        for (k = 0; k != n; k++) {
+            lColStart[k] = lnz;
+            uColStart[k] = unz;
+            // make sure the factors have room for another full column
+            if (lnz + n > lRowIndex.length) {
+                growL(2 * lRowIndex.length + n);
+            }
+            if (unz + n > uRowIndex.length) {
+                growU(2 * uRowIndex.length + n);
+            }
+            int col = colPerm[k];
+
+            // x = L \ A(:,col), computed only on the rows it can reach
+            int top = findReach(colStart, rowIndex, col);
+            for (p = colStart[col]; p != colStart[col + 1]; p++) {
+                x[rowIndex[p]] = values[colSlot[p]];
+            }
+            for (p = top; p != n; p++) {
+                int j = reach[p];
+                int jp = rowPerm[j];
+                if (jp < 0) {
+                    continue;
+                }
+                double xj = x[j];
+                int q;
+                for (q = lColStart[jp] + 1; q < lColStart[jp + 1]; q++) {
+                    x[lRowIndex[q]] -= lValues[q] * xj;
+                }
+            }
+
+            // find the pivot, and store this column of U
+            int ipiv = -1;
+            double largest = -1;
+            for (p = top; p != n; p++) {
+                i = reach[p];
+                if (rowPerm[i] < 0) {
+                    double t = Math.abs(x[i]);
+                    if (t > largest) {
+                        largest = t;
+                        ipiv = i;
+                    }
+                } else {
+                    uRowIndex[unz] = rowPerm[i];
+                    uValues[unz++] = x[i];
+                }
+            }
+            if (ipiv == -1) {
+                // structurally singular
+                return false;
+            }
+            if (rowPerm[col] < 0 && mark[col] == markStamp
+                    && Math.abs(x[col]) >= largest * PIVOT_TOLERANCE) {
+                ipiv = col;
+            }
+            double pivot = x[ipiv];
+            if (pivot == 0) {
+                System.out.println("avoided zero");
+                pivot = 1e-18;
+            }
+            uRowIndex[unz] = k;
+            uValues[unz++] = pivot;
+            rowPerm[ipiv] = k;
+
+            // store this column of L, and clear x
+            lRowIndex[lnz] = ipiv;
+            lValues[lnz++] = 1;
+            for (p = top; p != n; p++) {
+                i = reach[p];
+                if (rowPerm[i] < 0) {
+                    lRowIndex[lnz] = i;
+                    lValues[lnz++] = x[i] / pivot;
+                }
+                x[i] = 0;
+            }
+        }
+        lColStart[n] = lnz;
+        uColStart[n] = unz;
+
+        // renumber the rows of L in pivot order
+        for (p = 0; p != lnz; p++) {
+            lRowIndex[p] = rowPerm[lRowIndex[p]];
+        }
+        factoredVersion = a.patternVersion;
+        return true;
+    }
+
+    // numeric factorization using the pivot order and factor pattern of
+    // the last factor().  The entries of each column of U were stored in
+    // topological order, so we can just replay the eliminations in that
+    // order.  If a pivot has become too small compared to the rest of
+    // its column, do a full factor() instead.
+    protected boolean refactorMatrix() {
+        SparseMatrix a = matrix;
+        if (factoredVersion < 0 || factoredVersion != a.patternVersion) {
+            return factorMatrix();
+        }
+        int colStart[] = a.colStart;
+        int rowIndex[] = a.rowIndex;
+        int colSlot[] = a.colSlot;
+        double values[] = a.values;
+        int n = size;
+        int k, p, q;
+
+        for (k = 0; k != n; k++) {
+            int col = colPerm[k];
+            // scatter A(:,col) into x, in pivot order
+            for (p = colStart[col]; p != colStart[col + 1]; p++) {
+                x[rowPerm[rowIndex[p]]] = values[colSlot[p]];
+            }
+            int last = uColStart[k + 1] - 1;
+            for (p = uColStart[k]; p != last; p++) {
+                int j = uRowIndex[p];
+                double xj = x[j];
+                uValues[p] = xj;
+                x[j] = 0;
+                if (xj == 0) {
+                    continue;
+                }
+                for (q = lColStart[j] + 1; q < lColStart[j + 1]; q++) {
+                    x[lRowIndex[q]] -= lValues[q] * xj;
+                }
+            }
+            double pivot = x[k];
+            x[k] = 0;
+            double largest = 0;
+            for (p = lColStart[k] + 1; p < lColStart[k + 1]; p++) {
+                double t = Math.abs(x[lRowIndex[p]]);
+                if (t > largest) {
+                    largest = t;
+                }
+            }
+            if (pivot == 0 || Math.abs(pivot) < largest * PIVOT_TOLERANCE) {
+                // clear the rest of x and start over with pivoting
+                for (; k != n; k++) {
+                    x[k] = 0;
+                }
+                return factorMatrix();
+            }
+            uValues[last] = pivot;
+            for (p = lColStart[k] + 1; p < lColStart[k + 1]; p++) {
+                int i = lRowIndex[p];
+                lValues[p] = x[i] / pivot;
+                x[i] = 0;
+            }
+        }
+        refactorCount++;
+        return true;
+    }
+
+    // a column is skipped by pivotColumns() if its best pivot is smaller
+    // than this fraction of its largest entry
+    static final double SKIP_TOLERANCE = 1e-3;
+
+    // Pair the rows marked in allowed[] with columns, so that the block
+    // of the matrix they select is nonsingular.  This runs the
+    // elimination on just those rows, in the order from analyze(),
+    // skipping columns that have no usable pivot left.  Returns the
+    // column chosen for each row, or -1 if a row got none.  The factors
+    // are not usable afterwards.
+    public int[] pivotColumns(boolean allowed[]) {
+        SparseMatrix a = matrix;
+        if (analyzedVersion != a.patternVersion) {
+            analyze();
+        }
+        factoredVersion = -1;
+        int colStart[] = a.colStart;
+        int rowIndex[] = a.rowIndex;
+        int colSlot[] = a.colSlot;
+        double values[] = a.values;
+        int n = size;
+        int i, k, p;
+        int result[] = new int[n];
+        int remaining = 0;
+        for (i = 0; i != n; i++) {
+            rowPerm[i] = -1;
+            result[i] = -1;
+            x[i] = 0;
+            if (allowed[i]) {
+                remaining++;
+            }
+        }
+        int lnz = 0;
+        int npiv = 0;
+        for (k = 0; k != n && remaining > 0; k++) {
+            lColStart[npiv] = lnz;
+            if (lnz + n > lRowIndex.length) {
+                growL(2 * lRowIndex.length + n);
+            }
+            int col = colPerm[k];
+            int top = findReach(colStart, rowIndex, col);
+            double colmax = 0;
+            for (p = colStart[col]; p != colStart[col + 1]; p++) {
+                i = rowIndex[p];
+                if (allowed[i]) {
+                    x[i] = values[colSlot[p]];
+                    colmax = Math.max(colmax, Math.abs(x[i]));
+                }
+            }
+            for (p = top; p != n; p++) {
+                int j = reach[p];
+                int jp = rowPerm[j];
+                if (jp < 0) {
+                    continue;
+                }
+                double xj = x[j];
+                int q;
+                for (q = lColStart[jp] + 1; q < lColStart[jp + 1]; q++) {
+                    x[lRowIndex[q]] -= lValues[q] * xj;
+                }
+            }
+            int ipiv = -1;
+            double largest = 0;
+            for (p = top; p != n; p++) {
+                i = reach[p];
+                if (allowed[i] && rowPerm[i] < 0) {
+                    double t = Math.abs(x[i]);
+                    if (t > largest) {
+                        largest = t;
+                        ipiv = i;
+                    }
+                }
+            }
+            if (ipiv != -1 && largest > colmax * SKIP_TOLERANCE) {
+                double pivot = x[ipiv];
+                rowPerm[ipiv] = npiv;
+                result[ipiv] = col;
+                remaining--;
+                lRowIndex[lnz] = ipiv;
+                lValues[lnz++] = 1;
+                for (p = top; p != n; p++) {
+                    i = reach[p];
+                    if (allowed[i] && rowPerm[i] < 0) {
+                        lRowIndex[lnz] = i;
+                        lValues[lnz++] = x[i] / pivot;
+                    }
+                }
+                npiv++;
+                lColStart[npiv] = lnz;
+            }
+            for (p = top; p != n; p++) {
+                x[reach[p]] = 0;
+            }
+        }
+        return result;
+    }
+
+    // find the rows of x = L \ A(:,col) that can be nonzero, by a
+    // depth-first search through the columns of L.  They are left in
+    // reach[top..n-1] in topological order; returns top.
+    int findReach(int colStart[], int rowIndex[], int col) {
+        int n = size;
+        int top = n;
+        int p;
+        markStamp++;
+        for (p = colStart[col]; p != colStart[col + 1]; p++) {
+            int r = rowIndex[p];
+            if (mark[r] != markStamp) {
+                top = depthFirst(r, top);
+            }
+        }
+        return top;
+    }
+
+    // iterative depth-first search starting from row j.  stack[] holds
+    // the rows on the current path, and scanPos[] where we are in each
+    // one's column of L; finished rows are pushed onto reach[], which
+    // grows down from top.
+    int depthFirst(int j, int top) {
+        int head = 0;
+        int pos[] = scanPos;
+        stack[0] = j;
+        while (head >= 0) {
+            j = stack[head];
+            int jp = rowPerm[j];
+            if (mark[j] != markStamp) {
+                mark[j] = markStamp;
+                pos[head] = (jp < 0) ? 0 : lColStart[jp] + 1;
+            }
+            boolean done = true;
+            int end = (jp < 0) ? 0 : lColStart[jp + 1];
+            int p;
+            for (p = pos[head]; p < end; p++) {
+                // rows in L are stored by original index while factoring
+                int i = lRowIndex[p];
+                if (mark[i] == markStamp) {
+                    continue;
+                }
+                pos[head] = p + 1;
+                stack[++head] = i;
+                done = false;
+                break;
+            }
+            if (done) {
+                head--;
+                reach[--top] = j;
+            }
+        }
+        return top;
+    }
+
+    void growL(int len) {
+        int ni[] = new int[len];
+        double nv[] = new double[len];
+        System.arraycopy(lRowIndex, 0, ni, 0, lRowIndex.length);
+        System.arraycopy(lValues, 0, nv, 0, lValues.length);
+        lRowIndex = ni;
+        lValues = nv;
+    }
+
+    void growU(int len) {
+        int ni[] = new int[len];
+        double nv[] = new double[len];
+        System.arraycopy(uRowIndex, 0, ni, 0, uRowIndex.length);
+        System.arraycopy(uValues, 0, nv, 0, uValues.length);
+        uRowIndex = ni;
+        uValues = nv;
+    }
+
+    protected void solveFactored(double b[]) {
+        int n = size;
+        int i, k, p;
+        // permute the rows
+        for (i = 0; i != n; i++) {
+            x[rowPerm[i]] = b[i];
+        }
+        // forward substitution using L
+        for (k = 0; k != n; k++) {
+            double xk = x[k];
+            if (xk == 0) {
+                continue;
+            }
+            for (p = lColStart[k] + 1; p < lColStart[k + 1]; p++) {
+                x[lRowIndex[p]] -= lValues[p] * xk;
+            }
+        }
+        // back-substitution using U
+        for (k = n - 1; k >= 0; k--) {
+            int last = uColStart[k + 1] - 1;
+            double xk = x[k] / uValues[last];
+            x[k] = xk;
+            if (xk == 0) {
+                continue;
+            }
+            for (p = uColStart[k]; p < last; p++) {
+                x[uRowIndex[p]] -= uValues[p] * xk;
+            }
+        }
+        // undo the column permutation
+        for (k = 0; k != n; k++) {
+            b[colPerm[k]] = x[k];
+            x[k] = 0;
+        }
+    }
+}
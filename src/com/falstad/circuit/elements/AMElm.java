@@ -74,7 +74,7 @@ public class AMElm extends CircuitElm {
 
         Font f = new Font("SansSerif", 0, 12);
         g.setFont(f);
-        g.setColor(needsHighlight() ? selectColor : whiteColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getWhiteColor());
         setPowerColor(g, false);
         double v = getVoltage();
         String s = "AM";
@@ -88,7 +88,7 @@ public class AMElm extends CircuitElm {
     }
 
     void drawWaveform(Graphics g, Point center) {
-        g.setColor(needsHighlight() ? selectColor : Color.gray);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : Color.gray);
         setPowerColor(g, false);
         int xc = center.x;
         int yc = center.y;
@@ -119,6 +119,11 @@ public class AMElm extends CircuitElm {
         return -getVoltageDiff() * current;
     }
 
+    // treated as not periodic
+    public double getSourcePeriod() {
+        return -1;
+    }
+
     public void getInfo(String arr[]) {
 
         arr[0] = "AM Source";
@@ -47,7 +47,7 @@ public class AnalogSwitch2Elm extends AnalogSwitchElm {
         drawThickLine(g, swpoles[1], swposts[1]);
 
         // draw switch
-        g.setColor(lightGrayColor);
+        g.setColor(sim.getLightGrayColor());
         int position = (open) ? 1 : 0;
         drawThickLine(g, lead1, swpoles[position]);
 
@@ -77,13 +77,7 @@ public class AnalogSwitch2Elm extends AnalogSwitchElm {
         sim.stampNonLinear(nodes[0]);
         sim.stampNonLinear(nodes[1]);
         sim.stampNonLinear(nodes[2]);
-    }
-
-    public void doStep() {
-        open = (volts[3] < 2.5);
-        if ((flags & FLAG_INVERT) != 0) {
-            open = !open;
-        }
+        open = isOpen(volts[3]);
         if (open) {
             sim.stampResistor(nodes[0], nodes[2], r_on);
             sim.stampResistor(nodes[0], nodes[1], r_off);
@@ -93,6 +87,18 @@ public class AnalogSwitch2Elm extends AnalogSwitchElm {
         }
     }
 
+    public void doStep() {
+        boolean o = isOpen(volts[3]);
+        if (o != open) {
+            sim.discontinuity();
+            open = o;
+            // move the on conductance to the other throw
+            double g = 1 / r_on - 1 / r_off;
+            sim.updateConductance(nodes[0], nodes[2], (open) ? g : -g);
+            sim.updateConductance(nodes[0], nodes[1], (open) ? -g : g);
+        }
+    }
+
     public boolean getConnection(int n1, int n2) {
         if (n1 == 3 || n2 == 3) {
             return false;
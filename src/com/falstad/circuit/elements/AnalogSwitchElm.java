@@ -56,7 +56,7 @@ public class AnalogSwitchElm extends CircuitElm {
 
         draw2Leads(g);
 
-        g.setColor(lightGrayColor);
+        g.setColor(sim.getLightGrayColor());
         interpPoint(lead1, lead2, ps, 1, hs);
         drawThickLine(g, lead1, ps);
 
@@ -73,23 +73,34 @@ public class AnalogSwitchElm extends CircuitElm {
         current = (volts[0] - volts[1]) / resistance;
     }
 
-    // we need this to be able to change the matrix for each step
-    public boolean nonLinear() {
-        return true;
+    boolean isOpen(double vc) {
+        boolean o = (vc < 2.5);
+        if ((flags & FLAG_INVERT) != 0) {
+            o = !o;
+        }
+        return o;
     }
 
+    // the matrix only changes when the switch flips, so instead of
+    // being nonlinear we stamp the current state here and update it
+    // in doStep() when it changes
     public void stamp() {
         sim.stampNonLinear(nodes[0]);
         sim.stampNonLinear(nodes[1]);
+        open = isOpen(volts[2]);
+        resistance = (open) ? r_off : r_on;
+        sim.stampResistor(nodes[0], nodes[1], resistance);
     }
 
     public void doStep() {
-        open = (volts[2] < 2.5);
-        if ((flags & FLAG_INVERT) != 0) {
-            open = !open;
+        boolean o = isOpen(volts[2]);
+        if (o != open) {
+            double r = (o) ? r_off : r_on;
+            sim.updateConductance(nodes[0], nodes[1], 1 / r - 1 / resistance);
+            sim.discontinuity();
+            open = o;
+            resistance = r;
         }
-        resistance = (open) ? r_off : r_on;
-        sim.stampResistor(nodes[0], nodes[1], resistance);
     }
 
     public void drag(int xx, int yy) {
@@ -32,6 +32,11 @@ public class AntennaElm extends RailElm {
                 + Math.sin(2 * pi * sim.getT() * 2433) * (1.3 + Math.sin(2 * pi * sim.getT() * 14)) * 3 + fm;
     }
 
+    // not periodic
+    public double getSourcePeriod() {
+        return -1;
+    }
+
     public int getDumpType() {
         return 'A';
     }
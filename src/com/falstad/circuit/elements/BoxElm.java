@@ -45,8 +45,8 @@ public class BoxElm extends GraphicElm {
     }
 
     public void draw(Graphics g) {
-        //g.setColor(needsHighlight() ? selectColor : lightGrayColor);
-        g.setColor(needsHighlight() ? selectColor : Color.GRAY);
+        //g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
+        g.setColor(needsHighlight() ? sim.getSelectColor() : Color.GRAY);
         setBbox(x, y, x2, y2);
         if (x < x2 && y < y2) {
             g.fillRect(x, y, x2 - x, y2 - y);
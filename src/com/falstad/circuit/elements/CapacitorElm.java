@@ -1,6 +1,7 @@
 package com.falstad.circuit.elements;
 
 import com.falstad.circuit.CircuitElm;
+import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
 import java.util.StringTokenizer;
@@ -10,6 +11,9 @@ public class CapacitorElm extends CircuitElm {
     double capacitance;
     double compResistance, voltdiff;
     Point plate1[], plate2[];
+    StepHistory history = new StepHistory();
+    int currentHandles[];
+    GearState gear = new GearState(1);
     public static final int FLAG_BACK_EULER = 2;
 
     public CapacitorElm(int xx, int yy) {
@@ -32,6 +36,10 @@ public class CapacitorElm extends CircuitElm {
         return (flags & FLAG_BACK_EULER) == 0;
     }
 
+    int getMethod() {
+        return sim.getIntegrationMethod(!isTrapezoidal());
+    }
+
     public void setNodeVoltage(int n, double c) {
         super.setNodeVoltage(n, c);
         voltdiff = volts[0] - volts[1];
@@ -41,6 +49,8 @@ public class CapacitorElm extends CircuitElm {
         current = curcount = 0;
         // put small charge on caps when reset to start oscillators
         voltdiff = 1e-3;
+        history.reset();
+        gear.reset();
     }
 
     public int getDumpType() {
@@ -101,19 +111,85 @@ public class CapacitorElm extends CircuitElm {
         // parallel with a resistor.  Trapezoidal is more accurate
         // than backward euler but can cause oscillatory behavior
         // if RC is small relative to the timestep.
-        if (isTrapezoidal()) {
-            compResistance = sim.getTimeStep() / (2 * capacitance);
-        } else {
-            compResistance = sim.getTimeStep() / capacitance;
+        if (sim.isACAnalysis()) {
+            sim.stampCapacitor(nodes[0], nodes[1], capacitance);
+            return;
         }
+        calcCompResistance();
         sim.stampResistor(nodes[0], nodes[1], compResistance);
         sim.stampRightSide(nodes[0]);
         sim.stampRightSide(nodes[1]);
     }
 
+    public void resolveStamps() {
+        currentHandles = sim.getCurrentSourceHandles(nodes[0], nodes[1]);
+    }
+
+    void calcCompResistance() {
+        if (sim.isDCAnalysis()) {
+            // open circuit, but keep nodes from floating
+            compResistance = 1e12;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            compResistance = sim.getTimeStep() / (2 * capacitance);
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            compResistance = sim.getTimeStep() / (gear.a0 * capacitance);
+        } else {
+            compResistance = sim.getTimeStep() / capacitance;
+        }
+    }
+
+    public double estimateTimeStep() {
+        history.add(sim.getT(), voltdiff);
+        return history.estimate(getMethod(), sim.getTimeStepTolerance(),
+                1e-6);
+    }
+
+    public boolean estimatesError() {
+        return true;
+    }
+
+    public void timeStepChanged() {
+        double oldr = compResistance;
+        calcCompResistance();
+        sim.updateConductance(nodes[0], nodes[1],
+                1 / compResistance - 1 / oldr);
+    }
+
+    // the voltage, and the current (trapezoidal) or the voltage a step
+    // earlier (gear)
+    public int getStateCount() {
+        return (getMethod() == CircuitSimulator.INTEGRATE_BACK_EULER) ? 1 : 2;
+    }
+
+    public void getState(double x[], int n) {
+        x[n] = voltdiff;
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            x[n + 1] = current;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            x[n + 1] = gear.cur[0];
+        }
+    }
+
+    public void setState(double x[], int n) {
+        voltdiff = x[n];
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            current = x[n + 1];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            gear.cur[0] = x[n + 1];
+        }
+    }
+
     public void startIteration() {
-        if (isTrapezoidal()) {
+        if (sim.isDCAnalysis()) {
+            curSourceValue = 0;
+            gear.reset();
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
             curSourceValue = -voltdiff / compResistance - current;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            if (gear.start(sim.getT(), sim.getTimeStep(), voltdiff)) {
+                timeStepChanged();
+            }
+            curSourceValue = gear.known(0) * capacitance / sim.getTimeStep();
         } else {
             curSourceValue = -voltdiff / compResistance;
         }
@@ -131,8 +207,12 @@ public class CapacitorElm extends CircuitElm {
     }
     double curSourceValue;
 
+    public boolean hasLinearStep() {
+        return true;
+    }
+
     public void doStep() {
-        sim.stampCurrentSource(nodes[0], nodes[1], curSourceValue);
+        sim.stampCurrentSource(currentHandles, curSourceValue);
     }
 
     public void getInfo(String arr[]) {
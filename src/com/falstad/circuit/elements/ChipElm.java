@@ -93,10 +93,10 @@ public abstract class ChipElm extends CircuitElm {
                 g.setColor(sim.whiteBackground()
                         ? Color.white : Color.black);
                 drawThickCircle(g, p.bubbleX, p.bubbleY, 1);
-                g.setColor(lightGrayColor);
+                g.setColor(sim.getLightGrayColor());
                 drawThickCircle(g, p.bubbleX, p.bubbleY, 3);
             }
-            g.setColor(whiteColor);
+            g.setColor(sim.getWhiteColor());
             int sw = fm.stringWidth(p.text);
             g.drawString(p.text, p.textloc.x - sw / 2,
                     p.textloc.y + fm.getAscent() / 2);
@@ -105,7 +105,7 @@ public abstract class ChipElm extends CircuitElm {
                 g.drawLine(p.textloc.x - sw / 2, ya, p.textloc.x + sw / 2, ya);
             }
         }
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         drawThickPolygon(g, rectPointsX, rectPointsY, 4);
         if (clockPointsX != null) {
             g.drawPolyline(clockPointsX, clockPointsY, 3);
@@ -204,6 +204,10 @@ public abstract class ChipElm extends CircuitElm {
         for (i = 0; i != getPostCount(); i++) {
             Pin p = pins[i];
             if (p.output) {
+                if (p.value != p.lastValue) {
+                    sim.discontinuity();
+                    p.lastValue = p.value;
+                }
                 sim.updateVoltageSource(0, nodes[i], p.voltSource,
                         p.value ? 5 : 0);
             }
@@ -213,7 +217,7 @@ public abstract class ChipElm extends CircuitElm {
     public void reset() {
         int i;
         for (i = 0; i != getPostCount(); i++) {
-            pins[i].value = false;
+            pins[i].value = pins[i].lastValue = false;
             pins[i].curcount = 0;
             volts[i] = 0;
         }
@@ -325,6 +329,8 @@ public abstract class ChipElm extends CircuitElm {
         public int pos, side, voltSource, bubbleX, bubbleY;
         String text;
         public boolean lineOver, bubble, clock, output, value, state;
+        // the value an output pin was last set to
+        boolean lastValue;
         double curcount, current;
 
         public void setPoint(int px, int py, int dx, int dy, int dax, int day,
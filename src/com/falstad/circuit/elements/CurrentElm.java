@@ -68,7 +68,24 @@ public class CurrentElm extends CircuitElm {
 
     public void stamp() {
         current = currentValue;
-        sim.stampCurrentSource(nodes[0], nodes[1], current);
+        if (sim.isDCAnalysis()) {
+            // scaled in doStep() for source stepping
+            sim.stampRightSide(nodes[0]);
+            sim.stampRightSide(nodes[1]);
+        } else {
+            sim.stampCurrentSource(nodes[0], nodes[1], current);
+        }
+    }
+
+    public boolean hasLinearStep() {
+        return true;
+    }
+
+    public void doStep() {
+        if (sim.isDCAnalysis()) {
+            sim.stampCurrentSource(nodes[0], nodes[1],
+                    current * sim.getSourceScale());
+        }
     }
 
     public EditInfo getEditInfo(int n) {
@@ -87,9 +87,9 @@ class DiacElm extends CircuitElm {
 
     public void doStep() {
         if (state) {
-            sim.stampResistor(nodes[0], nodes[1], onresistance);
+            sim.stampResistor(resistorHandles, onresistance);
         } else {
-            sim.stampResistor(nodes[0], nodes[1], offresistance);
+            sim.stampResistor(resistorHandles, offresistance);
         }
     }
 
@@ -98,6 +98,12 @@ class DiacElm extends CircuitElm {
         sim.stampNonLinear(nodes[1]);
     }
 
+    int resistorHandles[];
+
+    public void resolveStamps() {
+        resistorHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+    }
+
     public void getInfo(String arr[]) {
         // FIXME
         arr[0] = "spark gap";
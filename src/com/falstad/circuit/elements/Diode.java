@@ -5,6 +5,8 @@ import com.falstad.circuit.CircuitSimulator;
 class Diode {
 
     int nodes[];
+    // stamp handles, from resolveStamps()
+    int conductanceHandles[], currentHandles[];
     CircuitSimulator sim;
 
     Diode(CircuitSimulator s) {
@@ -13,6 +15,7 @@ class Diode {
     }
 
     void setup(double fw, double zv) {
+        bypassOk = false;
         fwdrop = fw;
         zvoltage = zv;
         vdcoef = Math.log(1 / leakage + 1) / fwdrop;
@@ -31,12 +34,19 @@ class Diode {
 
     public void reset() {
         lastvoltdiff = 0;
+        bypassOk = false;
     }
 
     public double leakage = 1e-14; // was 1e-9;
     double vt, vdcoef, fwdrop, zvoltage, zoffset;
     double lastvoltdiff;
     double vcrit;
+    // change in voltage in the last doStep(); see
+    // CircuitElm.convergenceError
+    double convergenceError;
+    // the last linearization, for device bypass
+    double bypassv, bypassgeq, bypassnc;
+    boolean bypassOk;
 
     double limitStep(double vnew, double vold) {
         double arg;
@@ -98,14 +108,29 @@ class Diode {
         sim.stampNonLinear(nodes[1]);
     }
 
+    void resolveStamps() {
+        conductanceHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+        currentHandles = sim.getCurrentSourceHandles(nodes[0], nodes[1]);
+    }
+
     void doStep(double voltdiff) {
+        convergenceError = Math.abs(voltdiff - lastvoltdiff);
         // used to have .1 here, but needed .01 for peak detector
-        if (Math.abs(voltdiff - lastvoltdiff) > .01) {
+        if (convergenceError > .01) {
             sim.setConverged(false);
         }
         voltdiff = limitStep(voltdiff, lastvoltdiff);
         lastvoltdiff = voltdiff;
 
+        // if the voltage has hardly moved since we last linearized, use
+        // that again instead of working out the exponentials
+        if (bypassOk
+                && Math.abs(voltdiff - bypassv) < sim.getBypassTolerance()) {
+            sim.stampConductance(conductanceHandles, bypassgeq);
+            sim.stampCurrentSource(currentHandles, bypassnc);
+            return;
+        }
+        double geq, nc;
         if (voltdiff >= 0 || zvoltage == 0) {
             // regular diode or forward-biased zener
             double eval = Math.exp(voltdiff * vdcoef);
@@ -113,10 +138,8 @@ class Diode {
             if (voltdiff < 0) {
                 eval = 1;
             }
-            double geq = vdcoef * leakage * eval;
-            double nc = (eval - 1) * leakage - geq * voltdiff;
-            sim.stampConductance(nodes[0], nodes[1], geq);
-            sim.stampCurrentSource(nodes[0], nodes[1], nc);
+            geq = vdcoef * leakage * eval;
+            nc = (eval - 1) * leakage - geq * voltdiff;
         } else {
 	    // Zener diode
 
@@ -126,15 +149,18 @@ class Diode {
              * geq is I'(Vd)
              * nc is I(Vd) + I'(Vd)*(-Vd)
              */
-            double geq = leakage * vdcoef * (Math.exp(voltdiff * vdcoef) + Math.exp((-voltdiff - zoffset) * vdcoef));
+            geq = leakage * vdcoef * (Math.exp(voltdiff * vdcoef) + Math.exp((-voltdiff - zoffset) * vdcoef));
 
-            double nc = leakage * (Math.exp(voltdiff * vdcoef)
+            nc = leakage * (Math.exp(voltdiff * vdcoef)
                     - Math.exp((-voltdiff - zoffset) * vdcoef)
                     - 1) + geq * (-voltdiff);
-
-            sim.stampConductance(nodes[0], nodes[1], geq);
-            sim.stampCurrentSource(nodes[0], nodes[1], nc);
         }
+        bypassv = voltdiff;
+        bypassgeq = geq;
+        bypassnc = nc;
+        bypassOk = true;
+        sim.stampConductance(conductanceHandles, geq);
+        sim.stampCurrentSource(currentHandles, nc);
     }
 
     double calculateCurrent(double voltdiff) {
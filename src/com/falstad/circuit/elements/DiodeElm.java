@@ -103,8 +103,17 @@ public class DiodeElm extends CircuitElm {
         diode.stamp(nodes[0], nodes[1]);
     }
 
+    public void resolveStamps() {
+        diode.resolveStamps();
+    }
+
+    public boolean readsNodeVoltages() {
+        return true;
+    }
+
     public void doStep() {
-        diode.doStep(volts[0] - volts[1]);
+        diode.doStep(nodeVoltage(0) - nodeVoltage(1));
+        convergenceError = diode.convergenceError;
     }
 
     public void calculateCurrent() {
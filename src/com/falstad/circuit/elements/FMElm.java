@@ -81,7 +81,7 @@ public class FMElm extends CircuitElm {
 
         Font f = new Font("SansSerif", 0, 12);
         g.setFont(f);
-        g.setColor(needsHighlight() ? selectColor : whiteColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getWhiteColor());
         setPowerColor(g, false);
         double v = getVoltage();
         String s = "FM";
@@ -95,7 +95,7 @@ public class FMElm extends CircuitElm {
     }
 
     void drawWaveform(Graphics g, Point center) {
-        g.setColor(needsHighlight() ? selectColor : Color.gray);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : Color.gray);
         setPowerColor(g, false);
         int xc = center.x;
         int yc = center.y;
@@ -126,6 +126,11 @@ public class FMElm extends CircuitElm {
         return -getVoltageDiff() * current;
     }
 
+    // treated as not periodic
+    public double getSourcePeriod() {
+        return -1;
+    }
+
     public void getInfo(String arr[]) {
 
         arr[0] = "FM Source";
@@ -95,7 +95,7 @@ abstract public class GateElm extends CircuitElm {
         }
         setVoltageColor(g, volts[inputCount]);
         drawThickLine(g, lead2, point2);
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         drawThickPolygon(g, gatePoly);
         if (linePoints != null) {
             for (i = 0; i != linePoints.length - 1; i++) {
@@ -149,6 +149,9 @@ abstract public class GateElm extends CircuitElm {
         if (isInverting()) {
             f = !f;
         }
+        if (f != volts[inputCount] > 2.5) {
+            sim.discontinuity();
+        }
         lastOutput = f;
         double res = f ? 5 : 0;
         sim.updateVoltageSource(0, nodes[inputCount], voltSource, res);
@@ -0,0 +1,91 @@
+package com.falstad.circuit.elements;
+
+// history of the state variables of a reactive element (capacitor
+// voltage, inductor currents) for the second order Gear (BDF2) method,
+// which approximates the derivative at the end of a step h as
+//
+//   h x'(t+h) = a0 x(t+h) + a1 x(t) + a2 x(t-h1)
+//
+// using the previous step h1 as well.  With r = h/h1,
+//
+//   a0 = (1+2r)/(1+r),  a1 = -(1+r),  a2 = r^2/(1+r)
+//
+// which is 3/2, -2, 1/2 for equal steps.  Gear is as stable as backward
+// euler (it damps stiff parts of the circuit instead of ringing like
+// trapezoidal does), but second order accurate.  The first step has no
+// history, so it's taken with backward euler (a0 = 1, a1 = -1).
+//
+// With an adaptive time step a step may be taken again from the same
+// time with a smaller h (see CircuitSimulator.adaptiveIntegrateStep()).
+// The element's state puts cur[] back, and start() notices the time is
+// the same and puts back the step that came before, so r comes out of
+// h1 and not the step that was thrown away.
+class GearState {
+
+    double cur[], prev[];
+    double lastStep;
+    double a0 = 1, a1 = -1, a2;
+    // when the last step started, and lastStep before it
+    double startTime = Double.NaN;
+    double startLastStep;
+
+    GearState(int n) {
+        cur = new double[n];
+        prev = new double[n];
+    }
+
+    void reset() {
+        lastStep = 0;
+        startTime = Double.NaN;
+    }
+
+    // begin a step of size h at time t from state x.  Returns true if a0
+    // changed, in which case the element has to change its conductances.
+    boolean start(double t, double h, double x) {
+        prev[0] = cur[0];
+        cur[0] = x;
+        return setStep(t, h);
+    }
+
+    boolean start(double t, double h, double x[]) {
+        int i;
+        for (i = 0; i != cur.length; i++) {
+            prev[i] = cur[i];
+            cur[i] = x[i];
+        }
+        return setStep(t, h);
+    }
+
+    // the step before this one is the one before the step being taken
+    // again, if it is
+    boolean setStep(double t, double h) {
+        if (t == startTime) {
+            lastStep = startLastStep;
+        } else {
+            startTime = t;
+            startLastStep = lastStep;
+        }
+        return setStep(h);
+    }
+
+    boolean setStep(double h) {
+        double olda0 = a0;
+        if (lastStep > 0) {
+            double r = h / lastStep;
+            a0 = (1 + 2 * r) / (1 + r);
+            a1 = -(1 + r);
+            a2 = r * r / (1 + r);
+        } else {
+            a0 = 1;
+            a1 = -1;
+            a2 = 0;
+        }
+        lastStep = h;
+        return a0 != olda0;
+    }
+
+    // the part of h x'(t+h) that's known at the start of the step
+    double known(int i) {
+        return a1 * cur[i] + a2 * prev[i];
+    }
+}
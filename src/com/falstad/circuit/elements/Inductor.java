@@ -6,16 +6,22 @@ class Inductor {
 
     public static final int FLAG_BACK_EULER = 2;
     int nodes[];
+    // stamp handles, from resolveStamps()
+    int currentHandles[];
     int flags;
     CircuitSimulator sim;
 
     double inductance;
     double compResistance, current;
     double curSourceValue;
+    StepHistory history;
+    GearState gear;
 
     Inductor(CircuitSimulator s) {
         sim = s;
         nodes = new int[2];
+        history = new StepHistory();
+        gear = new GearState(1);
     }
 
     void setup(double ic, double cr, int f) {
@@ -28,8 +34,14 @@ class Inductor {
         return (flags & FLAG_BACK_EULER) == 0;
     }
 
+    int getMethod() {
+        return sim.getIntegrationMethod(!isTrapezoidal());
+    }
+
     public void reset() {
         current = 0;
+        history.reset();
+        gear.reset();
     }
 
     void stamp(int n0, int n1) {
@@ -40,15 +52,72 @@ class Inductor {
         // The oscillation is a real problem in circuits with switches.
         nodes[0] = n0;
         nodes[1] = n1;
-        if (isTrapezoidal()) {
+        if (sim.isACAnalysis()) {
+            sim.stampInductor(n0, n1, inductance);
+            return;
+        }
+        calcCompResistance();
+        sim.stampResistor(nodes[0], nodes[1], compResistance);
+        sim.stampRightSide(nodes[0]);
+        sim.stampRightSide(nodes[1]);
+    }
+
+    void resolveStamps() {
+        currentHandles = sim.getCurrentSourceHandles(nodes[0], nodes[1]);
+    }
+
+    void calcCompResistance() {
+        if (sim.isDCAnalysis()) {
+            // short circuit
+            compResistance = 1e-6;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
             compResistance = 2 * inductance / sim.getTimeStep();
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            compResistance = gear.a0 * inductance / sim.getTimeStep();
         } else // backward euler
         {
             compResistance = inductance / sim.getTimeStep();
         }
-        sim.stampResistor(nodes[0], nodes[1], compResistance);
-        sim.stampRightSide(nodes[0]);
-        sim.stampRightSide(nodes[1]);
+    }
+
+    double estimateTimeStep() {
+        history.add(sim.getT(), current);
+        return history.estimate(getMethod(), sim.getTimeStepTolerance(),
+                1e-9);
+    }
+
+    void timeStepChanged() {
+        double oldr = compResistance;
+        calcCompResistance();
+        sim.updateConductance(nodes[0], nodes[1],
+                1 / compResistance - 1 / oldr);
+    }
+
+    // the current, and the voltage across the inductor (trapezoidal) or
+    // the current a step earlier (gear)
+    int getStateCount() {
+        return (getMethod() == CircuitSimulator.INTEGRATE_BACK_EULER) ? 1 : 2;
+    }
+
+    void getState(double x[], int n, double voltdiff) {
+        x[n] = current;
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            x[n + 1] = voltdiff;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            x[n + 1] = gear.cur[0];
+        }
+    }
+
+    // returns the voltage the element should put across the inductor
+    double setState(double x[], int n, double voltdiff) {
+        current = x[n];
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            return x[n + 1];
+        }
+        if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            gear.cur[0] = x[n + 1];
+        }
+        return voltdiff;
     }
 
     public boolean nonLinear() {
@@ -56,8 +125,16 @@ class Inductor {
     }
 
     void startIteration(double voltdiff) {
-        if (isTrapezoidal()) {
+        if (sim.isDCAnalysis()) {
+            curSourceValue = 0;
+            gear.reset();
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
             curSourceValue = voltdiff / compResistance + current;
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            if (gear.start(sim.getT(), sim.getTimeStep(), current)) {
+                timeStepChanged();
+            }
+            curSourceValue = -gear.known(0) / gear.a0;
         } else // backward euler
         {
             curSourceValue = current;
@@ -75,6 +152,6 @@ class Inductor {
     }
 
     void doStep(double voltdiff) {
-        sim.stampCurrentSource(nodes[0], nodes[1], curSourceValue);
+        sim.stampCurrentSource(currentHandles, curSourceValue);
     }
 }
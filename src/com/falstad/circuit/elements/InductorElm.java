@@ -1,6 +1,7 @@
 package com.falstad.circuit.elements;
 
 import com.falstad.circuit.CircuitElm;
+import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
 import java.util.StringTokenizer;
@@ -65,10 +66,44 @@ public class InductorElm extends CircuitElm {
         ind.stamp(nodes[0], nodes[1]);
     }
 
+    public void resolveStamps() {
+        ind.resolveStamps();
+    }
+
+    public void setSim(CircuitSimulator sim) {
+        super.setSim(sim);
+        ind.sim = sim;
+    }
+
     public void startIteration() {
         ind.startIteration(volts[0] - volts[1]);
     }
 
+    public int getStateCount() {
+        return ind.getStateCount();
+    }
+
+    public void getState(double x[], int n) {
+        ind.getState(x, n, volts[0] - volts[1]);
+    }
+
+    public void setState(double x[], int n) {
+        volts[0] = volts[1] + ind.setState(x, n, volts[0] - volts[1]);
+        current = ind.current;
+    }
+
+    public double estimateTimeStep() {
+        return ind.estimateTimeStep();
+    }
+
+    public boolean estimatesError() {
+        return true;
+    }
+
+    public void timeStepChanged() {
+        ind.timeStepChanged();
+    }
+
     public boolean nonLinear() {
         return ind.nonLinear();
     }
@@ -78,6 +113,10 @@ public class InductorElm extends CircuitElm {
         current = ind.calculateCurrent(voltdiff);
     }
 
+    public boolean hasLinearStep() {
+        return true;
+    }
+
     public void doStep() {
         double voltdiff = volts[0] - volts[1];
         ind.doStep(voltdiff);
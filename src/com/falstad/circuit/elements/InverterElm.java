@@ -37,7 +37,7 @@ public class InverterElm extends CircuitElm {
     public void draw(Graphics g) {
         drawPosts(g);
         draw2Leads(g);
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         drawThickPolygon(g, gatePoly);
         drawThickCircle(g, pcircle.x, pcircle.y, 3);
         curcount = updateDotCount(current, curcount);
@@ -74,6 +74,9 @@ public class InverterElm extends CircuitElm {
     public void doStep() {
         double v0 = volts[1];
         double out = volts[0] > 2.5 ? 0 : 5;
+        if (out > 2.5 != v0 > 2.5) {
+            sim.discontinuity();
+        }
         double maxStep = slewRate * sim.getTimeStep() * 1e9;
         out = Math.max(Math.min(v0 + maxStep, out), v0 - maxStep);
         sim.updateVoltageSource(0, nodes[1], voltSource, out);
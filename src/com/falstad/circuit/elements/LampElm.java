@@ -46,6 +46,19 @@ public class LampElm extends CircuitElm {
         super.reset();
         temp = roomTemp;
     }
+
+    // the filament temperature
+    public int getStateCount() {
+        return 1;
+    }
+
+    public void getState(double x[], int n) {
+        x[n] = temp;
+    }
+
+    public void setState(double x[], int n) {
+        temp = x[n];
+    }
     final int filament_len = 24;
 
     public void setPoints() {
@@ -132,6 +145,12 @@ public class LampElm extends CircuitElm {
         sim.stampNonLinear(nodes[1]);
     }
 
+    int resistorHandles[];
+
+    public void resolveStamps() {
+        resistorHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+    }
+
     public boolean nonLinear() {
         return true;
     }
@@ -155,7 +174,7 @@ public class LampElm extends CircuitElm {
     }
 
     public void doStep() {
-        sim.stampResistor(nodes[0], nodes[1], resistance);
+        sim.stampResistor(resistorHandles, resistance);
     }
 
     public void getInfo(String arr[]) {
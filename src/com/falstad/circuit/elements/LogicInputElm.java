@@ -59,7 +59,7 @@ public class LogicInputElm extends SwitchElm {
     public void draw(Graphics g) {
         Font f = new Font("SansSerif", Font.BOLD, 20);
         g.setFont(f);
-        g.setColor(needsHighlight() ? selectColor : whiteColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getWhiteColor());
         String s = position == 0 ? "L" : "H";
         if (isNumeric()) {
             s = "" + position;
@@ -64,8 +64,8 @@ public class LogicOutputElm extends CircuitElm {
     public void draw(Graphics g) {
         Font f = new Font("SansSerif", Font.BOLD, 20);
         g.setFont(f);
-        //g.setColor(needsHighlight() ? selectColor : lightGrayColor);
-        g.setColor(lightGrayColor);
+        //g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
+        g.setColor(sim.getLightGrayColor());
         String s = (volts[0] < threshold) ? "L" : "H";
         if (isTernary()) {
             if (volts[0] > 3.75) {
@@ -95,6 +95,18 @@ public class MemristorElm extends CircuitElm {
         dopeWidth = 0;
     }
 
+    public int getStateCount() {
+        return 1;
+    }
+
+    public void getState(double x[], int n) {
+        x[n] = dopeWidth;
+    }
+
+    public void setState(double x[], int n) {
+        dopeWidth = x[n];
+    }
+
     public void startIteration() {
         double wd = dopeWidth / totalWidth;
         dopeWidth += sim.getTimeStep() * mobility * r_on * current / totalWidth;
@@ -112,8 +124,14 @@ public class MemristorElm extends CircuitElm {
         sim.stampNonLinear(nodes[1]);
     }
 
+    int resistorHandles[];
+
+    public void resolveStamps() {
+        resistorHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+    }
+
     public void doStep() {
-        sim.stampResistor(nodes[0], nodes[1], resistance);
+        sim.stampResistor(resistorHandles, resistance);
     }
 
     public void getInfo(String arr[]) {
@@ -51,6 +51,7 @@ public class MosfetElm extends CircuitElm {
 
     public void reset() {
         lastv1 = lastv2 = volts[0] = volts[1] = volts[2] = curcount = 0;
+        bypassOk = false;
     }
 
     public String dump() {
@@ -98,7 +99,7 @@ public class MosfetElm extends CircuitElm {
         }
         if ((flags & FLAG_SHOWVT) != 0) {
             String s = "" + (vt * pnp);
-            g.setColor(whiteColor);
+            g.setColor(sim.getWhiteColor());
             g.setFont(unitsFont);
             drawCenteredText(g, s, x2 + 2, y2, false);
         }
@@ -177,11 +178,29 @@ public class MosfetElm extends CircuitElm {
         sim.stampNonLinear(nodes[2]);
     }
 
+    // stamp handles: matrixHandles[a * 3 + b] is entry (nodes[a], nodes[b])
+    int matrixHandles[], rightHandles[];
+
+    public void resolveStamps() {
+        matrixHandles = getNodeHandles(3);
+        rightHandles = getRightSideHandles(3);
+    }
+
+    // the last linearization, for device bypass
+    double bypassv0, bypassv1, bypassv2;
+    double gds, rs;
+    int source, drain;
+    boolean bypassOk;
+
+    public boolean readsNodeVoltages() {
+        return true;
+    }
+
     public void doStep() {
         double vs[] = new double[3];
-        vs[0] = volts[0];
-        vs[1] = volts[1];
-        vs[2] = volts[2];
+        vs[0] = nodeVoltage(0);
+        vs[1] = nodeVoltage(1);
+        vs[2] = nodeVoltage(2);
         if (vs[1] > lastv1 + .5) {
             vs[1] = lastv1 + .5;
         }
@@ -194,69 +213,83 @@ public class MosfetElm extends CircuitElm {
         if (vs[2] < lastv2 - .5) {
             vs[2] = lastv2 - .5;
         }
-        int source = 1;
-        int drain = 2;
-        if (pnp * vs[1] > pnp * vs[2]) {
-            source = 2;
-            drain = 1;
-        }
-        int gate = 0;
-        double vgs = vs[gate] - vs[source];
-        double vds = vs[drain] - vs[source];
-        if (Math.abs(lastv1 - vs[1]) > .01
-                || Math.abs(lastv2 - vs[2]) > .01) {
+        convergenceError = Math.max(Math.abs(lastv1 - vs[1]),
+                Math.abs(lastv2 - vs[2]));
+        if (convergenceError > .01) {
             sim.setConverged(false);
         }
         lastv1 = vs[1];
         lastv2 = vs[2];
-        double realvgs = vgs;
-        double realvds = vds;
-        vgs *= pnp;
-        vds *= pnp;
-        ids = 0;
-        gm = 0;
-        double Gds = 0;
-        double beta = getBeta();
-        if (vgs > .5 && this instanceof JfetElm) {
-            sim.stop("JFET is reverse biased!", this);
-            return;
-        }
-        if (vgs < vt) {
-		// should be all zero, but that causes a singular matrix,
-            // so instead we treat it as a large resistor
-            Gds = 1e-8;
-            ids = vds * Gds;
-            mode = 0;
-        } else if (vds < vgs - vt) {
-            // linear
-            ids = beta * ((vgs - vt) * vds - vds * vds * .5);
-            gm = beta * vds;
-            Gds = beta * (vgs - vds - vt);
-            mode = 1;
-        } else {
-            // saturation; Gds = 0
-            gm = beta * (vgs - vt);
-            // use very small Gds to avoid nonconvergence
-            Gds = 1e-8;
-            ids = .5 * beta * (vgs - vt) * (vgs - vt) + (vds - (vgs - vt)) * Gds;
-            mode = 2;
+        int gate = 0;
+        // if the voltages have hardly moved since we last linearized,
+        // use that again
+        double tol = sim.getBypassTolerance();
+        if (!(bypassOk && Math.abs(vs[0] - bypassv0) < tol
+                && Math.abs(vs[1] - bypassv1) < tol
+                && Math.abs(vs[2] - bypassv2) < tol)) {
+            source = 1;
+            drain = 2;
+            if (pnp * vs[1] > pnp * vs[2]) {
+                source = 2;
+                drain = 1;
+            }
+            double vgs = vs[gate] - vs[source];
+            double vds = vs[drain] - vs[source];
+            double realvgs = vgs;
+            double realvds = vds;
+            vgs *= pnp;
+            vds *= pnp;
+            ids = 0;
+            gm = 0;
+            double Gds = 0;
+            double beta = getBeta();
+            if (vgs > .5 && this instanceof JfetElm) {
+                sim.stop("JFET is reverse biased!", this);
+                return;
+            }
+            if (vgs < vt) {
+                // should be all zero, but that causes a singular matrix,
+                // so instead we treat it as a large resistor
+                Gds = 1e-8;
+                ids = vds * Gds;
+                mode = 0;
+            } else if (vds < vgs - vt) {
+                // linear
+                ids = beta * ((vgs - vt) * vds - vds * vds * .5);
+                gm = beta * vds;
+                Gds = beta * (vgs - vds - vt);
+                mode = 1;
+            } else {
+                // saturation; Gds = 0
+                gm = beta * (vgs - vt);
+                // use very small Gds to avoid nonconvergence
+                Gds = 1e-8;
+                ids = .5 * beta * (vgs - vt) * (vgs - vt) + (vds - (vgs - vt)) * Gds;
+                mode = 2;
+            }
+            rs = -pnp * ids + Gds * realvds + gm * realvgs;
+            gds = Gds;
+            if (source == 2 && pnp == 1
+                    || source == 1 && pnp == -1) {
+                ids = -ids;
+            }
+            bypassv0 = vs[0];
+            bypassv1 = vs[1];
+            bypassv2 = vs[2];
+            bypassOk = true;
         }
-        double rs = -pnp * ids + Gds * realvds + gm * realvgs;
         //System.out.println("M " + vds + " " + vgs + " " + ids + " " + gm + " "+ Gds + " " + volts[0] + " " + volts[1] + " " + volts[2] + " " + source + " " + rs + " " + this);
-        sim.stampMatrix(nodes[drain], nodes[drain], Gds);
-        sim.stampMatrix(nodes[drain], nodes[source], -Gds - gm);
-        sim.stampMatrix(nodes[drain], nodes[gate], gm);
-
-        sim.stampMatrix(nodes[source], nodes[drain], -Gds);
-        sim.stampMatrix(nodes[source], nodes[source], Gds + gm);
-        sim.stampMatrix(nodes[source], nodes[gate], -gm);
-
-        sim.stampRightSide(nodes[drain], rs);
-        sim.stampRightSide(nodes[source], -rs);
-        if (source == 2 && pnp == 1
-                || source == 1 && pnp == -1) {
-            ids = -ids;
-        }
+        int h[] = matrixHandles;
+        sim.stampHandle(h[drain * 3 + drain], gds);
+        sim.stampHandle(h[drain * 3 + source], -gds - gm);
+        sim.stampHandle(h[drain * 3 + gate], gm);
+
+        sim.stampHandle(h[source * 3 + drain], -gds);
+        sim.stampHandle(h[source * 3 + source], gds + gm);
+        sim.stampHandle(h[source * 3 + gate], -gm);
+
+        sim.stampRightSideHandle(rightHandles[drain], rs);
+        sim.stampRightSideHandle(rightHandles[source], -rs);
     }
 
     void getFetInfo(String arr[], String n) {
@@ -302,6 +335,7 @@ public class MosfetElm extends CircuitElm {
     public void setEditValue(int n, EditInfo ei) {
         if (n == 0) {
             vt = pnp * ei.value;
+            bypassOk = false;
         }
         if (n == 1) {
             flags = (ei.checkbox.getState()) ? (flags | FLAG_DIGITAL)
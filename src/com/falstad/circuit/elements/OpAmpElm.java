@@ -70,7 +70,7 @@ public class OpAmpElm extends CircuitElm {
         drawThickLine(g, in1p[0], in1p[1]);
         setVoltageColor(g, volts[1]);
         drawThickLine(g, in2p[0], in2p[1]);
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         setPowerColor(g, true);
         drawThickPolygon(g, triangle);
         g.setFont(plusFont);
@@ -156,15 +156,34 @@ public class OpAmpElm extends CircuitElm {
         sim.stampMatrix(nodes[2], vn, 1);
     }
 
+    // stamp handles for the voltage source row: its entries in the
+    // columns of nodes 0 to 2, and its right side
+    int matrixHandles[];
+    int rightHandle;
+
+    public void resolveStamps() {
+        int vn = sim.nodeListSize() + voltSource;
+        matrixHandles = new int[3];
+        int i;
+        for (i = 0; i != 3; i++) {
+            matrixHandles[i] = sim.getStampHandle(vn, nodes[i]);
+        }
+        rightHandle = sim.getRightSideHandle(vn);
+    }
+
+    public boolean readsNodeVoltages() {
+        return true;
+    }
+
     public void doStep() {
-        double vd = volts[1] - volts[0];
+        double vd = nodeVoltage(1) - nodeVoltage(0);
+        double vo = nodeVoltage(2);
         if (Math.abs(lastvd - vd) > .1) {
             sim.setConverged(false);
-        } else if (volts[2] > maxOut + .1 || volts[2] < minOut - .1) {
+        } else if (vo > maxOut + .1 || vo < minOut - .1) {
             sim.setConverged(false);
         }
         double x = 0;
-        int vn = sim.nodeListSize() + voltSource;
         double dx = 0;
         if (vd >= maxOut / gain && (lastvd >= 0 || sim.getrand(4) == 1)) {
             dx = 1e-4;
@@ -178,10 +197,10 @@ public class OpAmpElm extends CircuitElm {
         //System.out.println("opamp " + vd + " " + volts[2] + " " + dx + " "  + x + " " + lastvd + " " + sim.converged);
 
         // newton-raphson
-        sim.stampMatrix(vn, nodes[0], dx);
-        sim.stampMatrix(vn, nodes[1], -dx);
-        sim.stampMatrix(vn, nodes[2], 1);
-        sim.stampRightSide(vn, x);
+        sim.stampHandle(matrixHandles[0], dx);
+        sim.stampHandle(matrixHandles[1], -dx);
+        sim.stampHandle(matrixHandles[2], 1);
+        sim.stampRightSideHandle(rightHandle, x);
 
         lastvd = vd;
         /*if (sim.converged)
@@ -35,7 +35,7 @@ public class OutputElm extends CircuitElm {
         boolean selected = (needsHighlight() || sim.getPlotYElm() == this);
         Font f = new Font("SansSerif", selected ? Font.BOLD : 0, 14);
         g.setFont(f);
-        g.setColor(selected ? selectColor : whiteColor);
+        g.setColor(selected ? sim.getSelectColor() : sim.getWhiteColor());
         String s = (flags & FLAG_VALUE) != 0 ? getVoltageText(volts[0]) : "out";
         FontMetrics fm = g.getFontMetrics();
         if (this == sim.getPlotXElm()) {
@@ -49,7 +49,7 @@ public class OutputElm extends CircuitElm {
         drawCenteredText(g, s, x2, y2, true);
         setVoltageColor(g, volts[0]);
         if (selected) {
-            g.setColor(selectColor);
+            g.setColor(sim.getSelectColor());
         }
         drawThickLine(g, point1, lead1);
         drawPosts(g);
@@ -87,7 +87,7 @@ class PhotoResistorElm extends CircuitElm {
     }
 
     public void doStep() {
-        sim.stampResistor(nodes[0], nodes[1], resistance);
+        sim.stampResistor(resistorHandles, resistance);
     }
 
     public void stamp() {
@@ -95,6 +95,12 @@ class PhotoResistorElm extends CircuitElm {
         sim.stampNonLinear(nodes[1]);
     }
 
+    int resistorHandles[];
+
+    public void resolveStamps() {
+        resistorHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+    }
+
     public void getInfo(String arr[]) {
         // FIXME
         arr[0] = "spark gap";
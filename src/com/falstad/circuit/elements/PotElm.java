@@ -58,6 +58,9 @@ public class PotElm extends CircuitElm implements AdjustmentListener {
     @Override
     public void setSim(CircuitSimulator sim) {
         this.sim = sim;
+        if (sim.isHeadless()) {
+            return;
+        }
         sim.getContainer().add(label = new Label(sliderText, Label.CENTER));
         int value = (int) (position * 100);
         sim.getContainer().add(slider = new Scrollbar(Scrollbar.HORIZONTAL, value, 1, 0, 101));
@@ -71,6 +74,9 @@ public class PotElm extends CircuitElm implements AdjustmentListener {
     }
 
     public void delete() {
+        if (slider == null) {
+            return;
+        }
         sim.getContainer().remove(label);
         sim.getContainer().remove(slider);
     }
@@ -98,7 +104,9 @@ public class PotElm extends CircuitElm implements AdjustmentListener {
         dn = distance(point1, point2);
         int bodyLen = 32;
         calcLeads(bodyLen);
-        position = slider.getValue() * .0099 + .005;
+        if (slider != null) {
+            position = slider.getValue() * .0099 + .005;
+        }
         int soff = (int) ((position - .5) * bodyLen);
         //int offset2 = offset - sign(offset)*4;
         post3 = interpPoint(point1, point2, .5, offset);
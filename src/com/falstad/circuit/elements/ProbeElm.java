@@ -43,12 +43,12 @@ public class ProbeElm extends CircuitElm {
         calcLeads((int) len);
         setVoltageColor(g, volts[0]);
         if (selected) {
-            g.setColor(selectColor);
+            g.setColor(sim.getSelectColor());
         }
         drawThickLine(g, point1, lead1);
         setVoltageColor(g, volts[1]);
         if (selected) {
-            g.setColor(selectColor);
+            g.setColor(sim.getSelectColor());
         }
         drawThickLine(g, lead2, point2);
         Font f = new Font("SansSerif", Font.BOLD, 14);
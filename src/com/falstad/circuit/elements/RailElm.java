@@ -44,7 +44,7 @@ public class RailElm extends VoltageElm {
         if (waveform == WF_DC || waveform == WF_VAR || clock) {
             Font f = new Font("SansSerif", 0, 12);
             g.setFont(f);
-            g.setColor(needsHighlight() ? selectColor : whiteColor);
+            g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getWhiteColor());
             setPowerColor(g, false);
             double v = getVoltage();
             String s = getShortUnitText(v, "V");
@@ -78,7 +78,7 @@ public class RailElm extends VoltageElm {
 
     @Override
     public void stamp() {
-        if (waveform == WF_DC) {
+        if (waveform == WF_DC && !sim.isDCAnalysis()) {
             sim.stampVoltageSource(0, nodes[0], voltSource, getVoltage());
         } else {
             sim.stampVoltageSource(0, nodes[0], voltSource);
@@ -87,8 +87,9 @@ public class RailElm extends VoltageElm {
 
     @Override
     public void doStep() {
-        if (waveform != WF_DC) {
-            sim.updateVoltageSource(0, nodes[0], voltSource, getVoltage());
+        if (waveform != WF_DC || sim.isDCAnalysis()) {
+            sim.updateVoltageSource(0, nodes[0], voltSource,
+                    getVoltage() * sim.getSourceScale());
         }
     }
 
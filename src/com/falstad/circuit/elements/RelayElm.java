@@ -1,6 +1,7 @@
 package com.falstad.circuit.elements;
 
 import com.falstad.circuit.CircuitElm;
+import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
 import java.util.StringTokenizer;
@@ -116,7 +117,7 @@ public class RelayElm extends CircuitElm {
 
             interpPoint(swpoles[p][1], swpoles[p][2], ptSwitch[p], d_position);
             //setVoltageColor(g, volts[nSwitch0]);
-            g.setColor(whiteColor);
+            g.setColor(sim.getWhiteColor());
             drawThickLine(g, swpoles[p][0], ptSwitch[p]);
             switchCurCount[p] = updateDotCount(switchCurrent[p],
                     switchCurCount[p]);
@@ -214,6 +215,57 @@ public class RelayElm extends CircuitElm {
         for (i = 0; i != poleCount * 3; i++) {
             sim.stampNonLinear(nodes[nSwitch0 + i]);
         }
+        // the switch contacts only change the matrix when the relay
+        // moves, so we stamp them here and update them in doStep()
+        for (i = 0; i != poleCount * 3; i += 3) {
+            sim.stampResistor(nodes[nSwitch0 + i], nodes[nSwitch1 + i],
+                    i_position == 0 ? r_on : r_off);
+            sim.stampResistor(nodes[nSwitch0 + i], nodes[nSwitch2 + i],
+                    i_position == 1 ? r_on : r_off);
+        }
+        stampedPosition = i_position;
+    }
+
+    public void resolveStamps() {
+        ind.resolveStamps();
+    }
+
+    int stampedPosition;
+
+    public void setSim(CircuitSimulator sim) {
+        super.setSim(sim);
+        ind.sim = sim;
+    }
+
+    public double estimateTimeStep() {
+        return ind.estimateTimeStep();
+    }
+
+    public boolean estimatesError() {
+        return true;
+    }
+
+    public void timeStepChanged() {
+        ind.timeStepChanged();
+    }
+
+    // the coil's state; the switch position follows from its current
+    public int getStateCount() {
+        return ind.getStateCount();
+    }
+
+    public void getState(double x[], int n) {
+        ind.getState(x, n, volts[nCoil1] - volts[nCoil3]);
+    }
+
+    public void setState(double x[], int n) {
+        volts[nCoil1] = volts[nCoil3]
+                + ind.setState(x, n, volts[nCoil1] - volts[nCoil3]);
+        coilCurrent = ind.current;
+    }
+
+    double contactConductance(int pos, int contact) {
+        return 1 / (pos == contact ? r_on : r_off);
     }
 
     public void startIteration() {
@@ -240,21 +292,23 @@ public class RelayElm extends CircuitElm {
         //System.out.println("ind " + this + " " + current + " " + voltdiff);
     }
 
-    // we need this to be able to change the matrix for each step
-    public boolean nonLinear() {
-        return true;
-    }
-
     public void doStep() {
         double voltdiff = volts[nCoil1] - volts[nCoil3];
         ind.doStep(voltdiff);
+        if (i_position == stampedPosition) {
+            return;
+        }
+        double g1 = contactConductance(i_position, 0)
+                - contactConductance(stampedPosition, 0);
+        double g2 = contactConductance(i_position, 1)
+                - contactConductance(stampedPosition, 1);
         int p;
         for (p = 0; p != poleCount * 3; p += 3) {
-            sim.stampResistor(nodes[nSwitch0 + p], nodes[nSwitch1 + p],
-                    i_position == 0 ? r_on : r_off);
-            sim.stampResistor(nodes[nSwitch0 + p], nodes[nSwitch2 + p],
-                    i_position == 1 ? r_on : r_off);
+            sim.updateConductance(nodes[nSwitch0 + p], nodes[nSwitch1 + p], g1);
+            sim.updateConductance(nodes[nSwitch0 + p], nodes[nSwitch2 + p], g2);
         }
+        sim.discontinuity();
+        stampedPosition = i_position;
     }
 
     public void calculateCurrent() {
@@ -182,6 +182,10 @@ public class SRAMElm extends ChipElm {
         for (i = 0; i != getPostCount(); i++) {
             Pin p = pins[i];
             if (p.output && !pins[9].value) {
+                if (p.value != p.lastValue) {
+                    sim.discontinuity();
+                    p.lastValue = p.value;
+                }
                 sim.updateVoltageSource(0, nodes[i], p.voltSource, p.value ? 5 : 0);
             }
         }
@@ -40,6 +40,9 @@ public class SchmittElm extends InvertingSchmittElm {
             }
         }
 
+        if (out > 2.5 != v0 > 2.5) {
+            sim.discontinuity();
+        }
         double maxStep = slewRate * sim.getTimeStep() * 1e9;
         out = Math.max(Math.min(v0 + maxStep, out), v0 - maxStep);
         sim.updateVoltageSource(0, nodes[1], voltSource, out);
@@ -48,7 +51,7 @@ public class SchmittElm extends InvertingSchmittElm {
     public void draw(Graphics g) {
         drawPosts(g);
         draw2Leads(g);
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         drawThickPolygon(g, gatePoly);
         drawThickPolygon(g, symbolPoly);
         curcount = updateDotCount(current, curcount);
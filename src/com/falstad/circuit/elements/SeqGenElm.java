@@ -62,6 +62,11 @@ public class SeqGenElm extends ChipElm {
         position++;
     }
 
+    // a one-shot sequence plays out on a timer
+    public boolean isTimeInvariant() {
+        return !oneshot;
+    }
+
     public void execute() {
         if (oneshot) {
             if (sim.getT() - lastchangetime > 0.005) {
@@ -92,7 +92,7 @@ public class SparkGapElm extends CircuitElm {
 
     public void doStep() {
         resistance = (state) ? onresistance : offresistance;
-        sim.stampResistor(nodes[0], nodes[1], resistance);
+        sim.stampResistor(resistorHandles, resistance);
     }
 
     public void stamp() {
@@ -100,6 +100,12 @@ public class SparkGapElm extends CircuitElm {
         sim.stampNonLinear(nodes[1]);
     }
 
+    int resistorHandles[];
+
+    public void resolveStamps() {
+        resistorHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+    }
+
     public void getInfo(String arr[]) {
         arr[0] = "spark gap";
         getBasicInfo(arr);
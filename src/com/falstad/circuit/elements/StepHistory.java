@@ -0,0 +1,85 @@
+package com.falstad.circuit.elements;
+
+import com.falstad.circuit.CircuitSimulator;
+
+// the last few values of a state variable (a capacitor voltage or an
+// inductor current), for estimating the local truncation error with an
+// adaptive time step.  The error of one step is about
+//
+//   trapezoidal:    h^3/12 x'''
+//   gear (BDF2):    h^3*2/9 x'''
+//   backward euler: h^2/2  x''
+//
+// and the derivatives come from divided differences of the history,
+// which work with unequal steps.
+class StepHistory {
+
+    static final int SIZE = 4;
+    // newest first
+    double times[], values[];
+    int count;
+
+    StepHistory() {
+        times = new double[SIZE];
+        values = new double[SIZE];
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    // add the value at time t, after dropping any from t on: a step that
+    // is taken again (see CircuitSimulator.adaptiveIntegrateStep()), or
+    // the simulation was reset
+    void add(double t, double x) {
+        int i;
+        while (count > 0 && t <= times[0]) {
+            for (i = 0; i != count - 1; i++) {
+                times[i] = times[i + 1];
+                values[i] = values[i + 1];
+            }
+            count--;
+        }
+        for (i = SIZE - 1; i > 0; i--) {
+            times[i] = times[i - 1];
+            values[i] = values[i - 1];
+        }
+        times[0] = t;
+        values[0] = x;
+        if (count < SIZE) {
+            count++;
+        }
+    }
+
+    // the largest step for which the error stays below
+    // reltol*|x| + abstol, or Double.MAX_VALUE if we can't tell yet
+    double estimate(int method, double reltol, double abstol) {
+        boolean euler = (method == CircuitSimulator.INTEGRATE_BACK_EULER);
+        int n = euler ? 3 : 4;
+        if (count < n) {
+            return Double.MAX_VALUE;
+        }
+        double d[] = new double[n];
+        int i, k;
+        System.arraycopy(values, 0, d, 0, n);
+        for (k = 1; k != n; k++) {
+            for (i = 0; i != n - k; i++) {
+                d[i] = (d[i] - d[i + 1]) / (times[i] - times[i + k]);
+            }
+        }
+        // d[0] is now x''' / 6, or x'' / 2 for backward euler
+        double dd = Math.abs(d[0]);
+        if (dd == 0) {
+            return Double.MAX_VALUE;
+        }
+        double tol = reltol * Math.max(Math.abs(values[0]),
+                Math.abs(values[1])) + abstol;
+        if (method == CircuitSimulator.INTEGRATE_GEAR) {
+            return Math.cbrt(.75 * tol / dd);
+        }
+        if (!euler) {
+            return Math.cbrt(2 * tol / dd);
+        }
+        return Math.sqrt(tol / dd);
+    }
+}
@@ -58,7 +58,7 @@ public class SweepElm extends CircuitElm {
         setBbox(point1, point2, circleSize);
         setVoltageColor(g, volts[0]);
         drawThickLine(g, point1, lead1);
-        g.setColor(needsHighlight() ? selectColor : Color.gray);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : Color.gray);
         setPowerColor(g, false);
         int xc = point2.x;
         int yc = point2.y;
@@ -129,6 +129,25 @@ public class SweepElm extends CircuitElm {
         dir = 1;
         setParams();
     }
+
+    // where the sweep is, which each step moves on: the phase, the
+    // frequency and the direction
+    public int getStateCount() {
+        return 3;
+    }
+
+    public void getState(double x[], int n) {
+        x[n] = freqTime;
+        x[n + 1] = frequency;
+        x[n + 2] = dir;
+    }
+
+    public void setState(double x[], int n) {
+        freqTime = x[n];
+        frequency = x[n + 1];
+        dir = (int) x[n + 2];
+        setParams();
+    }
     double v;
 
     public void startIteration() {
@@ -171,6 +190,11 @@ public class SweepElm extends CircuitElm {
         return true;
     }
 
+    // not periodic
+    public double getSourcePeriod() {
+        return -1;
+    }
+
     public void getInfo(String arr[]) {
         arr[0] = "sweep " + (((flags & FLAG_LOG) == 0) ? "(linear)" : "(log)");
         arr[1] = "I = " + getCurrentDText(getCurrent());
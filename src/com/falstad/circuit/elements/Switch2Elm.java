@@ -65,7 +65,7 @@ public class Switch2Elm extends SwitchElm {
 
         // draw switch
         if (!needsHighlight()) {
-            g.setColor(whiteColor);
+            g.setColor(sim.getWhiteColor());
         }
         drawThickLine(g, lead1, swpoles[position]);
 
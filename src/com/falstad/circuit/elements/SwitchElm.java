@@ -74,7 +74,7 @@ public class SwitchElm extends CircuitElm {
         }
 
         if (!needsHighlight()) {
-            g.setColor(whiteColor);
+            g.setColor(sim.getWhiteColor());
         }
         interpPoint(lead1, lead2, ps, 0, hs1);
         interpPoint(lead1, lead2, ps2, 1, hs2);
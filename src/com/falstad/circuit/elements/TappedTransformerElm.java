@@ -1,6 +1,7 @@
 package com.falstad.circuit.elements;
 
 import com.falstad.circuit.CircuitElm;
+import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
 import java.util.StringTokenizer;
@@ -65,7 +66,7 @@ public class TappedTransformerElm extends CircuitElm {
             drawCoil(g, i > 1 ? -6 : 6,
                     ptCoil[i], ptCoil[i + 1], volts[i], volts[i + 1]);
         }
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         for (i = 0; i != 4; i += 2) {
             drawThickLine(g, ptCore[i], ptCore[i + 1]);
         }
@@ -128,8 +129,28 @@ public class TappedTransformerElm extends CircuitElm {
     public void reset() {
         current[0] = current[1] = volts[0] = volts[1] = volts[2]
                 = volts[3] = curcount[0] = curcount[1] = 0;
+        gear.reset();
     }
     double a[];
+    // the step factor (dt/2, dt or dt/a0) that a[] was computed with
+    double stampedScale;
+    GearState gear = new GearState(3);
+
+    // there's no per-element choice; trapezoidal unless the circuit
+    // says otherwise
+    int getMethod() {
+        return sim.getIntegrationMethod(false);
+    }
+
+    double getStepScale() {
+        switch (getMethod()) {
+            case CircuitSimulator.INTEGRATE_TRAPEZOIDAL:
+                return sim.getTimeStep() / 2;
+            case CircuitSimulator.INTEGRATE_GEAR:
+                return sim.getTimeStep() / gear.a0;
+        }
+        return sim.getTimeStep();
+    }
 
     public void stamp() {
 	    // equations for transformer:
@@ -169,9 +190,16 @@ public class TappedTransformerElm extends CircuitElm {
         a[4] = a[8] = -4 * (1 + cc) / ((2 * cc * cc - cc - 1) * l1 * ratio * ratio);
         a[5] = a[7] = 4 * cc / ((2 * cc * cc - cc - 1) * l1 * ratio * ratio);
         int i;
-        for (i = 0; i != 9; i++) {
-            a[i] *= sim.getTimeStep() / 2;
+        if (sim.isACAnalysis()) {
+            // stamp the inverted matrix itself, which the AC analysis
+            // divides by jw
+            sim.setACStampType(CircuitSimulator.AC_INVERSE_INDUCTANCE);
+        } else {
+            for (i = 0; i != 9; i++) {
+                a[i] *= getStepScale();
+            }
         }
+        stampedScale = getStepScale();
         sim.stampConductance(nodes[0], nodes[1], a[0]);
         sim.stampVCCurrentSource(nodes[0], nodes[1], nodes[2], nodes[3], a[1]);
         sim.stampVCCurrentSource(nodes[0], nodes[1], nodes[3], nodes[4], a[2]);
@@ -183,26 +211,99 @@ public class TappedTransformerElm extends CircuitElm {
         sim.stampVCCurrentSource(nodes[3], nodes[4], nodes[0], nodes[1], a[6]);
         sim.stampVCCurrentSource(nodes[3], nodes[4], nodes[2], nodes[3], a[7]);
         sim.stampConductance(nodes[3], nodes[4], a[8]);
+        sim.setACStampType(CircuitSimulator.AC_CONDUCTANCE);
 
         for (i = 0; i != 5; i++) {
             sim.stampRightSide(nodes[i]);
         }
     }
 
+    public void timeStepChanged() {
+        double k = getStepScale() / stampedScale - 1;
+        // windings go from nodes 0 to 1, 2 to 3 and 3 to 4
+        int w[] = {0, 1, 2, 3, 3, 4};
+        int i, j;
+        for (i = 0; i != 3; i++) {
+            for (j = 0; j != 3; j++) {
+                sim.updateVCCurrentSource(nodes[w[i * 2]], nodes[w[i * 2 + 1]],
+                        nodes[w[j * 2]], nodes[w[j * 2 + 1]], a[i * 3 + j] * k);
+            }
+        }
+        for (i = 0; i != 9; i++) {
+            a[i] += a[i] * k;
+        }
+        stampedScale = getStepScale();
+    }
+
+    // the winding currents, and the voltages across the windings
+    // (trapezoidal) or the currents a step earlier (gear)
+    public int getStateCount() {
+        return (getMethod() == CircuitSimulator.INTEGRATE_BACK_EULER) ? 3 : 6;
+    }
+
+    public void getState(double x[], int n) {
+        int i;
+        for (i = 0; i != 3; i++) {
+            x[n + i] = current[i];
+        }
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            x[n + 3] = volts[0] - volts[1];
+            x[n + 4] = volts[2] - volts[3];
+            x[n + 5] = volts[3] - volts[4];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            for (i = 0; i != 3; i++) {
+                x[n + 3 + i] = gear.cur[i];
+            }
+        }
+    }
+
+    public void setState(double x[], int n) {
+        int i;
+        for (i = 0; i != 3; i++) {
+            current[i] = x[n + i];
+        }
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            volts[0] = volts[1] + x[n + 3];
+            volts[2] = volts[3] + x[n + 4];
+            volts[4] = volts[3] - x[n + 5];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            for (i = 0; i != 3; i++) {
+                gear.cur[i] = x[n + 3 + i];
+            }
+        }
+    }
+
     public void startIteration() {
         voltdiff[0] = volts[0] - volts[1];
         voltdiff[1] = volts[2] - volts[3];
         voltdiff[2] = volts[3] - volts[4];
         int i, j;
+        if (sim.isDCAnalysis()) {
+            gear.reset();
+        }
+        if (getMethod() == CircuitSimulator.INTEGRATE_GEAR
+                && gear.start(sim.getT(), sim.getTimeStep(), current)) {
+            timeStepChanged();
+        }
         for (i = 0; i != 3; i++) {
+            if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+                curSourceValue[i] = -gear.known(i) / gear.a0;
+                continue;
+            }
             curSourceValue[i] = current[i];
-            for (j = 0; j != 3; j++) {
-                curSourceValue[i] += a[i * 3 + j] * voltdiff[j];
+            if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+                for (j = 0; j != 3; j++) {
+                    curSourceValue[i] += a[i * 3 + j] * voltdiff[j];
+                }
             }
         }
     }
     double curSourceValue[], voltdiff[];
 
+    public boolean hasLinearStep() {
+        return true;
+    }
+
     public void doStep() {
         sim.stampCurrentSource(nodes[0], nodes[1], curSourceValue[0]);
         sim.stampCurrentSource(nodes[2], nodes[3], curSourceValue[1]);
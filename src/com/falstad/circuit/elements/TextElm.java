@@ -72,7 +72,7 @@ public class TextElm extends GraphicElm {
         //Graphics2D g2 = (Graphics2D)g;
         //g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
         //	RenderingHints.VALUE_ANTIALIAS_ON);
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         Font f = new Font("SansSerif", 0, size);
         g.setFont(f);
         FontMetrics fm = g.getFontMetrics();
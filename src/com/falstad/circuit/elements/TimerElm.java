@@ -46,10 +46,6 @@ public class TimerElm extends ChipElm {
         pins[N_RST] = new Pin(1, SIDE_E, "rst");
     }
 
-    public boolean nonLinear() {
-        return true;
-    }
-
     boolean hasReset() {
         return (flags & FLAG_RESET) != 0;
     }
@@ -60,10 +56,17 @@ public class TimerElm extends ChipElm {
         sim.stampResistor(nodes[N_CTL], 0, 10000);
         // output pin
         sim.stampVoltageSource(0, nodes[N_OUT], pins[N_OUT].voltSource);
-        // discharge pin
+        // discharge pin; this only changes the matrix when the output
+        // flips, so we stamp it here and update it in doStep()
         sim.stampNonLinear(nodes[N_DIS]);
+        discharging = !out && !setOut;
+        if (discharging) {
+            sim.stampResistor(nodes[N_DIS], 0, 10);
+        }
     }
 
+    boolean discharging;
+
     public void calculateCurrent() {
         // need current for V, discharge, control; output current is
         // calculated for us, and other pins have no current
@@ -83,6 +86,39 @@ public class TimerElm extends ChipElm {
         if (volts[N_THRES] > volts[N_CTL] || (hasReset() && volts[N_RST] < .7)) {
             out = false;
         }
+        if (out != volts[N_OUT] > volts[N_VIN] / 2) {
+            sim.discontinuity();
+        }
+    }
+
+    // with an adaptive time step, don't step far past the point where a
+    // comparator trips: extrapolate each comparator's input from the
+    // last step, and limit the step to the time it would take to reach
+    // the threshold (but not below timeStep, or we'd never get there)
+    double lastTime, lastThres, lastTrig;
+
+    public double estimateTimeStep() {
+        // both trip when they go above 0
+        double thres = volts[N_THRES] - volts[N_CTL];
+        double trig = volts[N_CTL] / 2 - volts[N_TRIG];
+        double dt = sim.getT() - lastTime;
+        double est = Double.MAX_VALUE;
+        if (dt > 0) {
+            est = Math.min(timeToTrip(thres, lastThres, dt),
+                    timeToTrip(trig, lastTrig, dt));
+        }
+        lastTime = sim.getT();
+        lastThres = thres;
+        lastTrig = trig;
+        return Math.max(est, sim.getNominalTimeStep());
+    }
+
+    // time for x, which rose from lastx in dt, to reach 0
+    double timeToTrip(double x, double lastx, double dt) {
+        if (x >= 0 || x <= lastx) {
+            return Double.MAX_VALUE;
+        }
+        return -x * dt / (x - lastx);
     }
 
     public void doStep() {
@@ -91,8 +127,10 @@ public class TimerElm extends ChipElm {
         // the discharge pin to the trigger and threshold pins.
         // We check setOut to properly emulate the case where
         // trigger is low and threshold is high.
-        if (!out && !setOut) {
-            sim.stampResistor(nodes[N_DIS], 0, 10);
+        boolean d = !out && !setOut;
+        if (d != discharging) {
+            sim.updateConductance(nodes[N_DIS], 0, (d) ? .1 : -.1);
+            discharging = d;
         }
         // output
         sim.updateVoltageSource(0, nodes[N_OUT], pins[N_OUT].voltSource,
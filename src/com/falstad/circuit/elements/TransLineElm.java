@@ -42,6 +42,11 @@ public class TransLineElm extends CircuitElm {
         return 171;
     }
 
+    // the delay line holds one value per step
+    public double estimateTimeStep() {
+        return 0;
+    }
+
     public int getPostCount() {
         return 4;
     }
@@ -174,6 +179,11 @@ public class TransLineElm extends CircuitElm {
         sim.stampResistor(nodes[3], nodes[5], imped);
     }
 
+    // what's still travelling along the line doesn't show at its ends
+    public boolean isTimeInvariant() {
+        return false;
+    }
+
     public void startIteration() {
         // calculate voltages, currents sent over wire
         if (voltageL == null) {
@@ -1,6 +1,7 @@
 package com.falstad.circuit.elements;
 
 import com.falstad.circuit.CircuitElm;
+import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
 import java.util.StringTokenizer;
@@ -78,7 +79,7 @@ public class TransformerElm extends CircuitElm {
             drawCoil(g, dsign * (i == 1 ? -6 : 6),
                     ptCoil[i], ptCoil[i + 2], volts[i], volts[i + 2]);
         }
-        g.setColor(needsHighlight() ? selectColor : lightGrayColor);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : sim.getLightGrayColor());
         for (i = 0; i != 2; i++) {
             drawThickLine(g, ptCore[i], ptCore[i + 2]);
             curcount[i] = updateDotCount(current[i], curcount[i]);
@@ -125,8 +126,30 @@ public class TransformerElm extends CircuitElm {
     public void reset() {
         current[0] = current[1] = volts[0] = volts[1] = volts[2]
                 = volts[3] = curcount[0] = curcount[1] = 0;
+        history1.reset();
+        history2.reset();
+        gear.reset();
     }
     double a1, a2, a3, a4;
+    // the step factor (dt/2, dt or dt/a0) that a1..a4 were computed with
+    double stampedScale;
+    StepHistory history1 = new StepHistory();
+    StepHistory history2 = new StepHistory();
+    GearState gear = new GearState(2);
+
+    int getMethod() {
+        return sim.getIntegrationMethod(!isTrapezoidal());
+    }
+
+    double getStepScale() {
+        switch (getMethod()) {
+            case CircuitSimulator.INTEGRATE_TRAPEZOIDAL:
+                return sim.getTimeStep() / 2;
+            case CircuitSimulator.INTEGRATE_GEAR:
+                return sim.getTimeStep() / gear.a0;
+        }
+        return sim.getTimeStep();
+    }
 
     public void stamp() {
 	    // equations for transformer:
@@ -153,7 +176,9 @@ public class TransformerElm extends CircuitElm {
         //   i1(t2) = i1(t1) + a1 dt v1(t2) + a2 dt v2(t2)
         //
         // So the current source value is just i1(t1) and we use
-        // dt instead of dt/2 for the resistor and VCCS.
+        // dt instead of dt/2 for the resistor and VCCS.  Gear (see
+        // GearState) uses dt/a0, and a current source of
+        // -(a1 i(t1) + a2 i(t0))/a0.
         //
         // first winding goes from node 0 to 2, second is from 1 to 3
         double l1 = inductance;
@@ -161,27 +186,101 @@ public class TransformerElm extends CircuitElm {
         double m = couplingCoef * Math.sqrt(l1 * l2);
         // build inverted matrix
         double deti = 1 / (l1 * l2 - m * m);
-        double ts = isTrapezoidal() ? sim.getTimeStep() / 2 : sim.getTimeStep();
+        double ts = getStepScale();
+        if (sim.isACAnalysis()) {
+            // stamp the inverted matrix itself, which the AC analysis
+            // divides by jw
+            ts = 1;
+            sim.setACStampType(CircuitSimulator.AC_INVERSE_INDUCTANCE);
+        }
         a1 = l2 * deti * ts; // we multiply dt/2 into a1..a4 here
         a2 = -m * deti * ts;
         a3 = -m * deti * ts;
         a4 = l1 * deti * ts;
+        stampedScale = ts;
         sim.stampConductance(nodes[0], nodes[2], a1);
         sim.stampVCCurrentSource(nodes[0], nodes[2], nodes[1], nodes[3], a2);
         sim.stampVCCurrentSource(nodes[1], nodes[3], nodes[0], nodes[2], a3);
         sim.stampConductance(nodes[1], nodes[3], a4);
+        sim.setACStampType(CircuitSimulator.AC_CONDUCTANCE);
         sim.stampRightSide(nodes[0]);
         sim.stampRightSide(nodes[1]);
         sim.stampRightSide(nodes[2]);
         sim.stampRightSide(nodes[3]);
     }
 
+    public double estimateTimeStep() {
+        double tol = sim.getTimeStepTolerance();
+        history1.add(sim.getT(), current[0]);
+        history2.add(sim.getT(), current[1]);
+        return Math.min(history1.estimate(getMethod(), tol, 1e-9),
+                history2.estimate(getMethod(), tol, 1e-9));
+    }
+
+    public boolean estimatesError() {
+        return true;
+    }
+
+    // a1..a4 are proportional to the time step, so scale them and
+    // change the stamps by the difference
+    public void timeStepChanged() {
+        double k = getStepScale() / stampedScale - 1;
+        sim.updateConductance(nodes[0], nodes[2], a1 * k);
+        sim.updateVCCurrentSource(nodes[0], nodes[2], nodes[1], nodes[3], a2 * k);
+        sim.updateVCCurrentSource(nodes[1], nodes[3], nodes[0], nodes[2], a3 * k);
+        sim.updateConductance(nodes[1], nodes[3], a4 * k);
+        a1 += a1 * k;
+        a2 += a2 * k;
+        a3 += a3 * k;
+        a4 += a4 * k;
+        stampedScale = getStepScale();
+    }
+
+    // the coil currents, and the voltages across the coils (trapezoidal)
+    // or the currents a step earlier (gear)
+    public int getStateCount() {
+        return (getMethod() == CircuitSimulator.INTEGRATE_BACK_EULER) ? 2 : 4;
+    }
+
+    public void getState(double x[], int n) {
+        x[n] = current[0];
+        x[n + 1] = current[1];
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            x[n + 2] = volts[0] - volts[2];
+            x[n + 3] = volts[1] - volts[3];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            x[n + 2] = gear.cur[0];
+            x[n + 3] = gear.cur[1];
+        }
+    }
+
+    public void setState(double x[], int n) {
+        current[0] = x[n];
+        current[1] = x[n + 1];
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
+            volts[0] = volts[2] + x[n + 2];
+            volts[1] = volts[3] + x[n + 3];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            gear.cur[0] = x[n + 2];
+            gear.cur[1] = x[n + 3];
+        }
+    }
+
     public void startIteration() {
         double voltdiff1 = volts[0] - volts[2];
         double voltdiff2 = volts[1] - volts[3];
-        if (isTrapezoidal()) {
+        if (sim.isDCAnalysis()) {
+            gear.reset();
+        }
+        if (getMethod() == CircuitSimulator.INTEGRATE_TRAPEZOIDAL) {
             curSourceValue1 = voltdiff1 * a1 + voltdiff2 * a2 + current[0];
             curSourceValue2 = voltdiff1 * a3 + voltdiff2 * a4 + current[1];
+        } else if (getMethod() == CircuitSimulator.INTEGRATE_GEAR) {
+            if (gear.start(sim.getT(), sim.getTimeStep(), current)) {
+                timeStepChanged();
+            }
+            curSourceValue1 = -gear.known(0) / gear.a0;
+            curSourceValue2 = -gear.known(1) / gear.a0;
         } else {
             curSourceValue1 = current[0];
             curSourceValue2 = current[1];
@@ -189,6 +288,10 @@ public class TransformerElm extends CircuitElm {
     }
     double curSourceValue1, curSourceValue2;
 
+    public boolean hasLinearStep() {
+        return true;
+    }
+
     public void doStep() {
         sim.stampCurrentSource(nodes[0], nodes[2], curSourceValue1);
         sim.stampCurrentSource(nodes[1], nodes[3], curSourceValue2);
@@ -41,6 +41,7 @@ public class TransistorElm extends CircuitElm {
     void setup() {
         vcrit = vt * Math.log(vt / (Math.sqrt(2) * leakage));
         fgain = beta / (beta + 1);
+        bypassOk = false;
         noDiagonal = true;
     }
 
@@ -51,6 +52,7 @@ public class TransistorElm extends CircuitElm {
     public void reset() {
         volts[0] = volts[1] = volts[2] = 0;
         lastvbc = lastvbe = curcount_c = curcount_e = curcount_b = 0;
+        bypassOk = false;
     }
 
     public int getDumpType() {
@@ -74,7 +76,7 @@ public class TransistorElm extends CircuitElm {
         setVoltageColor(g, volts[2]);
         drawThickLine(g, emit[0], emit[1]);
         // draw arrow
-        g.setColor(lightGrayColor);
+        g.setColor(sim.getLightGrayColor());
         g.fillPolygon(arrowPoly);
         // draw base
         setVoltageColor(g, volts[0]);
@@ -186,11 +188,30 @@ public class TransistorElm extends CircuitElm {
         sim.stampNonLinear(nodes[2]);
     }
 
+    // stamp handles: matrixHandles[a * 3 + b] is entry (nodes[a], nodes[b])
+    int matrixHandles[], rightHandles[];
+
+    public void resolveStamps() {
+        matrixHandles = getNodeHandles(3);
+        rightHandles = getRightSideHandles(3);
+    }
+
+    // the last linearization, for device bypass
+    double bypassvbc, bypassvbe, bypassgmin;
+    double gee, gec, gce, gcc;
+    boolean bypassOk;
+
+    public boolean readsNodeVoltages() {
+        return true;
+    }
+
     public void doStep() {
-        double vbc = volts[0] - volts[1]; // typically negative
-        double vbe = volts[0] - volts[2]; // typically positive
-        if (Math.abs(vbc - lastvbc) > .01 || // .01
-                Math.abs(vbe - lastvbe) > .01) {
+        double vb = nodeVoltage(0);
+        double vbc = vb - nodeVoltage(1); // typically negative
+        double vbe = vb - nodeVoltage(2); // typically positive
+        convergenceError = Math.max(Math.abs(vbc - lastvbc),
+                Math.abs(vbe - lastvbe));
+        if (convergenceError > .01) { // .01
             sim.setConverged(false);
         }
         gmin = 0;
@@ -207,25 +228,40 @@ public class TransistorElm extends CircuitElm {
         vbe = pnp * limitStep(pnp * vbe, pnp * lastvbe);
         lastvbc = vbc;
         lastvbe = vbe;
-        double pcoef = vdcoef * pnp;
-        double expbc = Math.exp(vbc * pcoef);
-        /*if (expbc > 1e13 || Double.isInfinite(expbc))
-         expbc = 1e13;*/
-        double expbe = Math.exp(vbe * pcoef);
-        if (expbe < 1) {
-            expbe = 1;
+        // if the junction voltages have hardly moved since we last
+        // linearized, use that again instead of working out the
+        // exponentials
+        double tol = sim.getBypassTolerance();
+        if (bypassOk && gmin == bypassgmin
+                && Math.abs(vbc - bypassvbc) < tol
+                && Math.abs(vbe - bypassvbe) < tol) {
+            vbc = bypassvbc;
+            vbe = bypassvbe;
+        } else {
+            double pcoef = vdcoef * pnp;
+            double expbc = Math.exp(vbc * pcoef);
+            /*if (expbc > 1e13 || Double.isInfinite(expbc))
+             expbc = 1e13;*/
+            double expbe = Math.exp(vbe * pcoef);
+            if (expbe < 1) {
+                expbe = 1;
+            }
+            /*if (expbe > 1e13 || Double.isInfinite(expbe))
+             expbe = 1e13;*/
+            ie = pnp * leakage * (-(expbe - 1) + rgain * (expbc - 1));
+            ic = pnp * leakage * (fgain * (expbe - 1) - (expbc - 1));
+            ib = -(ie + ic);
+            //System.out.println("gain " + ic/ib);
+            //System.out.print("T " + vbc + " " + vbe + " " + ie + " " + ic + "\n");
+            gee = -leakage * vdcoef * expbe;
+            gec = rgain * leakage * vdcoef * expbc;
+            gce = -gee * fgain;
+            gcc = -gec * (1 / rgain);
+            bypassvbc = vbc;
+            bypassvbe = vbe;
+            bypassgmin = gmin;
+            bypassOk = true;
         }
-        /*if (expbe > 1e13 || Double.isInfinite(expbe))
-         expbe = 1e13;*/
-        ie = pnp * leakage * (-(expbe - 1) + rgain * (expbc - 1));
-        ic = pnp * leakage * (fgain * (expbe - 1) - (expbc - 1));
-        ib = -(ie + ic);
-	    //System.out.println("gain " + ic/ib);
-        //System.out.print("T " + vbc + " " + vbe + " " + ie + " " + ic + "\n");
-        double gee = -leakage * vdcoef * expbe;
-        double gec = rgain * leakage * vdcoef * expbc;
-        double gce = -gee * fgain;
-        double gcc = -gec * (1 / rgain);
 
         /*System.out.print("gee = " + gee + "\n");
          System.out.print("gec = " + gec + "\n");
@@ -236,21 +272,23 @@ public class TransistorElm extends CircuitElm {
 	    // stamps from page 302 of Pillage.  Node 0 is the base,
         // node 1 the collector, node 2 the emitter.  Also stamp
         // minimum conductance (gmin) between b,e and b,c
-        sim.stampMatrix(nodes[0], nodes[0], -gee - gec - gce - gcc + gmin * 2);
-        sim.stampMatrix(nodes[0], nodes[1], gec + gcc - gmin);
-        sim.stampMatrix(nodes[0], nodes[2], gee + gce - gmin);
-        sim.stampMatrix(nodes[1], nodes[0], gce + gcc - gmin);
-        sim.stampMatrix(nodes[1], nodes[1], -gcc + gmin);
-        sim.stampMatrix(nodes[1], nodes[2], -gce);
-        sim.stampMatrix(nodes[2], nodes[0], gee + gec - gmin);
-        sim.stampMatrix(nodes[2], nodes[1], -gec);
-        sim.stampMatrix(nodes[2], nodes[2], -gee + gmin);
+        int h[] = matrixHandles;
+        sim.stampHandle(h[0], -gee - gec - gce - gcc + gmin * 2);
+        sim.stampHandle(h[1], gec + gcc - gmin);
+        sim.stampHandle(h[2], gee + gce - gmin);
+        sim.stampHandle(h[3], gce + gcc - gmin);
+        sim.stampHandle(h[4], -gcc + gmin);
+        sim.stampHandle(h[5], -gce);
+        sim.stampHandle(h[6], gee + gec - gmin);
+        sim.stampHandle(h[7], -gec);
+        sim.stampHandle(h[8], -gee + gmin);
 
 	    // we are solving for v(k+1), not delta v, so we use formula
         // 10.5.13, multiplying J by v(k)
-        sim.stampRightSide(nodes[0], -ib - (gec + gcc) * vbc - (gee + gce) * vbe);
-        sim.stampRightSide(nodes[1], -ic + gce * vbe + gcc * vbc);
-        sim.stampRightSide(nodes[2], -ie + gee * vbe + gec * vbc);
+        sim.stampRightSideHandle(rightHandles[0],
+                -ib - (gec + gcc) * vbc - (gee + gce) * vbe);
+        sim.stampRightSideHandle(rightHandles[1], -ic + gce * vbe + gcc * vbc);
+        sim.stampRightSideHandle(rightHandles[2], -ie + gee * vbe + gec * vbc);
     }
 
     public void getInfo(String arr[]) {
@@ -76,7 +76,7 @@ public class TriStateElm extends CircuitElm {
 
         draw2Leads(g);
 
-        g.setColor(lightGrayColor);
+        g.setColor(sim.getLightGrayColor());
         drawThickPolygon(g, gatePoly);
         setVoltageColor(g, volts[2]);
         drawThickLine(g, point3, lead3);
@@ -88,21 +88,29 @@ public class TriStateElm extends CircuitElm {
         current = (volts[0] - volts[1]) / resistance;
     }
 
-    // we need this to be able to change the matrix for each step
-    public boolean nonLinear() {
-        return true;
-    }
-
+    // the output resistance only changes when the enable input flips,
+    // so we stamp it here and update it in doStep()
     public void stamp() {
         sim.stampVoltageSource(0, nodes[3], voltSource);
         sim.stampNonLinear(nodes[3]);
         sim.stampNonLinear(nodes[1]);
-    }
-
-    public void doStep() {
         open = (volts[2] < 2.5);
         resistance = (open) ? r_off : r_on;
         sim.stampResistor(nodes[3], nodes[1], resistance);
+    }
+
+    public void doStep() {
+        boolean o = (volts[2] < 2.5);
+        if (o != open) {
+            double r = (o) ? r_off : r_on;
+            sim.updateConductance(nodes[3], nodes[1], 1 / r - 1 / resistance);
+            sim.discontinuity();
+            open = o;
+            resistance = r;
+        }
+        if (volts[0] > 2.5 != volts[3] > 2.5) {
+            sim.discontinuity();
+        }
         sim.updateVoltageSource(0, nodes[3], voltSource, volts[0] > 2.5 ? 5 : 0);
     }
 
@@ -167,6 +167,7 @@ class TriacElm extends CircuitElm {
     }
 
     double aresistance;
+    int anodeHandles[];
 
     public void stamp() {
         sim.stampNonLinear(nodes[anode]);
@@ -177,6 +178,11 @@ class TriacElm extends CircuitElm {
         diode.stamp(nodes[inode], nodes[gnode]);
     }
 
+    public void resolveStamps() {
+        diode.resolveStamps();
+        anodeHandles = sim.getConductanceHandles(nodes[anode], nodes[inode]);
+    }
+
     public void doStep() {
         double vac = volts[anode] - volts[cnode]; // typically negative
         double vag = volts[anode] - volts[gnode]; // typically positive
@@ -192,7 +198,7 @@ class TriacElm extends CircuitElm {
         //System.out.println(icmult + " " + iamult);
         aresistance = (-icmult * ic + ia * iamult > 1) ? .0105 : 10e5;
         //System.out.println(vac + " " + vag + " " + sim.converged + " " + ic + " " + ia + " " + aresistance + " " + volts[inode] + " " + volts[gnode] + " " + volts[anode]);
-        sim.stampResistor(nodes[anode], nodes[inode], aresistance);
+        sim.stampResistor(anodeHandles, aresistance);
     }
 
     public void getInfo(String arr[]) {
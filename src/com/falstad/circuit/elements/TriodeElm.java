@@ -36,6 +36,7 @@ public class TriodeElm extends CircuitElm {
     public void reset() {
         volts[0] = volts[1] = volts[2] = 0;
         curcount = 0;
+        bypassOk = false;
     }
 
     public String dump() {
@@ -126,6 +127,10 @@ public class TriodeElm extends CircuitElm {
     }
 
     double lastv0, lastv1, lastv2;
+    // the last linearization, for device bypass
+    double bypassv0, bypassv1, bypassv2;
+    double gds, gm, rs;
+    boolean bypassOk;
 
     public void doStep() {
         double vs[] = new double[3];
@@ -149,49 +154,67 @@ public class TriodeElm extends CircuitElm {
         int plate = 0;
         double vgk = vs[grid] - vs[cath];
         double vpk = vs[plate] - vs[cath];
-        if (Math.abs(lastv0 - vs[0]) > .01
-                || Math.abs(lastv1 - vs[1]) > .01
-                || Math.abs(lastv2 - vs[2]) > .01) {
+        convergenceError = Math.max(Math.abs(lastv0 - vs[0]),
+                Math.max(Math.abs(lastv1 - vs[1]), Math.abs(lastv2 - vs[2])));
+        if (convergenceError > .01) {
             sim.setConverged(false);
         }
         lastv0 = vs[0];
         lastv1 = vs[1];
         lastv2 = vs[2];
-        double ids = 0;
-        double gm = 0;
-        double Gds = 0;
-        double ival = vgk + vpk / mu;
-        currentg = 0;
-        if (vgk > .01) {
-            sim.stampResistor(nodes[grid], nodes[cath], gridCurrentR);
-            currentg = vgk / gridCurrentR;
+        // if the voltages have hardly moved since we last linearized,
+        // use that again
+        double tol = sim.getBypassTolerance();
+        if (!(bypassOk && Math.abs(vs[0] - bypassv0) < tol
+                && Math.abs(vs[1] - bypassv1) < tol
+                && Math.abs(vs[2] - bypassv2) < tol)) {
+            double ids = 0;
+            gm = 0;
+            gds = 0;
+            double ival = vgk + vpk / mu;
+            currentg = 0;
+            if (vgk > .01) {
+                currentg = vgk / gridCurrentR;
+            }
+            if (ival < 0) {
+                // should be all zero, but that causes a singular matrix,
+                // so instead we treat it as a large resistor
+                gds = 1e-8;
+                ids = vpk * gds;
+            } else {
+                ids = Math.pow(ival, 1.5) / kg1;
+                double q = 1.5 * Math.sqrt(ival) / kg1;
+                // gm = dids/dgk;
+                // Gds = dids/dpk;
+                gds = q;
+                gm = q / mu;
+            }
+            currentp = ids;
+            currentc = ids + currentg;
+            rs = -ids + gds * vpk + gm * vgk;
+            bypassv0 = vs[0];
+            bypassv1 = vs[1];
+            bypassv2 = vs[2];
+            bypassOk = true;
         }
-        if (ival < 0) {
-	    // should be all zero, but that causes a singular matrix,
-            // so instead we treat it as a large resistor
-            Gds = 1e-8;
-            ids = vpk * Gds;
-        } else {
-            ids = Math.pow(ival, 1.5) / kg1;
-            double q = 1.5 * Math.sqrt(ival) / kg1;
-	    // gm = dids/dgk;
-            // Gds = dids/dpk;
-            Gds = q;
-            gm = q / mu;
+        int h[] = matrixHandles;
+        if (currentg != 0) {
+            double g = 1 / gridCurrentR;
+            sim.stampHandle(h[grid * 3 + grid], g);
+            sim.stampHandle(h[cath * 3 + cath], g);
+            sim.stampHandle(h[grid * 3 + cath], -g);
+            sim.stampHandle(h[cath * 3 + grid], -g);
         }
-        currentp = ids;
-        currentc = ids + currentg;
-        double rs = -ids + Gds * vpk + gm * vgk;
-        sim.stampMatrix(nodes[plate], nodes[plate], Gds);
-        sim.stampMatrix(nodes[plate], nodes[cath], -Gds - gm);
-        sim.stampMatrix(nodes[plate], nodes[grid], gm);
+        sim.stampHandle(h[plate * 3 + plate], gds);
+        sim.stampHandle(h[plate * 3 + cath], -gds - gm);
+        sim.stampHandle(h[plate * 3 + grid], gm);
 
-        sim.stampMatrix(nodes[cath], nodes[plate], -Gds);
-        sim.stampMatrix(nodes[cath], nodes[cath], Gds + gm);
-        sim.stampMatrix(nodes[cath], nodes[grid], -gm);
+        sim.stampHandle(h[cath * 3 + plate], -gds);
+        sim.stampHandle(h[cath * 3 + cath], gds + gm);
+        sim.stampHandle(h[cath * 3 + grid], -gm);
 
-        sim.stampRightSide(nodes[plate], rs);
-        sim.stampRightSide(nodes[cath], -rs);
+        sim.stampRightSideHandle(rightHandles[plate], rs);
+        sim.stampRightSideHandle(rightHandles[cath], -rs);
     }
 
     public void stamp() {
@@ -200,6 +223,14 @@ public class TriodeElm extends CircuitElm {
         sim.stampNonLinear(nodes[2]);
     }
 
+    // stamp handles: matrixHandles[a * 3 + b] is entry (nodes[a], nodes[b])
+    int matrixHandles[], rightHandles[];
+
+    public void resolveStamps() {
+        matrixHandles = getNodeHandles(3);
+        rightHandles = getRightSideHandles(3);
+    }
+
     public void getInfo(String arr[]) {
         arr[0] = "triode";
         double vbc = volts[0] - volts[1];
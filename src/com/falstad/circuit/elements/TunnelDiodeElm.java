@@ -59,9 +59,13 @@ public class TunnelDiodeElm extends CircuitElm {
 	
     public void reset() {
 	lastvoltdiff = volts[0] = volts[1] = curcount = 0;
+	bypassOk = false;
     }
 	
     double lastvoltdiff;
+    // the last linearization, for device bypass
+    double bypassv, bypassgeq, bypassnc;
+    boolean bypassOk;
     double limitStep(double vnew, double vold) {
 	// Prevent voltage changes of more than 1V when iterating.  Wow, I thought it would be
 	// much harder than this to prevent convergence problems.
@@ -75,6 +79,11 @@ public class TunnelDiodeElm extends CircuitElm {
 	sim.stampNonLinear(nodes[0]);
 	sim.stampNonLinear(nodes[1]);
     }
+    int conductanceHandles[], currentHandles[];
+    public void resolveStamps() {
+	conductanceHandles = sim.getConductanceHandles(nodes[0], nodes[1]);
+	currentHandles = sim.getCurrentSourceHandles(nodes[0], nodes[1]);
+    }
     static final double pvp = .1;
     static final double pip = 4.7e-3;
     static final double pvv = .37;
@@ -83,11 +92,19 @@ public class TunnelDiodeElm extends CircuitElm {
     static final double piv = 370e-6;
     public void doStep() {
 	double voltdiff = volts[0] - volts[1];
-	if (Math.abs(voltdiff-lastvoltdiff) > .01)
+	convergenceError = Math.abs(voltdiff-lastvoltdiff);
+	if (convergenceError > .01)
 	    sim.setConverged(false);
 	//System.out.println(voltdiff + " " + lastvoltdiff + " " + Math.abs(voltdiff-lastvoltdiff));
 	voltdiff = limitStep(voltdiff, lastvoltdiff);
 	lastvoltdiff = voltdiff;
+	// if the voltage has hardly moved since we last linearized, use
+	// that again
+	if (bypassOk && Math.abs(voltdiff-bypassv) < sim.getBypassTolerance()) {
+	    sim.stampConductance(conductanceHandles, bypassgeq);
+	    sim.stampCurrentSource(currentHandles, bypassnc);
+	    return;
+	}
 	
 	double i = pip*Math.exp(-pvpp/pvt)*(Math.exp(voltdiff/pvt)-1) +
 	    pip*(voltdiff/pvp)*Math.exp(1-voltdiff/pvp) +
@@ -98,8 +115,12 @@ public class TunnelDiodeElm extends CircuitElm {
 	    - Math.exp(1-voltdiff/pvp)*pip*voltdiff/(pvp*pvp) +
 	    Math.exp(voltdiff-pvv)*piv;
 	double nc = i - geq*voltdiff;
-	sim.stampConductance(nodes[0], nodes[1], geq);
-	sim.stampCurrentSource(nodes[0], nodes[1], nc);
+	bypassv = voltdiff;
+	bypassgeq = geq;
+	bypassnc = nc;
+	bypassOk = true;
+	sim.stampConductance(conductanceHandles, geq);
+	sim.stampCurrentSource(currentHandles, nc);
     }
     public void calculateCurrent() {
 	double voltdiff = volts[0] - volts[1];
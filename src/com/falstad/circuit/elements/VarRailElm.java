@@ -3,9 +3,10 @@ package com.falstad.circuit.elements;
 import com.falstad.circuit.CircuitSimulator;
 import com.falstad.circuit.EditInfo;
 import java.awt.*;
+import java.awt.event.*;
 import java.util.StringTokenizer;
 
-public class VarRailElm extends RailElm {
+public class VarRailElm extends RailElm implements AdjustmentListener {
 
     Scrollbar slider;
     Label label;
@@ -42,18 +43,33 @@ public class VarRailElm extends RailElm {
 
     void createSlider() {
         waveform = WF_VAR;
+        if (sim.isHeadless()) {
+            return;
+        }
         sim.getContainer().add(label = new Label(sliderText, Label.CENTER));
         int value = (int) ((frequency - bias) * 100 / (maxVoltage - bias));
         sim.getContainer().add(slider = new Scrollbar(Scrollbar.HORIZONTAL, value, 1, 0, 101));
         sim.getContainer().validate();
+        slider.addAdjustmentListener(this);
+    }
+
+    // the slider is read every step, so the circuit has to be stepping
+    public void adjustmentValueChanged(AdjustmentEvent e) {
+        sim.wake();
     }
 
     public double getVoltage() {
+        if (slider == null) {
+            return frequency;
+        }
         frequency = slider.getValue() * (maxVoltage - bias) / 100. + bias;
         return frequency;
     }
 
     public void delete() {
+        if (slider == null) {
+            return;
+        }
         sim.getContainer().remove(label);
         sim.getContainer().remove(slider);
     }
@@ -78,8 +78,10 @@ public class VoltageElm extends CircuitElm {
         return 1 - (x - pi) * (2 / pi);
     }
 
+    // in a DC analysis the voltage may be scaled for source stepping,
+    // so it's stamped in doStep() like a changing one
     public void stamp() {
-        if (waveform == WF_DC) {
+        if (waveform == WF_DC && !sim.isDCAnalysis()) {
             sim.stampVoltageSource(nodes[0], nodes[1], voltSource,
                     getVoltage());
         } else {
@@ -87,11 +89,30 @@ public class VoltageElm extends CircuitElm {
         }
     }
 
+    public boolean hasLinearStep() {
+        return true;
+    }
+
     public void doStep() {
-        if (waveform != WF_DC) {
+        if (waveform != WF_DC || sim.isDCAnalysis()) {
             sim.updateVoltageSource(nodes[0], nodes[1], voltSource,
-                    getVoltage());
+                    getVoltage() * sim.getSourceScale());
+        }
+    }
+
+    // keep enough steps per cycle to follow the waveform
+    public double estimateTimeStep() {
+        if (waveform == WF_DC || waveform == WF_VAR) {
+            return Double.MAX_VALUE;
+        }
+        return 1 / (50 * frequency);
+    }
+
+    public double getSourcePeriod() {
+        if (waveform == WF_DC || waveform == WF_VAR || frequency <= 0) {
+            return 0;
         }
+        return 1 / frequency;
     }
 
     public double getVoltage() {
@@ -151,7 +172,7 @@ public class VoltageElm extends CircuitElm {
     }
 
     public void drawWaveform(Graphics g, Point center) {
-        g.setColor(needsHighlight() ? selectColor : Color.gray);
+        g.setColor(needsHighlight() ? sim.getSelectColor() : Color.gray);
         setPowerColor(g, false);
         int xc = center.x;
         int yc = center.y;